@@ -17,21 +17,52 @@
 package net.micode.notes.data;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Data;
 import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- *
+ * 电话号码到联系人姓名的缓存。
+ * 缓存有最大条数,按最近使用淘汰;没有对应联系人的号码同样缓存,避免每次都查询联系人数据库。
+ * 联系人数据库变化时清空缓存,所有方法都可以在任意线程中调用
  */
 public class Contact {
-    private static HashMap<String, String> sContactCache;
     private static final String TAG = "Contact";
 
+    //缓存的最大号码数
+    private static final int MAX_ENTRIES = 256;
+
+    //批量查询时每次查询的最大号码数
+    private static final int PREFETCH_BATCH_SIZE = 100;
+
+    //没有对应联系人的号码在缓存中的值
+    private static final String NO_CONTACT = "";
+
+    private static final LinkedHashMap<String, String> sContactCache =
+            new LinkedHashMap<String, String>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    //每次清空缓存时加一,查询期间联系人发生过变化的结果不放入缓存
+    private static long sGeneration;
+
+    private static boolean sObserverRegistered;
+
     //定义的静态常量，用于数据库查询语句的基本模板，后面使用时将替换该语句中的一些值
     private static final String CALLER_ID_SELECTION = "PHONE_NUMBERS_EQUAL(" + Phone.NUMBER
     + ",?) AND " + Data.MIMETYPE + "='" + Phone.CONTENT_ITEM_TYPE + "'"
@@ -40,44 +71,196 @@ public class Contact {
             + " FROM phone_lookup"
             + " WHERE min_match = '+')";
 
-    //用于获取联系人信息
-    public static String getContact(Context context, String phoneNumber) {
-        if(sContactCache == null) {
-            sContactCache = new HashMap<String, String>();
-        }
+    //批量查询的语句模板,最后的"+"替换为与号码数目相同的参数占位符
+    private static final String CALLER_ID_BATCH_SELECTION = Data.MIMETYPE + "='"
+            + Phone.CONTENT_ITEM_TYPE + "'"
+            + " AND " + Data.RAW_CONTACT_ID + " IN "
+            + "(SELECT raw_contact_id "
+            + " FROM phone_lookup"
+            + " WHERE min_match IN (+))";
 
-        if(sContactCache.containsKey(phoneNumber)) {
-            return sContactCache.get(phoneNumber);
+    //用于获取联系人信息,缓存中没有时查询联系人数据库,不要在主线程中调用
+    public static String getContact(Context context, String phoneNumber) {
+        registerObserverIfNeeded(context);
+        long generation;
+        synchronized (sContactCache) {
+            String cached = sContactCache.get(phoneNumber);
+            if (cached != null) {
+                return toName(cached);
+            }
+            generation = sGeneration;
         }
 
         //把数据库查询语句的模板最后的“+”替换为获取的电话号码
         String selection = CALLER_ID_SELECTION.replace("+",
-                PhoneNumberUtils.toCallerIDMinMatch(phoneNumber));
-        //查询给定的URI，在结果集上返回
-        Cursor cursor = context.getContentResolver().query(
-                Data.CONTENT_URI,
-                new String [] { Phone.DISPLAY_NAME },
-                selection,
-                new String[] { phoneNumber },
-                null);
-
-        if (cursor != null && cursor.moveToFirst()) {
+                NotesDatabaseHelper.phoneNumberKeyOf(phoneNumber));
+        String name = NO_CONTACT;
+        Cursor cursor;
+        try {
+            //查询给定的URI，在结果集上返回
+            cursor = context.getContentResolver().query(
+                    Data.CONTENT_URI,
+                    new String [] { Phone.DISPLAY_NAME },
+                    selection,
+                    new String[] { phoneNumber },
+                    null);
+        } catch (SecurityException e) {
+            //没有读取联系人的权限,不缓存结果,授权后可以重新查询
+            Log.w(TAG, "Query contact failed " + e.toString());
+            return null;
+        }
+
+        if (cursor != null) {
             try {
-                //返回实例cursor第0列的值
-                String name = cursor.getString(0);
-                //将name与phoneNumber中的指定键关联。
-                //如果phoneNumber之前包含键的映射，则替换旧值。
-                sContactCache.put(phoneNumber, name);
-                return name;
+                if (cursor.moveToFirst()) {
+                    //返回实例cursor第0列的值
+                    name = cursor.getString(0);
+                } else {
+                    Log.d(TAG, "No contact matched with number:" + phoneNumber);
+                }
             } catch (IndexOutOfBoundsException e) {
                 Log.e(TAG, " Cursor get string error " + e.toString());
                 return null;
             } finally {
                 cursor.close();
             }
-        } else {
-            Log.d(TAG, "No contact matched with number:" + phoneNumber);
+        }
+        put(phoneNumber, name, generation);
+        return toName(name);
+    }
+
+    /**
+     * 只从缓存中获取联系人姓名,不查询数据库
+     * @return 缓存中的姓名,号码没有对应的联系人或尚未缓存时返回null
+     */
+    public static String getCachedContact(String phoneNumber) {
+        synchronized (sContactCache) {
+            return toName(sContactCache.get(phoneNumber));
+        }
+    }
+
+    /**
+     * @return 缓存中是否已经有该号码的查询结果,包括没有对应联系人的结果
+     */
+    public static boolean isCached(String phoneNumber) {
+        synchronized (sContactCache) {
+            return sContactCache.containsKey(phoneNumber);
+        }
+    }
+
+    /**
+     * 批量查询尚未缓存的号码对应的联系人并放入缓存,每{@link #PREFETCH_BATCH_SIZE}个号码查询一次,
+     * 不要在主线程中调用
+     * @param phoneNumbers 要查询的号码
+     */
+    public static void prefetchContacts(Context context, Collection<String> phoneNumbers) {
+        registerObserverIfNeeded(context);
+        List<String> numbers = new ArrayList<String>();
+        long generation;
+        synchronized (sContactCache) {
+            for (String number : phoneNumbers) {
+                if (!TextUtils.isEmpty(number) && !sContactCache.containsKey(number)
+                        && !numbers.contains(number)) {
+                    numbers.add(number);
+                }
+            }
+            generation = sGeneration;
+        }
+
+        for (int start = 0; start < numbers.size(); start += PREFETCH_BATCH_SIZE) {
+            List<String> batch = numbers.subList(start,
+                    Math.min(start + PREFETCH_BATCH_SIZE, numbers.size()));
+            HashMap<String, String> names = queryContacts(context, batch);
+            if (names == null) {
+                return;
+            }
+            for (String number : batch) {
+                String name = names.get(number);
+                put(number, name == null ? NO_CONTACT : name, generation);
+            }
+        }
+    }
+
+    /**
+     * 用一次查询取出一批号码对应的联系人,再按PHONE_NUMBERS_EQUAL相同的规则匹配号码
+     * @return 号码到姓名的映射,没有对应联系人的号码不在其中;查询失败时返回null
+     */
+    private static HashMap<String, String> queryContacts(Context context, List<String> numbers) {
+        StringBuilder placeholders = new StringBuilder();
+        String[] selectionArgs = new String[numbers.size()];
+        for (int i = 0; i < numbers.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = NotesDatabaseHelper.phoneNumberKeyOf(numbers.get(i));
+        }
+
+        Cursor cursor;
+        try {
+            cursor = context.getContentResolver().query(
+                    Data.CONTENT_URI,
+                    new String [] { Phone.NUMBER, Phone.DISPLAY_NAME },
+                    CALLER_ID_BATCH_SELECTION.replace("+", placeholders.toString()),
+                    selectionArgs,
+                    null);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Query contacts failed " + e.toString());
+            return null;
+        }
+        if (cursor == null) {
             return null;
         }
+
+        HashMap<String, String> names = new HashMap<String, String>();
+        try {
+            while (cursor.moveToNext()) {
+                String contactNumber = cursor.getString(0);
+                for (String number : numbers) {
+                    if (!names.containsKey(number)
+                            && PhoneNumberUtils.compare(number, contactNumber)) {
+                        names.put(number, cursor.getString(1));
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    private static void put(String phoneNumber, String name, long generation) {
+        synchronized (sContactCache) {
+            if (generation == sGeneration) {
+                sContactCache.put(phoneNumber, name == null ? NO_CONTACT : name);
+            }
+        }
+    }
+
+    private static String toName(String cached) {
+        return TextUtils.isEmpty(cached) ? null : cached;
+    }
+
+    /**
+     * 第一次使用时监听联系人数据库的变化,联系人增删改后清空缓存
+     */
+    private static void registerObserverIfNeeded(Context context) {
+        synchronized (sContactCache) {
+            if (sObserverRegistered) {
+                return;
+            }
+            sObserverRegistered = true;
+        }
+        try {
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    ContactsContract.Contacts.CONTENT_URI, true, new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            synchronized (sContactCache) {
+                                sGeneration++;
+                                sContactCache.clear();
+                            }
+                        }
+                    });
+        } catch (SecurityException e) {
+            Log.w(TAG, "Observe contacts failed " + e.toString());
+        }
     }
 }
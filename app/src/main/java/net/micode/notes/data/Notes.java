@@ -64,6 +64,7 @@ public class Notes {
     public static class DataConstants {
         public static final String NOTE = TextNote.CONTENT_ITEM_TYPE;
         public static final String CALL_NOTE = CallNote.CONTENT_ITEM_TYPE;
+        public static final String CHECKLIST_ITEM = ChecklistItemNote.CONTENT_ITEM_TYPE;
     }
 
     /**
@@ -78,6 +79,24 @@ public class Notes {
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * Provider call methods to delete or move a set of notes with one statement,
+     * ids are passed in {@link #EXTRA_BATCH_IDS}, at most {@link #BATCH_MAX_IDS} per call
+     * 按ID集合批量删除或移动便签的调用方法,每次调用执行一条语句
+     */
+    public static final String METHOD_BATCH_DELETE = "batch_delete";
+    public static final String METHOD_BATCH_MOVE = "batch_move";
+
+    //批量操作的便签ID数组
+    public static final String EXTRA_BATCH_IDS = "batch_ids";
+    //批量移动的目标文件夹ID
+    public static final String EXTRA_BATCH_FOLDER_ID = "batch_folder_id";
+    //批量操作影响的行数
+    public static final String EXTRA_BATCH_COUNT = "batch_count";
+
+    //每次调用的最大ID数,低于SQLite绑定参数的数量上限999
+    public static final int BATCH_MAX_IDS = 500;
+
     public interface NoteColumns {
         /**
          * The unique ID for a row
@@ -324,6 +343,25 @@ public class Notes {
          *
          */
         public static final String FONT_SELECT = "font_select";
+
+        /**
+         * Tokens of {@link #CONTENT} for the full-text index, filled by the provider whenever
+         * the content is written, see {@link SearchTokenizer#indexTextOf}
+         * 正文的分词结果,由provider在写入正文时自动填写,全文索引只索引这一列
+         * <P> 数据类型: TEXT </P>
+         */
+        public static final String SEARCH_TEXT = DATA5;
+    }
+
+    public interface SearchColumns {
+        /**
+         * Rank of the search result, the number of search terms found in the best matching
+         * row of the note, the larger the more relevant
+         * <P> Type: INTEGER </P>
+         * 搜索结果的相关度,即便签中匹配最多的数据行包含的搜索词数,值越大越相关
+         * <P> 数据类型: INTEGER </P>
+         */
+        public static final String MATCH_RANK = "match_rank";
     }
 
     public static final class TextNote implements DataColumns {
@@ -344,6 +382,36 @@ public class Notes {
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/text_note");
     }
 
+    /**
+     * One item of a check list note, the text is kept in {@link DataColumns#CONTENT}.
+     * The {@link TextNote} row of the note keeps the mode and its content is empty
+     * 清单便签的一个条目,每个条目单独一行,修改一个条目时只写入这一行
+     */
+    public static final class ChecklistItemNote implements DataColumns {
+        /**
+         * Whether the item is checked
+         * <P> Type: Integer 1:checked 0:unchecked </P>
+         * 条目是否已勾选
+         * <P> 数据类型: Integer 1:已勾选 0:未勾选 </P>
+         */
+        public static final String CHECKED = DATA1;
+
+        /**
+         * Sort key of the item in its note, items are listed in ascending order.
+         * Positions are sparse, so an inserted item takes a value between its neighbours
+         * <P> Type: INTEGER (long) </P>
+         * 条目在便签中的排序值,按升序排列;排序值之间留有间隔,插入条目时不需要修改其他条目
+         * <P> 数据类型: INTEGER (long) </P>
+         */
+        public static final String POSITION = DATA2;
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/checklist_item";
+
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/checklist_item";
+
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/checklist_item");
+    }
+
     public static final class CallNote implements DataColumns {
         /**
          * Call date for this record
@@ -361,6 +429,14 @@ public class Notes {
          */
         public static final String PHONE_NUMBER = DATA3;
 
+        /**
+         * Normalized key of {@link #PHONE_NUMBER}, the reversed trailing digits returned by
+         * {@link android.telephony.PhoneNumberUtils#toCallerIDMinMatch}, filled by the provider
+         * 电话号码的规范化键,由provider在写入电话号码时自动填写,与通话日期一起建立索引
+         * <P> 数据类型: TEXT </P>
+         */
+        public static final String PHONE_NUMBER_KEY = DATA4;
+
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/call_note";
 
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/call_note";
@@ -18,13 +18,23 @@ package net.micode.notes.data;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.VisibleForTesting;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
 import android.util.Log;
 
+import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.ChecklistItemNote;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.model.ChecklistItem;
 
 
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
@@ -32,7 +42,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "note.db";
 
     //数据库的版本
-    private static final int DB_VERSION = 4;
+    private static final int DB_VERSION = 13;
 
     //表接口
     public interface TABLE {
@@ -41,6 +51,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
 
         //声明实现该接口的类必须有字符串类型属性"DATE",默认值"data"
         public static final String DATA = "data";
+
+        //便签内容的全文索引表,docid与data表的_id一一对应
+        public static final String DATA_FTS = "data_fts";
     }
 
     //声明TAG标签,默认值为"NotesDatabaseHelper"
@@ -49,6 +62,21 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     //声明NotesDataHelper的单例mInstance
     private static NotesDatabaseHelper mInstance;
 
+    //WAL文件累计到这么多页时自动做一次检查点,批量写入时避免频繁检查点
+    private static final int WAL_AUTO_CHECKPOINT_PAGES = 1000;
+
+    //每个连接缓存的预编译语句数量,按id查询等语句的参数都已绑定,形状固定可以命中缓存
+    private static final int SQL_STATEMENT_CACHE_SIZE = 50;
+
+    //检查点完成后WAL文件保留的最大字节数,避免一次大批量写入后WAL文件一直占用空间
+    private static final long WAL_SIZE_LIMIT_BYTES = 4 * 1024 * 1024;
+
+    //便签摘要的最大字符数,摘要只保存正文的第一行,列表中不需要读取整段正文
+    private static final int SNIPPET_MAX_LENGTH = 200;
+
+    //去掉首尾空白时要去除的字符:空格、制表符、换行和回车
+    private static final String SNIPPET_WHITESPACE = "' '||x'09'||x'0A'||x'0D'";
+
     //声明静态字符串CREATE_NOTE_TABLE_SQL,含义为创建便签表数据库
     //CREATE_NOTE_TABLE_SQL由一系列NoteColumns的属性组合而成
     private static final String CREATE_NOTE_TABLE_SQL =
@@ -97,13 +125,60 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             "CREATE INDEX IF NOT EXISTS note_id_index ON " +
                     TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";
 
+    /**
+     * 按电话号码和通话日期查找通话便签的索引,电话号码使用规范化的键,查询时可以直接按相等匹配
+     */
+    private static final String CREATE_DATA_PHONE_KEY_CALL_DATE_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS data_phone_key_call_date_index ON " +
+                    TABLE.DATA + "(" + CallNote.PHONE_NUMBER_KEY + "," + CallNote.CALL_DATE + ");";
+
+    /**
+     * Index for listing a folder, matches
+     * "parent_id=? ORDER BY type DESC, modified_date DESC, _id DESC"
+     * 列出文件夹内容时使用的索引,与按类型、修改时间和ID倒序的排序一致,排序不需要临时B树
+     */
+    private static final String CREATE_NOTE_PARENT_ID_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS note_parent_id_index ON " +
+                    TABLE.NOTE + "(" + NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+                    NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID + " DESC);";
+
+    /**
+     * Covering index for the pending alerts query "alert_date>? AND type=?", also serves
+     * the queries filtered by type, such as the folder queries of gtask sync
+     * 查询待提醒便签的覆盖索引,同时用于按类型的查询(例如同步时查询文件夹)
+     */
+    private static final String CREATE_NOTE_TYPE_ALERTED_DATE_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS note_type_alert_date_index ON " +
+                    TABLE.NOTE + "(" + NoteColumns.TYPE + "," + NoteColumns.ALERTED_DATE + ");";
+
+    /**
+     * Index for finding the note bound to a widget, "widget_id=? AND parent_id<>?"
+     * 查询桌面小部件对应便签的索引
+     */
+    private static final String CREATE_NOTE_WIDGET_ID_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS note_widget_id_index ON " +
+                    TABLE.NOTE + "(" + NoteColumns.WIDGET_ID + "," + NoteColumns.PARENT_ID + ");";
+
+    /**
+     * Full-text index over {@link DataColumns#SEARCH_TEXT} of {@link DataConstants#NOTE} and
+     * {@link DataConstants#CHECKLIST_ITEM} rows, the docid of each row is the _id of the
+     * data row it mirrors
+     * 便签内容和清单条目的全文索引表。索引的是provider分好词的文本,中文已按相邻两字切分,
+     * 使用默认分词器按空格切分即可,不依赖设备上的icu分词器
+     */
+    private static final String CREATE_DATA_FTS_TABLE_SQL =
+            "CREATE VIRTUAL TABLE " + TABLE.DATA_FTS + " USING fts4(" +
+                    DataColumns.CONTENT + ")";
+
     /**
      * Increase folder's note count when move note to the folder
-     * 当移动便签到一个文件夹时,增加该文件夹内的便签数量
+     * 当移动便签到一个文件夹时,增加该文件夹内的便签数量。
+     * UPDATE OF只说明parent_id出现在SET中,值没有变化时不需要修改计数
      */
     private static final String NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER =
             "CREATE TRIGGER increase_folder_count_on_update "+
                     " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+                    " WHEN new." + NoteColumns.PARENT_ID + "<>old." + NoteColumns.PARENT_ID +
                     " BEGIN " +
                     "  UPDATE " + TABLE.NOTE +
                     "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + " + 1" +
@@ -117,6 +192,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER =
             "CREATE TRIGGER decrease_folder_count_on_update " +
                     " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+                    " WHEN new." + NoteColumns.PARENT_ID + "<>old." + NoteColumns.PARENT_ID +
                     " BEGIN " +
                     "  UPDATE " + TABLE.NOTE +
                     "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + "-1" +
@@ -151,6 +227,59 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     "  AND " + NoteColumns.NOTES_COUNT + ">0;" +
                     " END";
 
+    /**
+     * 生成由便签正文计算摘要的SQL表达式,结果与{@link net.micode.notes.tool.DataUtils#getFormattedSnippet}
+     * 一致:去掉首尾空白后取第一行,并截断为{@link #SNIPPET_MAX_LENGTH}个字符。
+     * 旧版本SQLite不支持instr(),第一行的长度通过ltrim()去掉所有非换行字符后剩余的长度求出,
+     * 先截断再计算,避免对整段正文做字符集匹配
+     * @param content 正文所在的列
+     */
+    private static String snippetOf(String content) {
+        String head = "substr(trim(" + content + "," + SNIPPET_WHITESPACE + "),1,"
+                + SNIPPET_MAX_LENGTH + ")";
+        return "substr(" + head + ",1,length(" + head + ")-length(ltrim(" + head
+                + ",replace(" + head + ",x'0A',''))))";
+    }
+
+    /**
+     * 生成清单便签摘要的SQL表达式:按排序值取第一个条目,加上勾选标记后与旧版本清单文本的第一行一致
+     * @param noteId 便签ID所在的列
+     */
+    private static String checklistSnippetOf(String noteId) {
+        return "COALESCE((SELECT " + snippetOf("(CASE WHEN " + ChecklistItemNote.CHECKED
+                + "=1 THEN '" + ChecklistItem.TAG_CHECKED + "' ELSE '" + ChecklistItem.TAG_UNCHECKED
+                + "' END||' '||" + DataColumns.CONTENT + ")")
+                + " FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.NOTE_ID + "=" + noteId
+                + " AND " + DataColumns.MIME_TYPE + "='" + DataConstants.CHECKLIST_ITEM + "'"
+                + " ORDER BY " + ChecklistItemNote.POSITION + " LIMIT 1),'')";
+    }
+
+    /**
+     * 文本数据行对应的摘要,清单模式下正文为空,摘要取自条目
+     * @param row 文本数据行,"new"或"old"
+     */
+    private static String textSnippetOf(String row) {
+        return "CASE WHEN " + row + "." + TextNote.MODE + "=" + TextNote.MODE_CHECK_LIST
+                + " THEN " + checklistSnippetOf(row + "." + DataColumns.NOTE_ID)
+                + " ELSE " + snippetOf(row + "." + DataColumns.CONTENT) + " END";
+    }
+
+    /**
+     * 便签的文本数据行处于清单模式时成立的条件,切换回普通模式时删除条目不会覆盖由正文计算的摘要
+     * @param noteId 便签ID所在的列
+     */
+    private static String isChecklistNote(String noteId) {
+        return "EXISTS(SELECT 1 FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.NOTE_ID + "=" + noteId
+                + " AND " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'"
+                + " AND " + TextNote.MODE + "=" + TextNote.MODE_CHECK_LIST + ")";
+    }
+
+    //写入全文索引的数据类型:便签正文和清单条目
+    private static final String FTS_MIME_TYPES = "('" + DataConstants.NOTE + "','"
+            + DataConstants.CHECKLIST_ITEM + "')";
+
     /**
      * Update note's content when insert data with type {@link DataConstants#NOTE}
      * 当插入数据到数据存储器类的"NOTE"时,更新便签的内容
@@ -161,21 +290,25 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
                     " BEGIN" +
                     "  UPDATE " + TABLE.NOTE +
-                    "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+                    "   SET " + NoteColumns.SNIPPET + "=" + textSnippetOf("new") +
                     "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
                     " END";
 
     /**
-     * Update note's content when data with {@link DataConstants#NOTE} type has changed
-     * 当数据存储器类的"NOTE"改变时,更新便签的内容
+     * Update note's content when data with {@link DataConstants#NOTE} type has changed,
+     * switching between check list mode and normal mode also changes the snippet
+     * 当数据存储器类的"NOTE"的正文或模式改变时,更新便签的内容
      */
     private static final String DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER =
             "CREATE TRIGGER update_note_content_on_update " +
-                    " AFTER UPDATE ON " + TABLE.DATA +
+                    " AFTER UPDATE OF " + DataColumns.CONTENT + "," + TextNote.MODE +
+                    " ON " + TABLE.DATA +
                     " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+                    "  AND (new." + DataColumns.CONTENT + " IS NOT old." + DataColumns.CONTENT +
+                    "   OR new." + TextNote.MODE + " IS NOT old." + TextNote.MODE + ")" +
                     " BEGIN" +
                     "  UPDATE " + TABLE.NOTE +
-                    "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+                    "   SET " + NoteColumns.SNIPPET + "=" + textSnippetOf("new") +
                     "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
                     " END";
 
@@ -193,6 +326,105 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
                     " END";
 
+    /**
+     * Update snippet of check list note when an item is inserted
+     * 插入清单条目时,更新清单便签的摘要
+     */
+    private static final String DATA_UPDATE_NOTE_SNIPPET_ON_ITEM_INSERT_TRIGGER =
+            "CREATE TRIGGER update_note_snippet_on_item_insert " +
+                    " AFTER INSERT ON " + TABLE.DATA +
+                    " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.CHECKLIST_ITEM + "'" +
+                    " BEGIN" +
+                    "  UPDATE " + TABLE.NOTE +
+                    "   SET " + NoteColumns.SNIPPET + "=" + checklistSnippetOf("new." + DataColumns.NOTE_ID) +
+                    "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID +
+                    "   AND " + isChecklistNote("new." + DataColumns.NOTE_ID) + ";" +
+                    " END";
+
+    /**
+     * Update snippet of check list note when text or position of an item has changed, or the
+     * state of the first item has changed
+     * 清单条目的文本或排序值改变时,更新清单便签的摘要;摘要只包含第一个条目的勾选标记,
+     * 勾选其他条目时不需要更新
+     */
+    private static final String DATA_UPDATE_NOTE_SNIPPET_ON_ITEM_UPDATE_TRIGGER =
+            "CREATE TRIGGER update_note_snippet_on_item_update " +
+                    " AFTER UPDATE OF " + DataColumns.CONTENT + "," + ChecklistItemNote.CHECKED + "," +
+                    ChecklistItemNote.POSITION + " ON " + TABLE.DATA +
+                    " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.CHECKLIST_ITEM + "'" +
+                    "  AND (new." + DataColumns.CONTENT + " IS NOT old." + DataColumns.CONTENT +
+                    "   OR new." + ChecklistItemNote.POSITION + " IS NOT old." + ChecklistItemNote.POSITION +
+                    "   OR (new." + ChecklistItemNote.CHECKED + " IS NOT old." + ChecklistItemNote.CHECKED +
+                    "    AND NOT EXISTS(SELECT 1 FROM " + TABLE.DATA +
+                    "     WHERE " + DataColumns.NOTE_ID + "=new." + DataColumns.NOTE_ID +
+                    "     AND " + DataColumns.MIME_TYPE + "='" + DataConstants.CHECKLIST_ITEM + "'" +
+                    "     AND " + ChecklistItemNote.POSITION + "<new." + ChecklistItemNote.POSITION + ")))" +
+                    " BEGIN" +
+                    "  UPDATE " + TABLE.NOTE +
+                    "   SET " + NoteColumns.SNIPPET + "=" + checklistSnippetOf("new." + DataColumns.NOTE_ID) +
+                    "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID +
+                    "   AND " + isChecklistNote("new." + DataColumns.NOTE_ID) + ";" +
+                    " END";
+
+    /**
+     * Update snippet of check list note when an item is deleted
+     * 删除清单条目时,更新清单便签的摘要
+     */
+    private static final String DATA_UPDATE_NOTE_SNIPPET_ON_ITEM_DELETE_TRIGGER =
+            "CREATE TRIGGER update_note_snippet_on_item_delete " +
+                    " AFTER DELETE ON " + TABLE.DATA +
+                    " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.CHECKLIST_ITEM + "'" +
+                    " BEGIN" +
+                    "  UPDATE " + TABLE.NOTE +
+                    "   SET " + NoteColumns.SNIPPET + "=" + checklistSnippetOf("old." + DataColumns.NOTE_ID) +
+                    "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID +
+                    "   AND " + isChecklistNote("old." + DataColumns.NOTE_ID) + ";" +
+                    " END";
+
+    /**
+     * Add note's content to full-text index when insert data with type {@link DataConstants#NOTE}
+     * or {@link DataConstants#CHECKLIST_ITEM}
+     * 当插入"NOTE"类型的数据或清单条目时,把内容加入全文索引
+     */
+    private static final String DATA_INSERT_FTS_ON_INSERT_TRIGGER =
+            "CREATE TRIGGER insert_fts_on_insert " +
+                    " AFTER INSERT ON " + TABLE.DATA +
+                    " WHEN new." + DataColumns.MIME_TYPE + " IN " + FTS_MIME_TYPES +
+                    " BEGIN" +
+                    "  INSERT INTO " + TABLE.DATA_FTS + "(docid, " + DataColumns.CONTENT + ")" +
+                    "   VALUES(new." + DataColumns.ID + ", new." + DataColumns.SEARCH_TEXT + ");" +
+                    " END";
+
+    /**
+     * Update full-text index when content of data with {@link DataConstants#NOTE} type or
+     * a check list item has changed, checking an item does not touch the index
+     * 当"NOTE"类型数据或清单条目的分词文本改变时,更新全文索引,勾选条目不会更新索引
+     */
+    private static final String DATA_UPDATE_FTS_ON_UPDATE_TRIGGER =
+            "CREATE TRIGGER update_fts_on_update " +
+                    " AFTER UPDATE OF " + DataColumns.SEARCH_TEXT + " ON " + TABLE.DATA +
+                    " WHEN old." + DataColumns.MIME_TYPE + " IN " + FTS_MIME_TYPES +
+                    "  AND new." + DataColumns.SEARCH_TEXT + " IS NOT old." + DataColumns.SEARCH_TEXT +
+                    " BEGIN" +
+                    "  UPDATE " + TABLE.DATA_FTS +
+                    "   SET " + DataColumns.CONTENT + "=new." + DataColumns.SEARCH_TEXT +
+                    "  WHERE docid=old." + DataColumns.ID + ";" +
+                    " END";
+
+    /**
+     * Remove data from full-text index when data with {@link DataConstants#NOTE} type or
+     * a check list item has deleted
+     * 当"NOTE"类型的数据或清单条目被删除时,从全文索引中删除
+     */
+    private static final String DATA_DELETE_FTS_ON_DELETE_TRIGGER =
+            "CREATE TRIGGER delete_fts_on_delete " +
+                    " AFTER DELETE ON " + TABLE.DATA +
+                    " WHEN old." + DataColumns.MIME_TYPE + " IN " + FTS_MIME_TYPES +
+                    " BEGIN" +
+                    "  DELETE FROM " + TABLE.DATA_FTS +
+                    "   WHERE docid=old." + DataColumns.ID + ";" +
+                    " END";
+
     /**
      * Delete datas belong to note which has been deleted
      * 删除属于被删除便签的数据
@@ -207,11 +439,12 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
 
     /**
      * Delete notes belong to folder which has been deleted
-     * 删除属于被删除文件夹的便签
+     * 删除属于被删除文件夹的便签,只有文件夹下会有子项,删除便签时不需要按parent_id扫描
      */
     private static final String FOLDER_DELETE_NOTES_ON_DELETE_TRIGGER =
             "CREATE TRIGGER folder_delete_notes_on_delete " +
                     " AFTER DELETE ON " + TABLE.NOTE +
+                    " WHEN old." + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE +
                     " BEGIN" +
                     "  DELETE FROM " + TABLE.NOTE +
                     "   WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
@@ -219,12 +452,15 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
 
     /**
      * Move notes belong to folder which has been moved to trash folder
-     * 移动属于已移动到垃圾文件夹的文件夹的便签
+     * 移动属于已移动到垃圾文件夹的文件夹的便签,只在文件夹的parent_id变为回收站时触发,
+     * 普通的编辑不会执行该触发器
      */
     private static final String FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER =
             "CREATE TRIGGER folder_move_notes_on_trash " +
-                    " AFTER UPDATE ON " + TABLE.NOTE +
+                    " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
                     " WHEN new." + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
+                    "  AND old." + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER +
+                    "  AND new." + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE +
                     " BEGIN" +
                     "  UPDATE " + TABLE.NOTE +
                     "   SET " + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
@@ -238,6 +474,38 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
 
     public NotesDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        //开启预写日志,同步或导出等长时间写入时,列表和桌面小部件的查询可以并发读取,
+        //读连接池的大小由系统按设备配置限定
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * 数据库打开后调整写入相关的参数。WAL模式下synchronous=NORMAL只在检查点时同步磁盘,
+     * 掉电时最多丢失最近提交的事务而不会损坏数据库
+     * @param db db表示用到的数据库
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        db.setMaxSqlCacheSize(SQL_STATEMENT_CACHE_SIZE);
+        if (db.isReadOnly()) {
+            return;
+        }
+        execPragma(db, "PRAGMA synchronous=NORMAL");
+        execPragma(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTO_CHECKPOINT_PAGES);
+        execPragma(db, "PRAGMA journal_size_limit=" + WAL_SIZE_LIMIT_BYTES);
+    }
+
+    /**
+     * 执行PRAGMA语句,部分PRAGMA会返回结果行,需要通过查询来执行
+     */
+    private void execPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
@@ -248,6 +516,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_NOTE_TABLE_SQL);
         //当便签或文件夹发生变化时删除触发器
         reCreateNoteTableTriggers(db);
+        //创建便签表的索引
+        createNoteTableIndexes(db);
         //创建系统文件夹
         createSystemFolder(db);
         //发送调试日志消息表示便签表已经被创建
@@ -273,6 +543,13 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER);
     }
 
+    //创建便签表的索引
+    private void createNoteTableIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_PARENT_ID_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_TYPE_ALERTED_DATE_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_WIDGET_ID_INDEX_SQL);
+    }
+
     //创建系统文件夹
     private void createSystemFolder(SQLiteDatabase db) {
         ContentValues values = new ContentValues();
@@ -353,8 +630,10 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public void createDataTable(SQLiteDatabase db) {
         db.execSQL(CREATE_DATA_TABLE_SQL);
         Log.e("createDataTable","---");
+        createDataFtsTable(db);
         reCreateDataTableTriggers(db);
         db.execSQL(CREATE_DATA_NOTE_ID_INDEX_SQL);
+        db.execSQL(CREATE_DATA_PHONE_KEY_CALL_DATE_INDEX_SQL);
         Log.d(TAG, "data table has been created");
     }
 
@@ -366,10 +645,31 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_insert");
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_update");
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS insert_fts_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_fts_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS delete_fts_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_snippet_on_item_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_snippet_on_item_update");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_snippet_on_item_delete");
 
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_INSERT_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
+        db.execSQL(DATA_UPDATE_NOTE_SNIPPET_ON_ITEM_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_NOTE_SNIPPET_ON_ITEM_UPDATE_TRIGGER);
+        db.execSQL(DATA_UPDATE_NOTE_SNIPPET_ON_ITEM_DELETE_TRIGGER);
+        db.execSQL(DATA_INSERT_FTS_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_FTS_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_DELETE_FTS_ON_DELETE_TRIGGER);
+    }
+
+    /**
+     * 创建便签内容的全文索引表
+     * @param db db是使用到的数据库
+     */
+    private void createDataFtsTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.DATA_FTS);
+        db.execSQL(CREATE_DATA_FTS_TABLE_SQL);
     }
 
     /**
@@ -384,6 +684,17 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         return mInstance;
     }
 
+    /**
+     * 关闭并丢弃单例,只在测试中使用,之后的getInstance重新打开数据库
+     */
+    @VisibleForTesting
+    static synchronized void resetInstance() {
+        if (mInstance != null) {
+            mInstance.close();
+            mInstance = null;
+        }
+    }
+
     /**
      * 创建便签表和数据表
      * @param db db表示用到的数据库
@@ -420,6 +731,57 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        if (oldVersion == 4) {
+            upgradeToV5(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            upgradeToV6(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 6) {
+            upgradeToV7(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 7) {
+            //只需要按新的条件重新创建触发器
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 8) {
+            upgradeToV9(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 9) {
+            upgradeToV10(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 10) {
+            //清单条目的摘要触发器增加了条件,只需要重新创建触发器
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 11) {
+            upgradeToV12(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 12) {
+            upgradeToV13(db);
+            oldVersion++;
+        }
+
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
             reCreateDataTableTriggers(db);
@@ -472,4 +834,164 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
                 + " INTEGER NOT NULL DEFAULT 0");
     }
+
+    /**
+     * 升级到V5,创建便签内容的全文索引表并回填已有的便签内容
+     * @param db db指数据库
+     */
+    private void upgradeToV5(SQLiteDatabase db) {
+        createDataFtsTable(db);
+        db.execSQL("INSERT INTO " + TABLE.DATA_FTS + "(docid, " + DataColumns.CONTENT + ")"
+                + " SELECT " + DataColumns.ID + ", " + DataColumns.CONTENT
+                + " FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'");
+    }
+
+    /**
+     * 升级到V6,为列表、提醒、桌面小部件和同步的查询添加索引
+     * @param db db指数据库
+     */
+    private void upgradeToV6(SQLiteDatabase db) {
+        createNoteTableIndexes(db);
+        db.execSQL("ANALYZE " + TABLE.NOTE);
+    }
+
+    /**
+     * 把已有便签的摘要改写为第一行,新的触发器在升级的最后重新创建
+     */
+    private void upgradeToV7(SQLiteDatabase db) {
+        db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.SNIPPET + "=(SELECT "
+                + snippetOf(DataColumns.CONTENT) + " FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.NOTE_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID
+                + " AND " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'"
+                + " ORDER BY " + DataColumns.ID + " DESC LIMIT 1)"
+                + " WHERE " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+                + " AND " + NoteColumns.ID + " IN (SELECT " + DataColumns.NOTE_ID
+                + " FROM " + TABLE.DATA + " WHERE " + DataColumns.MIME_TYPE
+                + "='" + DataConstants.NOTE + "')");
+    }
+
+    /**
+     * 升级到V9,为已有的通话便签回填电话号码的规范化键并建立索引。
+     * 规范化规则由Java实现,旧版本SQLite中没有对应的函数,只能逐行回填
+     */
+    private void upgradeToV9(SQLiteDatabase db) {
+        Cursor cursor = db.query(TABLE.DATA,
+                new String[] { DataColumns.ID, CallNote.PHONE_NUMBER },
+                DataColumns.MIME_TYPE + "=?", new String[] { CallNote.CONTENT_ITEM_TYPE },
+                null, null, null);
+        if (cursor != null) {
+            SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE.DATA
+                    + " SET " + CallNote.PHONE_NUMBER_KEY + "=? WHERE " + DataColumns.ID + "=?");
+            try {
+                while (cursor.moveToNext()) {
+                    statement.bindString(1, phoneNumberKeyOf(cursor.getString(1)));
+                    statement.bindLong(2, cursor.getLong(0));
+                    statement.executeUpdateDelete();
+                }
+            } finally {
+                statement.close();
+                cursor.close();
+            }
+        }
+        db.execSQL(CREATE_DATA_PHONE_KEY_CALL_DATE_INDEX_SQL);
+    }
+
+    /**
+     * 升级到V10,把清单便签的文本拆分为条目数据行,文本数据行只保留模式,正文清空。
+     * 先按新的规则重建数据表触发器,迁移时由触发器维护条目的全文索引和便签摘要
+     */
+    private void upgradeToV10(SQLiteDatabase db) {
+        reCreateDataTableTriggers(db);
+        Cursor cursor = db.query(TABLE.DATA,
+                new String[] { DataColumns.ID, DataColumns.NOTE_ID, DataColumns.CONTENT },
+                DataColumns.MIME_TYPE + "=? AND " + TextNote.MODE + "=?",
+                new String[] { DataConstants.NOTE, String.valueOf(TextNote.MODE_CHECK_LIST) },
+                null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        SQLiteStatement insertItem = db.compileStatement("INSERT INTO " + TABLE.DATA + "("
+                + DataColumns.MIME_TYPE + "," + DataColumns.NOTE_ID + "," + DataColumns.CONTENT
+                + "," + ChecklistItemNote.CHECKED + "," + ChecklistItemNote.POSITION
+                + ") VALUES(?,?,?,?,?)");
+        SQLiteStatement clearText = db.compileStatement("UPDATE " + TABLE.DATA
+                + " SET " + DataColumns.CONTENT + "='' WHERE " + DataColumns.ID + "=?");
+        try {
+            while (cursor.moveToNext()) {
+                long position = 0;
+                for (ChecklistItem item : ChecklistItem.parse(cursor.getString(2))) {
+                    //与旧版本生成文本时一致,没有内容的条目不保存
+                    if (TextUtils.isEmpty(item.getText())) {
+                        continue;
+                    }
+                    position += ChecklistItem.POSITION_STEP;
+                    insertItem.bindString(1, DataConstants.CHECKLIST_ITEM);
+                    insertItem.bindLong(2, cursor.getLong(1));
+                    insertItem.bindString(3, item.getText());
+                    insertItem.bindLong(4, item.isChecked() ? 1 : 0);
+                    insertItem.bindLong(5, position);
+                    insertItem.executeInsert();
+                }
+                clearText.bindLong(1, cursor.getLong(0));
+                clearText.executeUpdateDelete();
+            }
+        } finally {
+            insertItem.close();
+            clearText.close();
+            cursor.close();
+        }
+    }
+
+    /**
+     * 升级到V12,为正文和清单条目回填分词文本,并按分词文本重建全文索引。
+     * 分词由Java实现,只能逐行回填;新的索引触发器在升级的最后重新创建
+     */
+    private void upgradeToV12(SQLiteDatabase db) {
+        Cursor cursor = db.query(TABLE.DATA,
+                new String[] { DataColumns.ID, DataColumns.CONTENT },
+                DataColumns.MIME_TYPE + " IN " + FTS_MIME_TYPES, null, null, null, null);
+        if (cursor != null) {
+            SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE.DATA
+                    + " SET " + DataColumns.SEARCH_TEXT + "=? WHERE " + DataColumns.ID + "=?");
+            try {
+                while (cursor.moveToNext()) {
+                    statement.bindString(1, SearchTokenizer.indexTextOf(cursor.getString(1)));
+                    statement.bindLong(2, cursor.getLong(0));
+                    statement.executeUpdateDelete();
+                }
+            } finally {
+                statement.close();
+                cursor.close();
+            }
+        }
+        createDataFtsTable(db);
+        db.execSQL("INSERT INTO " + TABLE.DATA_FTS + "(docid, " + DataColumns.CONTENT + ")"
+                + " SELECT " + DataColumns.ID + ", " + DataColumns.SEARCH_TEXT
+                + " FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.MIME_TYPE + " IN " + FTS_MIME_TYPES);
+    }
+
+    /**
+     * 升级到V13,文件夹索引的末尾加上ID,列表排序的最后一列也由索引提供
+     */
+    private void upgradeToV13(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS note_parent_id_index");
+        db.execSQL(CREATE_NOTE_PARENT_ID_INDEX_SQL);
+    }
+
+    /**
+     * 计算电话号码的规范化键:去掉格式字符后倒序的末尾若干位数字。
+     * {@code PHONE_NUMBERS_EQUAL}认为相等的号码得到相同的键,查询时先按键相等走索引,
+     * 再对命中的少数行做精确比较
+     * @param phoneNumber 电话号码,可以为null
+     * @return 规范化键,不会为null
+     */
+    public static String phoneNumberKeyOf(String phoneNumber) {
+        if (phoneNumber == null) {
+            return "";
+        }
+        String key = PhoneNumberUtils.toCallerIDMinMatch(phoneNumber);
+        return key == null ? "" : key;
+    }
 }
@@ -19,21 +19,37 @@ package net.micode.notes.data;
 
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.SearchColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
 //继承ContentProvider，用于进程间的数据交互（例如增，删，查，改）和共享
 public class NotesProvider extends ContentProvider {
     //声明一个UriMatcher对象,用来匹配URI，通常用来匹配内容提供器中的URI
@@ -42,6 +58,9 @@ public class NotesProvider extends ContentProvider {
     //声明一个数据库帮助对象
     private NotesDatabaseHelper mHelper;
 
+    //批量操作进行中时暂存的待通知uri,每个线程各自一份,批量操作结束时去重后统一通知
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<Set<Uri>>();
+
     //该类的标签为NotesProvider
     private static final String TAG = "NotesProvider";
 
@@ -53,6 +72,9 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_SEARCH          = 5;
     private static final int URI_SEARCH_SUGGEST  = 6;
 
+    //批量操作时,每执行这么多条操作检查一次是否有其他连接在等待,有则提交当前事务让出数据库
+    private static final int BATCH_YIELD_INTERVAL = 500;
+
     static {
         mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         /**
@@ -67,27 +89,38 @@ public class NotesProvider extends ContentProvider {
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
     }
 
+    //搜索语句中计算每个词是否匹配的派生表的别名
+    private static final String SEARCH_ROWS = "search_rows";
+
     /**
      *x'0a'表示数据库中的'\n'字符。对于搜索结果中的标题和内容，
      *为了显示更多信息，我们将修剪\n'和空白
-     * 该字符串表示搜索便签结果
+     * 该字符串表示搜索便签结果,相关度列由{@link #buildSearchQuery}补充
      */
-    private static final String NOTES_SEARCH_PROJECTION = NoteColumns.ID + ","
-            + NoteColumns.ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
+    private static final String NOTES_SEARCH_PROJECTION = TABLE.NOTE + "." + NoteColumns.ID + ","
+            + TABLE.NOTE + "." + NoteColumns.ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
             + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
-            + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
+            + "TRIM(REPLACE(" + SEARCH_ROWS + "." + DataColumns.CONTENT + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
             + R.drawable.search_result + " AS " + SearchManager.SUGGEST_COLUMN_ICON_1 + ","
             + "'" + Intent.ACTION_VIEW + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_ACTION + ","
-            + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA;
+            + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA + ",";
+
+    //参与搜索的数据类型:便签正文和清单条目,与全文索引的范围一致
+    private static final String SEARCH_MIME_TYPES = "('" + DataConstants.NOTE + "','"
+            + DataConstants.CHECKLIST_ITEM + "')";
 
     /**
-     *该字符串表示搜索片段的结果
+     * 搜索的数据行的过滤条件:便签正文和清单条目
      */
-    private static String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
-            + " FROM " + TABLE.NOTE
-            + " WHERE " + NoteColumns.SNIPPET + " LIKE ?"
-            + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
-            + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
+    private static final String SEARCH_DATA_SELECTION = " WHERE " + TABLE.DATA + "."
+            + DataColumns.MIME_TYPE + " IN " + SEARCH_MIME_TYPES;
+
+    /**
+     * 搜索的便签的过滤条件:不在回收站中的便签
+     */
+    private static final String NOTES_SEARCH_SELECTION = " WHERE " + TABLE.NOTE + "."
+            + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+            + " AND " + TABLE.NOTE + "." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
 
     /**
      * 表示一个窗口正在生成
@@ -125,8 +158,9 @@ public class NotesProvider extends ContentProvider {
             //匹配到便签子属性的URI
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(id, selectionArgs), null, null,
+                        sortOrder);
                 break;
             //匹配到便签内容的URI
             case URI_DATA:
@@ -136,8 +170,9 @@ public class NotesProvider extends ContentProvider {
             //匹配到便签内容子属性的URI
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(id, selectionArgs), null, null,
+                        sortOrder);
                 break;
             //匹配搜索
             case URI_SEARCH:
@@ -164,15 +199,18 @@ public class NotesProvider extends ContentProvider {
                     return null;
                 }
 
+                ArrayList<String> args = new ArrayList<String>();
+                String sql = buildSearchQuery(splitSearchTerms(searchString), args);
+                if (sql == null) {
+                    return null;
+                }
+
                 try {
-                    /**
-                     * 返回使用指定格式字符串和参数的格式化字符串
-                     */
-                    searchString = String.format("%%%s%%", searchString);
-                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
-                            new String[] { searchString });
+                    c = db.rawQuery(sql, args.toArray(new String[args.size()]));
                 } catch (IllegalStateException ex) {
                     Log.e(TAG, "got exception: " + ex.toString());
+                } catch (SQLiteException ex) {
+                    Log.e(TAG, "got exception: " + ex.toString());
                 }
                 break;
             default:
@@ -209,7 +247,7 @@ public class NotesProvider extends ContentProvider {
                 } else {
                     Log.d(TAG, "Wrong data format without note id:" + values.toString());
                 }
-                insertedId = dataId = db.insert(TABLE.DATA, null, values);
+                insertedId = dataId = db.insert(TABLE.DATA, null, withDerivedColumns(values));
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -217,15 +255,13 @@ public class NotesProvider extends ContentProvider {
        //当便签id合法
         if (noteId > 0) {
             // 通知便签的uri
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
         }
 
         //当数据id合法
         if (dataId > 0) {
             // 通知数据的uri
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
         }
 
         return ContentUris.withAppendedId(uri, insertedId);
@@ -244,6 +280,7 @@ public class NotesProvider extends ContentProvider {
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
         boolean deleteData = false;
+        long dataNoteId = 0;
         switch (mMatcher.match(uri)) {
             //当匹配到便签的URI
             case URI_NOTE:
@@ -262,7 +299,8 @@ public class NotesProvider extends ContentProvider {
                     break;
                 }
                 count = db.delete(TABLE.NOTE,
-                        NoteColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                        NoteColumns.ID + "=?" + parseSelection(selection),
+                        prependArg(id, selectionArgs));
                 break;
             //当匹配到便签内容的URI
             case URI_DATA:
@@ -272,8 +310,10 @@ public class NotesProvider extends ContentProvider {
             //当匹配到便签内容子属性的URI
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
+                dataNoteId = noteIdOfData(db, id);
                 count = db.delete(TABLE.DATA,
-                        DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                        DataColumns.ID + "=?" + parseSelection(selection),
+                        prependArg(id, selectionArgs));
                 deleteData = true;
                 break;
             default:
@@ -283,9 +323,9 @@ public class NotesProvider extends ContentProvider {
         if (count > 0) {
             //当删除数据成功
             if (deleteData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyNoteOfData(dataNoteId);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     }
@@ -304,29 +344,29 @@ public class NotesProvider extends ContentProvider {
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
         boolean updateData = false;
+        long dataNoteId = 0;
         switch (mMatcher.match(uri)) {
             //匹配到便签的URI
             case URI_NOTE:
-                increaseNoteVersion(-1, selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, selection, selectionArgs);
+                count = updateNoteWithVersion(db, values, selection, selectionArgs);
                 break;
             //匹配到便签子属性的URI
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                increaseNoteVersion(Long.valueOf(id), selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                count = updateNoteWithVersion(db, values, NoteColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(id, selectionArgs));
                 break;
             //匹配到便签内容的URI
             case URI_DATA:
-                count = db.update(TABLE.DATA, values, selection, selectionArgs);
+                count = db.update(TABLE.DATA, withDerivedColumns(values), selection, selectionArgs);
                 updateData = true;
                 break;
             //匹配到便签内容子属性的URI
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                dataNoteId = noteIdOfData(db, id);
+                count = db.update(TABLE.DATA, withDerivedColumns(values), DataColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(id, selectionArgs));
                 updateData = true;
                 break;
             default:
@@ -336,13 +376,410 @@ public class NotesProvider extends ContentProvider {
         //当便签数大于0
         if (count > 0) {
             if (updateData) {//当更新数据成功后通知相关uri
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyNoteOfData(dataNoteId);
+                //数据移到了另一个便签中
+                Long newNoteId = values.getAsLong(DataColumns.NOTE_ID);
+                if (newNoteId != null && dataNoteId > 0 && newNoteId != dataNoteId) {
+                    notifyNoteOfData(newNoteId);
+                }
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
+        }
+        return count;
+    }
+
+    /**
+     * 在同一个事务中执行批量操作,避免每个操作各自提交一次事务。
+     * 操作允许让步或者连续执行了{@link #BATCH_YIELD_INTERVAL}条操作时,若有其他连接在等待,
+     * 会先提交已执行的部分再继续,因此超大批量操作并不保证整体原子性
+     * @param operations operations指要执行的操作列表
+     * @return 每个操作的执行结果
+     * @throws OperationApplicationException 任一操作失败时抛出,整个事务回滚,不发出变化通知
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        boolean batchOwner = beginNotificationBatch();
+        //让步时已提交了一部分操作,即使之后回滚也需要通知
+        boolean committed = false;
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            final int numOperations = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            int opsSinceYield = 0;
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && (operation.isYieldAllowed() || opsSinceYield >= BATCH_YIELD_INTERVAL)) {
+                    committed |= db.yieldIfContendedSafely();
+                    opsSinceYield = 0;
+                }
+                results[i] = operation.apply(this, results, i);
+                opsSinceYield++;
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            endTransaction(db, batchOwner, successful, committed);
+        }
+    }
+
+    /**
+     * 在同一个事务中批量插入,每插入{@link #BATCH_YIELD_INTERVAL}行检查一次是否需要让出数据库
+     * @param uri uri指用来标识便签的uri
+     * @param values values指被插入的值数组
+     * @return 成功插入的行数
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        int count = 0;
+        boolean batchOwner = beginNotificationBatch();
+        boolean committed = false;
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0 && i % BATCH_YIELD_INTERVAL == 0) {
+                    committed |= db.yieldIfContendedSafely();
+                }
+                Uri inserted = insert(uri, values[i]);
+                if (inserted != null && ContentUris.parseId(inserted) > 0) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endTransaction(db, batchOwner, successful, committed);
         }
         return count;
     }
 
+    /**
+     * 结束批量操作的事务,只有事务提交后才发出收集的通知,回滚时丢弃。
+     * 提交本身失败时同样丢弃,并保证当前线程不再处于收集状态
+     * @param batchOwner 是否由本次批量操作开始收集通知
+     * @param successful 是否已调用setTransactionSuccessful
+     * @param committed 期间是否因让步提交过一部分操作
+     */
+    private void endTransaction(SQLiteDatabase db, boolean batchOwner, boolean successful,
+                                boolean committed) {
+        boolean notify = committed;
+        try {
+            db.endTransaction();
+            notify |= successful;
+        } finally {
+            if (batchOwner) {
+                endNotificationBatch(notify);
+            }
+        }
+    }
+
+    /**
+     * 查询数据行所属的便签,在修改或删除单个数据行之前调用
+     * @return 数据行不存在时返回0
+     */
+    private static long noteIdOfData(SQLiteDatabase db, String dataId) {
+        Cursor cursor = db.query(TABLE.DATA, new String[] { DataColumns.NOTE_ID },
+                DataColumns.ID + "=?", new String[] { dataId }, null, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 数据变化时通知所属便签的uri,观察者可以只处理这个便签;
+     * 按条件修改多行数据时不知道所属的便签,通知整个便签uri
+     * @param noteId 数据所属的便签,未知时为0
+     */
+    private void notifyNoteOfData(long noteId) {
+        notifyChange(noteId > 0 ? ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId)
+                : Notes.CONTENT_NOTE_URI);
+    }
+
+    /**
+     * 通知uri对应的数据发生了变化,批量操作进行中时只记录下来,等批量操作结束后统一通知
+     * @param uri uri指发生变化的数据的uri
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * 开始收集当前线程的变化通知
+     * @return 是否由本次调用开始收集,嵌套调用时返回false,由最外层负责发出通知
+     */
+    private boolean beginNotificationBatch() {
+        if (mPendingNotifications.get() != null) {
+            return false;
+        }
+        mPendingNotifications.set(new HashSet<Uri>());
+        return true;
+    }
+
+    /**
+     * 结束收集并发出通知。通知一个uri时其子路径的观察者也会收到通知,
+     * 因此祖先uri已在待通知集合中的uri会被跳过
+     * @param notify 是否发出通知,事务回滚时为false,丢弃收集的通知
+     */
+    private void endNotificationBatch(boolean notify) {
+        Set<Uri> pending = mPendingNotifications.get();
+        mPendingNotifications.remove();
+        if (pending == null || !notify) {
+            return;
+        }
+        for (Uri uri : pending) {
+            if (!hasPendingAncestor(pending, uri)) {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+        }
+    }
+
+    /**
+     * 判断待通知集合中是否已包含uri的某个祖先uri
+     */
+    private static boolean hasPendingAncestor(Set<Uri> pending, Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        Uri.Builder builder = uri.buildUpon().path(null).query(null).fragment(null);
+        for (int i = 0; i < segments.size() - 1; i++) {
+            builder.appendPath(segments.get(i));
+            if (pending.contains(builder.build())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把用户输入的搜索串按空白拆分为搜索词,去掉引号,避免用户输入的引号被当作MATCH语法
+     * @param searchString 用户输入的搜索串
+     * @return 搜索词,没有有效词时为空列表
+     */
+    static List<String> splitSearchTerms(String searchString) {
+        ArrayList<String> terms = new ArrayList<String>();
+        for (String term : searchString.trim().split("\\s+")) {
+            term = term.replace("\"", "");
+            if (term.length() > 0) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * 把搜索词的MATCH短语合成一个MATCH表达式,短语之间是"或"的关系,
+     * 用来筛出至少匹配一个词的数据行,每个词是否匹配由各自的短语再判断
+     * @param phrases {@link SearchTokenizer#matchPhraseOf}生成的短语
+     * @return MATCH表达式,没有短语时返回null
+     */
+    static String buildMatchString(List<String> phrases) {
+        StringBuilder match = new StringBuilder();
+        for (String phrase : phrases) {
+            if (match.length() > 0) {
+                match.append(" OR ");
+            }
+            match.append(phrase);
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * 把搜索词转换为子串匹配的LIKE模式,转义通配符,与ESCAPE '\'一起使用
+     */
+    static String buildLikePattern(String term) {
+        StringBuilder pattern = new StringBuilder(term.length() + 2);
+        pattern.append('%');
+        for (int i = 0; i < term.length(); i++) {
+            char c = term.charAt(i);
+            if (c == '\\' || c == '%' || c == '_') {
+                pattern.append('\\');
+            }
+            pattern.append(c);
+        }
+        return pattern.append('%').toString();
+    }
+
+    /**
+     * 生成搜索语句。每个词可以出现在便签的不同数据行中,例如清单便签的不同条目,
+     * 因此先在派生表中用全文索引筛出至少匹配一个词的数据行,并为每个词计算一次是否匹配,
+     * 再按便签分组,要求每个词都至少在一行中匹配。含有分隔符的词(例如"50%")
+     * 还要对正文做子串比较;没有字母、数字和文字的词被忽略。
+     * 同一便签只返回匹配词数最多的一行,按匹配词数和修改时间排序
+     * @param terms 搜索词
+     * @param args 输出语句的参数
+     * @return 搜索语句,没有可以搜索的词时返回null
+     */
+    static String buildSearchQuery(List<String> terms, List<String> args) {
+        ArrayList<String> phrases = new ArrayList<String>(terms.size());
+        ArrayList<String> searchTerms = new ArrayList<String>(terms.size());
+        for (String term : terms) {
+            String phrase = SearchTokenizer.matchPhraseOf(term);
+            if (phrase != null) {
+                phrases.add(phrase);
+                searchTerms.add(term);
+            }
+        }
+        if (phrases.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder sql = new StringBuilder(1024);
+        sql.append("SELECT ").append(NOTES_SEARCH_PROJECTION).append("MAX(");
+        for (int i = 0; i < phrases.size(); i++) {
+            if (i > 0) {
+                sql.append('+');
+            }
+            sql.append(SEARCH_ROWS).append(".t").append(i);
+        }
+        sql.append(") AS ").append(SearchColumns.MATCH_RANK);
+
+        //派生表带GROUP BY,不会被展开到外层查询,每个词的条件只计算一次,外层直接引用结果列
+        sql.append(" FROM (SELECT ")
+                .append(TABLE.DATA).append('.').append(DataColumns.ID).append(" AS ")
+                .append(DataColumns.ID).append(',')
+                .append(TABLE.DATA).append('.').append(DataColumns.NOTE_ID).append(" AS ")
+                .append(DataColumns.NOTE_ID).append(',')
+                .append(TABLE.DATA).append('.').append(DataColumns.CONTENT).append(" AS ")
+                .append(DataColumns.CONTENT);
+        for (int i = 0; i < phrases.size(); i++) {
+            String term = searchTerms.get(i);
+            sql.append(",(");
+            appendFtsCondition(sql);
+            args.add(phrases.get(i));
+            if (SearchTokenizer.hasSeparator(term)) {
+                sql.append(" AND ").append(TABLE.DATA).append('.').append(DataColumns.CONTENT)
+                        .append(" LIKE ? ESCAPE '\\'");
+                args.add(buildLikePattern(term));
+            }
+            sql.append(") AS t").append(i);
+        }
+        sql.append(" FROM ").append(TABLE.DATA).append(SEARCH_DATA_SELECTION).append(" AND ");
+        appendFtsCondition(sql);
+        args.add(buildMatchString(phrases));
+        sql.append(" GROUP BY ").append(TABLE.DATA).append('.').append(DataColumns.ID)
+                .append(") AS ").append(SEARCH_ROWS);
+
+        sql.append(" JOIN ").append(TABLE.NOTE).append(" ON ")
+                .append(TABLE.NOTE).append('.').append(NoteColumns.ID).append('=')
+                .append(SEARCH_ROWS).append('.').append(DataColumns.NOTE_ID);
+        sql.append(NOTES_SEARCH_SELECTION);
+        sql.append(" GROUP BY ").append(TABLE.NOTE).append('.').append(NoteColumns.ID)
+                .append(" HAVING ");
+        for (int i = 0; i < phrases.size(); i++) {
+            if (i > 0) {
+                sql.append(" AND ");
+            }
+            sql.append("SUM(").append(SEARCH_ROWS).append(".t").append(i).append(")>0");
+        }
+        sql.append(" ORDER BY ").append(SearchColumns.MATCH_RANK).append(" DESC, ")
+                .append(TABLE.NOTE).append('.').append(NoteColumns.MODIFIED_DATE).append(" DESC");
+        return sql.toString();
+    }
+
+    /**
+     * 添加数据行是否匹配全文索引的条件,MATCH表达式作为参数
+     */
+    private static void appendFtsCondition(StringBuilder sql) {
+        sql.append(TABLE.DATA).append('.').append(DataColumns.ID)
+                .append(" IN (SELECT docid FROM ").append(TABLE.DATA_FTS)
+                .append(" WHERE ").append(TABLE.DATA_FTS).append(" MATCH ?)");
+    }
+
+    /**
+     * 按ID集合批量删除或移动便签,一次调用只执行一条语句,不再逐条匹配uri
+     * @param method {@link Notes#METHOD_BATCH_DELETE}或{@link Notes#METHOD_BATCH_MOVE}
+     * @param arg 未使用
+     * @param extras 包含{@link Notes#EXTRA_BATCH_IDS},移动时还包含{@link Notes#EXTRA_BATCH_FOLDER_ID}
+     * @return 包含{@link Notes#EXTRA_BATCH_COUNT}的结果
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!Notes.METHOD_BATCH_DELETE.equals(method) && !Notes.METHOD_BATCH_MOVE.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        long[] ids = extras == null ? null : extras.getLongArray(Notes.EXTRA_BATCH_IDS);
+        if (ids == null || ids.length == 0 || ids.length > Notes.BATCH_MAX_IDS) {
+            throw new IllegalArgumentException("Invalid batch ids");
+        }
+        //参数个数向上取整到固定的几档,多出的位置重复最后一个ID,
+        //不同数量的ID只会生成少数几种语句,不会挤占连接的预编译语句缓存
+        int placeholders = batchPlaceholderCount(ids.length);
+        StringBuilder selection = new StringBuilder(NoteColumns.ID + " IN (");
+        String[] selectionArgs = new String[placeholders];
+        for (int i = 0; i < placeholders; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = String.valueOf(ids[Math.min(i, ids.length - 1)]);
+        }
+        selection.append(')');
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        int count;
+        if (Notes.METHOD_BATCH_DELETE.equals(method)) {
+            //小于等于0的ID是系统文件夹,不允许删除
+            selection.append(" AND ").append(NoteColumns.ID).append(">0");
+            count = db.delete(TABLE.NOTE, selection.toString(), selectionArgs);
+        } else {
+            if (!extras.containsKey(Notes.EXTRA_BATCH_FOLDER_ID)) {
+                throw new IllegalArgumentException("Missing target folder id");
+            }
+            ContentValues values = new ContentValues();
+            values.put(NoteColumns.PARENT_ID, extras.getLong(Notes.EXTRA_BATCH_FOLDER_ID));
+            values.put(NoteColumns.LOCAL_MODIFIED, 1);
+            count = updateNoteWithVersion(db, values, selection.toString(), selectionArgs);
+        }
+        if (count > 0) {
+            notifyChange(Notes.CONTENT_NOTE_URI);
+        }
+        Bundle result = new Bundle();
+        result.putInt(Notes.EXTRA_BATCH_COUNT, count);
+        return result;
+    }
+
+    /**
+     * 批量操作的ID占位符个数:不小于ID个数的2的幂,最多{@link Notes#BATCH_MAX_IDS}
+     */
+    static int batchPlaceholderCount(int count) {
+        int placeholders = 1;
+        while (placeholders < count) {
+            placeholders <<= 1;
+        }
+        return Math.min(placeholders, Notes.BATCH_MAX_IDS);
+    }
+
+    /**
+     * 写入电话号码时同时写入它的规范化键,写入正文时同时写入它的分词结果,
+     * 复制一份values,不修改调用者的对象
+     */
+    private static ContentValues withDerivedColumns(ContentValues values) {
+        if (values == null || (!values.containsKey(CallNote.PHONE_NUMBER)
+                && !values.containsKey(DataColumns.CONTENT))) {
+            return values;
+        }
+        ContentValues result = new ContentValues(values);
+        if (values.containsKey(CallNote.PHONE_NUMBER)) {
+            result.put(CallNote.PHONE_NUMBER_KEY,
+                    NotesDatabaseHelper.phoneNumberKeyOf(values.getAsString(CallNote.PHONE_NUMBER)));
+        }
+        if (values.containsKey(DataColumns.CONTENT)) {
+            result.put(DataColumns.SEARCH_TEXT,
+                    SearchTokenizer.indexTextOf(values.getAsString(DataColumns.CONTENT)));
+        }
+        return result;
+    }
+
     /**
      * 解析选择
      * @param selection
@@ -353,38 +790,61 @@ public class NotesProvider extends ContentProvider {
     }
 
     /**
-     * 提升便签版本
-     * @param id id指标识每个便签的唯一id
+     * 把id参数放在选择参数的最前面,与"_id=?"加上解析后的选择条件的占位符顺序一致
+     * @param id id指uri中的行id
+     * @param selectionArgs selectionArgs表示被选中的字符串数组
+     * @return 新的参数数组
+     */
+    private static String[] prependArg(String id, String[] selectionArgs) {
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return new String[] { id };
+        }
+        String[] args = new String[selectionArgs.length + 1];
+        args[0] = id;
+        System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        return args;
+    }
+
+    /**
+     * 更新便签并在同一条语句中提升便签版本,所有值和参数都通过绑定传入。
+     * 列按名称排序,相同列集合的更新生成相同的语句,由连接的预编译语句缓存复用
+     * @param db db指数据库
+     * @param values values指列名称到新列值的映射
      * @param selection selection表示被选中的字符串
      * @param selectionArgs selectionArgs表示被选中的字符串数组
+     * @return 被更新的行数
      */
-    private void increaseNoteVersion(long id, String selection, String[] selectionArgs) {
+    private int updateNoteWithVersion(SQLiteDatabase db, ContentValues values, String selection,
+                                      String[] selectionArgs) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+        TreeSet<String> columns = new TreeSet<String>(values.keySet());
         StringBuilder sql = new StringBuilder(120);
-        //连接一系列字符串
-        sql.append("UPDATE ");
-        sql.append(TABLE.NOTE);
-        sql.append(" SET ");
-        sql.append(NoteColumns.VERSION);
-        sql.append("=" + NoteColumns.VERSION + "+1 ");
-
-        //当id合法或被选中字符串非空
-        if (id > 0 || !TextUtils.isEmpty(selection)) {
-            sql.append(" WHERE ");
-        }
-        //当id合法
-        if (id > 0) {
-            sql.append(NoteColumns.ID + "=" + String.valueOf(id));
-        }
-        //当选中的字符串非空
+        sql.append("UPDATE ").append(TABLE.NOTE).append(" SET ");
+        for (String column : columns) {
+            sql.append(column).append("=?,");
+        }
+        sql.append(NoteColumns.VERSION).append("=").append(NoteColumns.VERSION).append("+1");
         if (!TextUtils.isEmpty(selection)) {
-            String selectString = id > 0 ? parseSelection(selection) : selection;
-            for (String args : selectionArgs) {
-                selectString = selectString.replaceFirst("\\?", args);
-            }
-            sql.append(selectString);
+            sql.append(" WHERE ").append(selection);
         }
 
-        mHelper.getWritableDatabase().execSQL(sql.toString());
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        try {
+            int index = 1;
+            for (String column : columns) {
+                DatabaseUtils.bindObjectToProgram(statement, index++, values.get(column));
+            }
+            if (selectionArgs != null) {
+                for (String arg : selectionArgs) {
+                    statement.bindString(index++, arg);
+                }
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
     }
 
     /**
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 全文索引的分词。
+ * 字母和数字组成的词(包括非ASCII字母)作为一个词;中日韩文字没有空格分词,
+ * 连续的文字按相邻两字切分,再加上最后一个字,例如"明天下午"切分为"明天 天下 下午 午",
+ * 任意长度的子串都能由相邻的词组成的短语匹配到;其余字符是分隔符。
+ * 索引的文本由分好的词以空格连接,全文索引表使用默认分词器,只按空格和ASCII标点切分,
+ * 因此索引中的词与这里的分词结果一致,不受设备上是否支持icu分词器的影响
+ */
+final class SearchTokenizer {
+
+    private SearchTokenizer() {
+    }
+
+    /**
+     * 生成写入全文索引的文本
+     * @param content 数据行的正文,可以为null
+     * @return 以空格连接的词,不会为null
+     */
+    static String indexTextOf(String content) {
+        if (content == null) {
+            return "";
+        }
+        List<String> tokens = tokenize(content);
+        StringBuilder text = new StringBuilder(content.length() * 2);
+        for (String token : tokens) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(token);
+        }
+        return text.toString();
+    }
+
+    /**
+     * 把一个搜索词转换为MATCH短语。短语中的词必须在索引中相邻出现,
+     * 最后一个词作前缀匹配,搜索词的结尾可以是索引中某个词的一部分
+     * @param term 一个搜索词
+     * @return 加引号的短语,搜索词中没有字母、数字和文字时返回null
+     */
+    static String matchPhraseOf(String term) {
+        List<String> tokens = tokenize(term);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        StringBuilder phrase = new StringBuilder(term.length() * 3 + 3);
+        phrase.append('"');
+        for (int i = 0; i < tokens.size(); i++) {
+            if (i > 0) {
+                phrase.append(' ');
+            }
+            phrase.append(tokens.get(i));
+        }
+        return phrase.append("*\"").toString();
+    }
+
+    /**
+     * 判断搜索词是否包含分词时丢弃的分隔符,例如"50%"或"a-b"。
+     * 短语只能匹配到去掉分隔符后的词,这样的搜索词还需要对正文做子串比较
+     */
+    static boolean hasSeparator(String term) {
+        for (int i = 0; i < term.length(); i++) {
+            char c = term.charAt(i);
+            if (!isCjk(c) && !Character.isLetterOrDigit(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> tokenize(String text) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            int end = i + 1;
+            if (isCjk(c)) {
+                while (end < length && isCjk(text.charAt(end))) {
+                    end++;
+                }
+                for (int j = i; j + 1 < end; j++) {
+                    tokens.add(fold(text, j, j + 2));
+                }
+                tokens.add(fold(text, end - 1, end));
+            } else if (Character.isLetterOrDigit(c)) {
+                while (end < length && Character.isLetterOrDigit(text.charAt(end))
+                        && !isCjk(text.charAt(end))) {
+                    end++;
+                }
+                tokens.add(fold(text, i, end));
+            }
+            i = end;
+        }
+        return tokens;
+    }
+
+    /**
+     * 逐个字符转为小写,与搜索高亮的比较方式一致
+     */
+    private static String fold(String text, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = Character.toLowerCase(text.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 是否为没有空格分词的中日韩文字:汉字、日文假名和韩文音节
+     */
+    private static boolean isCjk(char c) {
+        return (c >= '\u3040' && c <= '\u30FF')         //平假名、片假名
+                || (c >= '\u3400' && c <= '\u4DBF')     //汉字扩展A
+                || (c >= '\u4E00' && c <= '\u9FFF')     //基本汉字
+                || (c >= '\uAC00' && c <= '\uD7AF')     //韩文音节
+                || (c >= '\uF900' && c <= '\uFAFF')     //兼容汉字
+                || (c >= '\u3005' && c <= '\u3007');    //々〆〇
+    }
+}
@@ -25,9 +25,14 @@ import android.net.Uri;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.ChecklistItemNote;
 import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
 import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.model.ChecklistItem;
+import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.tool.ResourceParser;
 
@@ -124,6 +129,14 @@ public class SqlNote {
 
     private ArrayList<SqlData> mDataList;
 
+    //清单条目不作为单独的数据同步,按排序值读出,生成JSON时合并为文本数据中旧版本格式的清单文本
+    private ArrayList<ChecklistItem> mChecklistItems;
+
+    //从JSON中取出的旧版本格式的清单文本,普通模式时为null,提交时拆分为条目
+    private String mChecklistText;
+
+    private boolean mChecklistChanged;
+
     //初始化一个便签
     public SqlNote(Context context) {
         mContext = context;
@@ -144,6 +157,7 @@ public class SqlNote {
         mVersion = 0;
         mDiffNoteValues = new ContentValues();
         mDataList = new ArrayList<SqlData>();
+        mChecklistItems = new ArrayList<ChecklistItem>();
     }
 
     //根据环境和光标查询一个便签
@@ -153,6 +167,7 @@ public class SqlNote {
         mIsCreate = false;
         loadFromCursor(c);
         mDataList = new ArrayList<SqlData>();
+        mChecklistItems = new ArrayList<ChecklistItem>();
         if (mType == Notes.TYPE_NOTE)
             loadDataContent();
         mDiffNoteValues = new ContentValues();
@@ -165,6 +180,7 @@ public class SqlNote {
         mIsCreate = false;
         loadFromCursor(id);
         mDataList = new ArrayList<SqlData>();
+        mChecklistItems = new ArrayList<ChecklistItem>();
         if (mType == Notes.TYPE_NOTE)
             loadDataContent();
         mDiffNoteValues = new ContentValues();
@@ -208,21 +224,27 @@ public class SqlNote {
         mVersion = c.getLong(VERSION_COLUMN);
     }
 
-    //加载便签内容
+    //加载便签内容,清单条目按排序值读出
     private void loadDataContent() {
         Cursor c = null;
         mDataList.clear();
+        mChecklistItems.clear();
         try {
             c = mContentResolver.query(Notes.CONTENT_DATA_URI, SqlData.PROJECTION_DATA,
                     "(note_id=?)", new String[] {
                             String.valueOf(mId)
-                    }, null);
+                    }, ChecklistItemNote.POSITION);
             if (c != null) {
                 if (c.getCount() == 0) {
                     Log.w(TAG, "it seems that the note has not data");
                     return;
                 }
                 while (c.moveToNext()) {
+                    if (DataConstants.CHECKLIST_ITEM.equals(c.getString(SqlData.DATA_MIME_TYPE_COLUMN))) {
+                        mChecklistItems.add(new ChecklistItem(c.getString(SqlData.DATA_CONTENT_COLUMN),
+                                c.getLong(SqlData.DATA_CONTENT_DATA_1_COLUMN) == 1));
+                        continue;
+                    }
                     SqlData data = new SqlData(mContext, c);
                     mDataList.add(data);
                 }
@@ -343,6 +365,15 @@ public class SqlNote {
 
                 for (int i = 0; i < dataArray.length(); i++) {
                     JSONObject data = dataArray.getJSONObject(i);
+                    String mimeType = data.has(DataColumns.MIME_TYPE) ? data
+                            .getString(DataColumns.MIME_TYPE) : DataConstants.NOTE;
+                    if (DataConstants.CHECKLIST_ITEM.equals(mimeType)) {
+                        //条目由文本数据中的清单文本还原,不单独同步
+                        continue;
+                    }
+                    if (DataConstants.NOTE.equals(mimeType)) {
+                        data = takeChecklistText(data);
+                    }
                     SqlData sqlData = null;
                     if (data.has(DataColumns.ID)) {
                         long dataId = data.getLong(DataColumns.ID);
@@ -369,6 +400,22 @@ public class SqlNote {
         return true;
     }
 
+    /**
+     * 清单模式的文本数据取出旧版本格式的清单文本,提交时拆分为条目,文本数据行的正文保存为空
+     * @return 写入文本数据行的JSON
+     */
+    private JSONObject takeChecklistText(JSONObject data) throws JSONException {
+        mChecklistChanged = true;
+        if (!data.has(TextNote.MODE) || data.getInt(TextNote.MODE) != TextNote.MODE_CHECK_LIST) {
+            mChecklistText = null;
+            return data;
+        }
+        mChecklistText = data.has(DataColumns.CONTENT) ? data.getString(DataColumns.CONTENT) : "";
+        JSONObject textData = new JSONObject(data.toString());
+        textData.put(DataColumns.CONTENT, "");
+        return textData;
+    }
+
     //获取便签内容
     public JSONObject getContent() {
         try {
@@ -399,6 +446,11 @@ public class SqlNote {
                 for (SqlData sqlData : mDataList) {
                     JSONObject data = sqlData.getContent();
                     if (data != null) {
+                        //清单便签的条目合并为旧版本格式的文本,其他客户端可以直接读取
+                        if (DataConstants.NOTE.equals(data.getString(DataColumns.MIME_TYPE))
+                                && data.getLong(TextNote.MODE) == TextNote.MODE_CHECK_LIST) {
+                            data.put(DataColumns.CONTENT, ChecklistItem.format(mChecklistItems));
+                        }
                         dataArray.put(data);
                     }
                 }
@@ -513,6 +565,10 @@ public class SqlNote {
             }
         }
 
+        if (mType == Notes.TYPE_NOTE && mChecklistChanged) {
+            commitChecklistItems();
+        }
+
         // 刷新本地信息
         loadFromCursor(mId);
         if (mType == Notes.TYPE_NOTE)
@@ -521,4 +577,17 @@ public class SqlNote {
         mDiffNoteValues.clear();
         mIsCreate = false;
     }
+
+    /**
+     * 把JSON中的清单文本拆分为条目写入,只写入有变化的条目;普通模式时删除已有的条目
+     */
+    private void commitChecklistItems() {
+        ArrayList<ChecklistItem> items = mChecklistText == null ? new ArrayList<ChecklistItem>()
+                : ChecklistItem.parse(mChecklistText);
+        if (!DataUtils.replaceChecklistItems(mContentResolver, mId, items)) {
+            throw new ActionFailureException("update checklist items failed");
+        }
+        mChecklistText = null;
+        mChecklistChanged = false;
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 清单模式下的一个条目。
+ * 条目保存为{@link net.micode.notes.data.Notes.ChecklistItemNote}数据行;
+ * 旧版本的清单文本中每一行是一个条目,以{@link #TAG_CHECKED}或{@link #TAG_UNCHECKED}开头表示是否勾选,
+ * 分享、导出和同步时仍使用这种文本
+ */
+public class ChecklistItem {
+    //勾选和未勾选条目的前缀
+    public static final String TAG_CHECKED = String.valueOf('\u221A');
+    public static final String TAG_UNCHECKED = String.valueOf('\u25A1');
+
+    //相邻条目排序值的间隔,在两个条目之间插入时取中间值,间隔用完时才重新编号
+    public static final long POSITION_STEP = 1L << 16;
+
+    //用于列表稳定ID的序号,只在进程内唯一
+    private static long sNextKey = 1;
+
+    private final long mKey;
+
+    private String mText;
+
+    private boolean mChecked;
+
+    public ChecklistItem(String text, boolean checked) {
+        mKey = nextKey();
+        mText = text == null ? "" : text;
+        mChecked = checked;
+    }
+
+    private static synchronized long nextKey() {
+        return sNextKey++;
+    }
+
+    /**
+     * 条目在编辑期间不变的标识,用作列表的稳定ID
+     */
+    public long getKey() {
+        return mKey;
+    }
+
+    public String getText() {
+        return mText;
+    }
+
+    public void setText(String text) {
+        mText = text == null ? "" : text;
+    }
+
+    public boolean isChecked() {
+        return mChecked;
+    }
+
+    public void setChecked(boolean checked) {
+        mChecked = checked;
+    }
+
+    /**
+     * 把清单便签的文本解析为条目,忽略空行
+     */
+    public static ArrayList<ChecklistItem> parse(String text) {
+        ArrayList<ChecklistItem> items = new ArrayList<ChecklistItem>();
+        if (TextUtils.isEmpty(text)) {
+            return items;
+        }
+        for (String line : text.split("\n")) {
+            if (TextUtils.isEmpty(line)) {
+                continue;
+            }
+            if (line.startsWith(TAG_CHECKED)) {
+                items.add(new ChecklistItem(line.substring(TAG_CHECKED.length()).trim(), true));
+            } else if (line.startsWith(TAG_UNCHECKED)) {
+                items.add(new ChecklistItem(line.substring(TAG_UNCHECKED.length()).trim(), false));
+            } else {
+                items.add(new ChecklistItem(line, false));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * 把条目转换为清单便签的文本,跳过没有内容的条目
+     */
+    public static String format(List<ChecklistItem> items) {
+        StringBuilder sb = new StringBuilder();
+        for (ChecklistItem item : items) {
+            if (!TextUtils.isEmpty(item.mText)) {
+                sb.append(item.mChecked ? TAG_CHECKED : TAG_UNCHECKED).append(" ")
+                        .append(item.mText).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -21,93 +21,150 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
-import android.net.Uri;
 import android.os.RemoteException;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.ChecklistItemNote;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.Notes.TextNote;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 
 public class Note {
     private ContentValues mNoteDiffValues;
     private NoteData mNoteData;
     private static final String TAG = "Note";
-    /**
-     * Create a new note id for adding a new note to databases：为向数据库添加新便笺创建新便笺ID
-     */
-    public static synchronized long getNewNoteId(Context context, long folderId) {
-        // Create a new note in the database：
-        // 在数据库中创建新便笺
-        ContentValues values = new ContentValues();//往数据库中插入数据
-        long createdTime = System.currentTimeMillis();//获取当前系统时间
-        values.put(NoteColumns.CREATED_DATE, createdTime);//创造日期
-        values.put(NoteColumns.MODIFIED_DATE, createdTime);//修改日期
-        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);//两种类型：便签，文件夹
-        values.put(NoteColumns.LOCAL_MODIFIED, 1);//本地是否修改的标识
-        values.put(NoteColumns.PARENT_ID, folderId);//文件ID就是父ID
-        Uri uri = context.getContentResolver().insert(Notes.CONTENT_NOTE_URI, values);
-        long noteId = 0;
-        try {
-            noteId = Long.valueOf(uri.getPathSegments().get(1));
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "Get note id error :" + e.toString());
-            noteId = 0;
-        }//获取便笺ID错误
-        if (noteId == -1) {
-            throw new IllegalStateException("Wrong note id:" + noteId);
-        }//错误便签ID
-        return noteId;
-    }
 
     public Note() {
         mNoteDiffValues = new ContentValues();
         mNoteData = new NoteData();
     }
     //记录文本值的键盘输入，局部修改以及修改日期
-    public void setNoteValue(String key, String value) {
+    public synchronized void setNoteValue(String key, String value) {
         mNoteDiffValues.put(key, value);
         mNoteDiffValues.put(NoteColumns.LOCAL_MODIFIED, 1);
         mNoteDiffValues.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
     }
 
-    public void setTextData(String key, String value) {
+    public synchronized void setTextData(String key, String value) {
         mNoteData.setTextData(key, value);
     }//设置文本数据
 
-    public void setFontData(String key, int value){
+    public synchronized void setFontData(String key, int value){
         mNoteData.setFontData(key, value);
     }
 
-    public void setTextDataId(long id) {
+    public synchronized void setTextDataId(long id) {
         mNoteData.setTextDataId(id);
     }
     //设置文本数据ID
 
-    public long getTextDataId() {
+    public synchronized long getTextDataId() {
         return mNoteData.mTextDataId;
     }
     //获取文本数据
 
-    public void setCallDataId(long id) {
+    public synchronized void setCallDataId(long id) {
         mNoteData.setCallDataId(id);
     }
     //设置调用数据ID
-    public void setCallData(String key, String value) {
+
+    public synchronized long getCallDataId() {
+        return mNoteData.mCallDataId;
+    }
+    //获取调用数据ID
+    public synchronized void setCallData(String key, String value) {
         mNoteData.setCallData(key, value);
     }
     //设置调用数据
-    public boolean isLocalModified() {
+
+    /**
+     * 记录已保存的清单条目对应的数据ID
+     * @param key 条目的{@link ChecklistItem#getKey}
+     */
+    public synchronized void setChecklistItemId(long key, long dataId) {
+        mNoteData.setChecklistItemId(key, dataId);
+    }
+
+    /**
+     * 记录清单条目有变化的列,尚未保存的条目在下次保存时插入
+     * @param key 条目的{@link ChecklistItem#getKey}
+     */
+    public synchronized void setChecklistItemData(long key, ContentValues values) {
+        mNoteData.setChecklistItemData(key, values);
+    }
+
+    /**
+     * 删除清单条目,尚未保存的条目不会写入
+     * @param key 条目的{@link ChecklistItem#getKey}
+     */
+    public synchronized void deleteChecklistItem(long key) {
+        mNoteData.deleteChecklistItem(key);
+    }
+
+    public synchronized long getChecklistItemId(long key) {
+        ChecklistItemData item = mNoteData.mChecklistItems.get(key);
+        return item == null ? 0 : item.mDataId;
+    }
+
+    public synchronized boolean isLocalModified() {
         return mNoteDiffValues.size() > 0 || mNoteData.isLocalModified();
     }
 
     /**
-     * 同步更新便签信息
+     * 在一次批量操作中创建新便签并写入其数据,便签和数据在同一个事务中提交,不会只创建一半。
+     * 数据行的便签ID通过反向引用取自插入便签的结果
+     * @param context
+     * @param folderId 新便签所在的文件夹ID
+     * @return 新便签的ID,失败时返回0
+     */
+    public long syncNewNote(Context context, long folderId) {
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        ContentValues noteDiffValues;
+        ContentValues values = new ContentValues();
+        long createdTime = System.currentTimeMillis();//获取当前系统时间
+        values.put(NoteColumns.CREATED_DATE, createdTime);//创造日期
+        values.put(NoteColumns.MODIFIED_DATE, createdTime);//修改日期
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);//两种类型：便签，文件夹
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);//本地是否修改的标识
+        values.put(NoteColumns.PARENT_ID, folderId);//文件ID就是父ID
+        synchronized (this) {
+            //已修改的便签属性(如通话记录便签的文件夹)覆盖默认值
+            noteDiffValues = takeNoteDiffValues();
+            values.putAll(noteDiffValues);
+            operationList.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValues(values).build());
+            mNoteData.addOperations(operationList, 0);
+        }
+
+        ContentProviderResult[] results = applyBatch(context, operationList);
+        long noteId = 0;
+        if (results != null) {
+            try {
+                noteId = ContentUris.parseId(results[0].uri);
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Get note id error :" + e.toString());
+            }
+        }
+        synchronized (this) {
+            if (noteId == 0) {
+                restoreNoteDiffValues(noteDiffValues);
+                mNoteData.onOperationsFailed();
+            } else {
+                mNoteData.onOperationsApplied(results);
+            }
+        }
+        return noteId;
+    }
+
+    /**
+     * 同步更新便签信息,便签属性和数据的修改在一次批量操作中提交
      * @param context
      * @param noteId 需要被更新便签信息的id
      * @return
@@ -122,33 +179,97 @@ public class Note {
             return true;
         }
 
-        /**
-         * In theory, once data changed, the note should be updated on {@link NoteColumns#LOCAL_MODIFIED} and
-         *          * {@link NoteColumns#MODIFIED_DATE}. For data safety, though update note fails, we also update the
-         *          * note data info
-         */
         /**
          *         理论上，一旦数据发生变化，便签应在链接注释栏本地修改和
-         *         链接注释列修改日期。为了数据安全，虽然更新说明失败，但我们也更新了
-         *         备注数据信息
+         *         链接注释列修改日期。便签属性和数据在同一事务中写入,
+         *         失败时保留待写入的修改,下次保存时重试
          */
-        //Update用于修改表中的数据
-        if (context.getContentResolver().update(
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        ContentValues noteDiffValues;
+        synchronized (this) {
+            noteDiffValues = takeNoteDiffValues();
+            if (noteDiffValues.size() > 0) {
                 //通过withAppendedId方法将noteId添加到uri中，返回带有id的uri
-                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId)
-                , mNoteDiffValues, null, null) == 0) {
+                operationList.add(ContentProviderOperation.newUpdate(
+                        ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId))
+                        .withValues(noteDiffValues).build());
+            }
+            mNoteData.addOperations(operationList, noteId);
+        }
 
+        ContentProviderResult[] results = applyBatch(context, operationList);
+        synchronized (this) {
+            if (results == null) {
+                restoreNoteDiffValues(noteDiffValues);
+                mNoteData.onOperationsFailed();
+                return false;
+            }
+            mNoteData.onOperationsApplied(results);
+        }
+        if (noteDiffValues.size() > 0 && (results[0].count == null || results[0].count == 0)) {
             Log.e(TAG, "Update note error, should not happen");//更新说明错误，不应发生
-            // Do not return, fall through//不要返回
         }
-        //调用clear方法清除数据，避免数据叠加
-        mNoteDiffValues.clear();
+        return true;
+    }
 
-        if (mNoteData.isLocalModified()
-                && (mNoteData.pushIntoContentResolver(context, noteId) == null)) {
-            return false;
+    /**
+     * 取出待写入的便签属性,写入期间的新修改记录到新的集合中,不需要等待写入完成
+     */
+    private ContentValues takeNoteDiffValues() {
+        ContentValues values = mNoteDiffValues;
+        mNoteDiffValues = new ContentValues();
+        return values;
+    }
+
+    /**
+     * 写入失败时放回取出的便签属性,写入期间的新修改优先
+     */
+    private void restoreNoteDiffValues(ContentValues values) {
+        values.putAll(mNoteDiffValues);
+        mNoteDiffValues = values;
+    }
+
+    private static ContentProviderResult[] applyBatch(Context context,
+                                                      ArrayList<ContentProviderOperation> operationList) {
+        try {
+            ContentProviderResult[] results = context.getContentResolver().applyBatch(
+                    Notes.AUTHORITY, operationList);//通过applyBatch()函数来应用批量操作
+            if (results == null || results.length != operationList.size()) {
+                return null;
+            }
+            return results;
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            return null;//如果远程异常则进行格式化操作
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            return null;//如果操作应用程序异常则进行格式化操作
+        }
+    }
+
+    /**
+     * 一个清单条目的数据行和待写入的修改
+     */
+    private static class ChecklistItemData {
+        //数据ID,尚未插入时为0
+        long mDataId;
+
+        ContentValues mValues = new ContentValues();
+
+        //正在写入的修改,写入失败时放回
+        ContentValues mPendingValues;
+
+        //本次批量操作中插入该条目的操作位置,没有插入时为-1
+        int mInsertIndex = -1;
+
+        boolean mDeleted;
+
+        //删除操作是否在本次批量操作中
+        boolean mPendingDelete;
+
+        boolean isLocalModified() {
+            return mValues.size() > 0 || mDeleted;
         }
-        return true;
     }
 
     private class NoteData {
@@ -160,6 +281,20 @@ public class Note {
 
         private ContentValues mCallDataValues;//调用数据值
 
+        //本次批量操作中插入文本数据和通话数据的操作位置,没有插入时为-1
+        private int mTextInsertIndex = -1;
+
+        private int mCallInsertIndex = -1;
+
+        //正在写入的文本数据和通话数据,写入失败时放回
+        private ContentValues mPendingTextDataValues;
+
+        private ContentValues mPendingCallDataValues;
+
+        //按条目key保存的清单条目,每个条目只写入自己的数据行
+        private final LinkedHashMap<Long, ChecklistItemData> mChecklistItems =
+                new LinkedHashMap<Long, ChecklistItemData>();
+
         private static final String TAG = "NoteData";
 
         public NoteData() {
@@ -170,7 +305,15 @@ public class Note {
         }
 
         boolean isLocalModified() {
-            return mTextDataValues.size() > 0 || mCallDataValues.size() > 0;
+            if (mTextDataValues.size() > 0 || mCallDataValues.size() > 0) {
+                return true;
+            }
+            for (ChecklistItemData item : mChecklistItems.values()) {
+                if (item.isLocalModified()) {
+                    return true;
+                }
+            }
+            return false;
         }//文本数据值大于0
 
         void setTextDataId(long id) {
@@ -205,86 +348,182 @@ public class Note {
             mNoteDiffValues.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
         }
 
-        Uri pushIntoContentResolver(Context context, long noteId) {
-            /**
-             * Check for safety//检查安全性
-             */
-            if (noteId <= 0) {
-                throw new IllegalArgumentException("Wrong note id:" + noteId);
-            }//如果ID小于0则显示错误文本ID为：
+        void setChecklistItemId(long key, long dataId) {
+            if (dataId <= 0) {
+                throw new IllegalArgumentException("Checklist item data id should larger than 0");
+            }
+            getChecklistItem(key).mDataId = dataId;
+        }
+
+        void setChecklistItemData(long key, ContentValues values) {
+            //删除后重新加入的条目带有全部列,改为更新原来的数据行
+            ChecklistItemData item = getChecklistItem(key);
+            item.mDeleted = false;
+            item.mValues.putAll(values);
+            mNoteDiffValues.put(NoteColumns.LOCAL_MODIFIED, 1);
+            mNoteDiffValues.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
+        }
+
+        void deleteChecklistItem(long key) {
+            ChecklistItemData item = mChecklistItems.get(key);
+            if (item == null) {
+                return;
+            }
+            if (item.mDataId == 0 && item.mInsertIndex < 0) {
+                //没有插入过也没有正在插入,直接丢弃
+                mChecklistItems.remove(key);
+                return;
+            }
+            item.mDeleted = true;
+            item.mValues.clear();
+            mNoteDiffValues.put(NoteColumns.LOCAL_MODIFIED, 1);
+            mNoteDiffValues.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
+        }
+
+        private ChecklistItemData getChecklistItem(long key) {
+            ChecklistItemData item = mChecklistItems.get(key);
+            if (item == null) {
+                item = new ChecklistItemData();
+                mChecklistItems.put(key, item);
+            }
+            return item;
+        }
 
-            ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
-            ContentProviderOperation.Builder builder = null;
+        /**
+         * 把待写入的文本数据和通话数据加入批量操作,已有的数据更新,没有的数据插入
+         * @param operationList 批量操作列表
+         * @param noteId 便签ID,为0时表示便签由第一条操作插入,通过反向引用取得ID
+         */
+        void addOperations(ArrayList<ContentProviderOperation> operationList, long noteId) {
+            //取出待写入的数据,写入期间的新修改记录到新的集合中
+            mPendingTextDataValues = mTextDataValues;
+            mTextDataValues = new ContentValues();
+            mPendingCallDataValues = mCallDataValues;
+            mCallDataValues = new ContentValues();
+            mTextInsertIndex = addOperation(operationList, noteId, mTextDataId,
+                    mPendingTextDataValues, TextNote.CONTENT_ITEM_TYPE);
+            mCallInsertIndex = addOperation(operationList, noteId, mCallDataId,
+                    mPendingCallDataValues, CallNote.CONTENT_ITEM_TYPE);
+            //条目的操作放在文本数据之后,切换模式时触发器按新的模式维护摘要
+            for (ChecklistItemData item : mChecklistItems.values()) {
+                if (item.mDeleted) {
+                    if (item.mDataId > 0) {
+                        operationList.add(ContentProviderOperation.newDelete(
+                                ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, item.mDataId))
+                                .build());
+                        item.mPendingDelete = true;
+                    }
+                    continue;
+                }
+                item.mPendingValues = item.mValues;
+                item.mValues = new ContentValues();
+                item.mInsertIndex = addOperation(operationList, noteId, item.mDataId,
+                        item.mPendingValues, ChecklistItemNote.CONTENT_ITEM_TYPE);
+            }
+        }
+
+        /**
+         * @return 插入操作在列表中的位置,没有插入时返回-1
+         */
+        private int addOperation(ArrayList<ContentProviderOperation> operationList, long noteId,
+                                 long dataId, ContentValues dataValues, String mimeType) {
+            if (dataValues.size() == 0) {
+                return -1;
+            }
             //Builder设计模式，链式编程生成ContentProviderOperation对象
-            //*ContentProviderOperation类：批量更新、插入、删除数据
-            if(mTextDataValues.size() > 0) {
-                mTextDataValues.put(DataColumns.NOTE_ID, noteId);
-                if (mTextDataId == 0) {
-                    mTextDataValues.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI,
-                            mTextDataValues);
-                    //增加记录：调用ContentResolver.insert()方法，该方法接受一个要增加的记录的目标URI，调用后的返回值是新记录的URI，包含记录号。
-                    try {
-                        setTextDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Insert new text data fail with noteId" + noteId);//插入新文本数据失败，注释ID为
-                        mTextDataValues.clear();
-                        return null;}
-                    //                try{
-                    //                      代码区
-                    //              }catch(Exception e){
-                    //                      异常处理}
-                    //            代码区如果有错误，就会返回所写异常的处理。
-                } else {
-                    builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mTextDataId));
-                    builder.withValues(mTextDataValues);
-                    operationList.add(builder.build());
-                }//创建一个用于执行更新操作的Builder
-                mTextDataValues.clear();//清除
+            ContentProviderOperation.Builder builder;
+            if (dataId == 0) {
+                builder = ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                        .withValues(dataValues)
+                        .withValue(DataColumns.MIME_TYPE, mimeType);
+            } else {
+                builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                        Notes.CONTENT_DATA_URI, dataId))
+                        .withValues(dataValues);
             }
+            if (noteId > 0) {
+                builder.withValue(DataColumns.NOTE_ID, noteId);
+            } else {
+                builder.withValueBackReference(DataColumns.NOTE_ID, 0);
+            }
+            operationList.add(builder.build());
+            return dataId == 0 ? operationList.size() - 1 : -1;
+        }
 
-            if(mCallDataValues.size() > 0) {
-                mCallDataValues.put(DataColumns.NOTE_ID, noteId);
-                if (mCallDataId == 0) {
-                    mCallDataValues.put(DataColumns.MIME_TYPE, CallNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI,
-                            mCallDataValues);//增加记录：调用ContentResolver.insert()方法，该方法接受一个要增加的记录的目标URI，调用后的返回值是新记录的URI，包含记录号。
+        /**
+         * 批量操作成功后记录新插入数据的ID
+         */
+        void onOperationsApplied(ContentProviderResult[] results) {
+            try {
+                if (mTextInsertIndex >= 0) {
+                    setTextDataId(ContentUris.parseId(results[mTextInsertIndex].uri));
+                }
+                if (mCallInsertIndex >= 0) {
+                    setCallDataId(ContentUris.parseId(results[mCallInsertIndex].uri));
+                }
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Insert new data fail " + e.toString());
+            }
+            mTextInsertIndex = -1;
+            mCallInsertIndex = -1;
+            mPendingTextDataValues = null;
+            mPendingCallDataValues = null;
+            Iterator<ChecklistItemData> iterator = mChecklistItems.values().iterator();
+            while (iterator.hasNext()) {
+                ChecklistItemData item = iterator.next();
+                if (item.mPendingDelete) {
+                    if (item.mDeleted) {
+                        iterator.remove();
+                    } else {
+                        //删除期间重新加入的条目,下次保存时重新插入
+                        item.mDataId = 0;
+                        item.mPendingDelete = false;
+                    }
+                    continue;
+                }
+                if (item.mInsertIndex >= 0) {
                     try {
-                        setCallDataId(Long.valueOf(uri.getPathSegments().get(1)));
+                        item.mDataId = ContentUris.parseId(results[item.mInsertIndex].uri);
                     } catch (NumberFormatException e) {
-                        Log.e(TAG, "Insert new call data fail with noteId" + noteId);//插入新调用数据失败，注释ID为
-                        mCallDataValues.clear();
-                        return null;}
-                    //                try{
-                    //                      代码区
-                    //                  } catch(Exception e){
-                    //                      异常处理}
-                    //            代码区如果有错误，就会返回所写异常的处理。
-                } else {
-                    builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mCallDataId));
-                    builder.withValues(mCallDataValues);
-                    operationList.add(builder.build());
-                }//创建一个用于执行更新操作的Builder
-                mCallDataValues.clear();//清除
+                        Log.e(TAG, "Insert checklist item fail " + e.toString());
+                    }
+                }
+                if (item.mDeleted && item.mDataId == 0) {
+                    //插入期间被删除,插入失败时不需要再删除
+                    iterator.remove();
+                    continue;
+                }
+                item.mInsertIndex = -1;
+                item.mPendingValues = null;
             }
+        }
 
-            if (operationList.size() > 0) {
-                try {
-                    ContentProviderResult[] results = context.getContentResolver().applyBatch(
-                            Notes.AUTHORITY, operationList);//通过applyBatch()函数来应用批量操作
-                    return (results == null || results.length == 0 || results[0] == null) ? null
-                            : ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
-                } catch (RemoteException e) {
-                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-                    return null;//如果远程异常则进行格式化操作
-                } catch (OperationApplicationException e) {
-                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-                    return null;//如果操作应用程序异常则进行格式化操作
+        /**
+         * 批量操作失败后放回取出的数据,写入期间的新修改优先,下次保存时重试
+         */
+        void onOperationsFailed() {
+            mPendingTextDataValues.putAll(mTextDataValues);
+            mTextDataValues = mPendingTextDataValues;
+            mPendingCallDataValues.putAll(mCallDataValues);
+            mCallDataValues = mPendingCallDataValues;
+            mTextInsertIndex = -1;
+            mCallInsertIndex = -1;
+            mPendingTextDataValues = null;
+            mPendingCallDataValues = null;
+            Iterator<ChecklistItemData> iterator = mChecklistItems.values().iterator();
+            while (iterator.hasNext()) {
+                ChecklistItemData item = iterator.next();
+                item.mPendingDelete = false;
+                item.mInsertIndex = -1;
+                if (item.mPendingValues != null) {
+                    item.mPendingValues.putAll(item.mValues);
+                    item.mValues = item.mPendingValues;
+                    item.mPendingValues = null;
+                }
+                if (item.mDeleted && item.mDataId == 0) {
+                    iterator.remove();
                 }
             }
-            return null;
         }
     }
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.micode.notes.BuildConfig;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 便签编辑界面的自动保存。
+ * 编辑内容变化时调用{@link #notifyChanged},连续的修改在{@link #DEBOUNCE_DELAY_MS}内合并为一次保存;
+ * 保存时先在主线程把编辑器的内容写入WorkingNote并移除便签的缓存,再在后台线程中只写入有修改的字段。
+ * 所有便签的保存在同一个后台线程中依次执行,加载便签也应使用{@link #getSaveExecutor},
+ * 保证读到之前已排队的保存结果。除构造以外的方法都只能在主线程中调用
+ */
+public class NoteAutoSaver {
+    private static final String TAG = "NoteAutoSaver";
+
+    //最后一次修改后等待这么久再保存
+    public static final long DEBOUNCE_DELAY_MS = 1500;
+
+    //所有便签共用的保存线程,保证同一便签的保存按顺序执行
+    private static final ExecutorService sSaveExecutor = Executors.newSingleThreadExecutor();
+
+    //保存耗时统计,所有实例共用,只在调试版中统计
+    private static final Object sMetricsLock = new Object();
+    private static int sSaveCount;
+    private static long sTotalSaveMs;
+    private static long sMaxSaveMs;
+    private static long sLastSaveMs;
+
+    public interface Callback {
+        /**
+         * 返回当前编辑的便签,便签尚未加载时返回null
+         */
+        WorkingNote getWorkingNote();
+
+        /**
+         * 在主线程中把编辑器的内容写入WorkingNote
+         */
+        void collectChanges();
+
+        /**
+         * 后台保存完成后在主线程中调用
+         * @param saved 是否写入了数据库
+         */
+        void onSaveFinished(WorkingNote note, boolean saved);
+    }
+
+    /**
+     * 在主线程中安排延迟保存和保存完成的回调,默认使用主线程的Handler,测试时替换为手动推进的时钟
+     */
+    interface Scheduler {
+        void post(Runnable runnable);
+
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        void removeCallbacks(Runnable runnable);
+    }
+
+    private static class HandlerScheduler implements Scheduler {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        public void post(Runnable runnable) {
+            mHandler.post(runnable);
+        }
+
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            mHandler.postDelayed(runnable, delayMillis);
+        }
+
+        public void removeCallbacks(Runnable runnable) {
+            mHandler.removeCallbacks(runnable);
+        }
+    }
+
+    private final Callback mCallback;
+
+    private final Scheduler mScheduler;
+
+    private final Executor mExecutor;
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    private boolean mScheduled;
+
+    public NoteAutoSaver(Callback callback) {
+        this(callback, new HandlerScheduler(), sSaveExecutor);
+    }
+
+    /**
+     * @param scheduler 主线程的定时和回调
+     * @param executor 执行保存的后台线程
+     */
+    NoteAutoSaver(Callback callback, Scheduler scheduler, Executor executor) {
+        mCallback = callback;
+        mScheduler = scheduler;
+        mExecutor = executor;
+    }
+
+    /**
+     * 编辑内容发生变化,重新开始计时
+     */
+    public void notifyChanged() {
+        mScheduler.removeCallbacks(mSaveRunnable);
+        mScheduler.postDelayed(mSaveRunnable, DEBOUNCE_DELAY_MS);
+        mScheduled = true;
+    }
+
+    /**
+     * 立即保存尚未写入的修改,不等待保存完成
+     * @return 是否有修改需要保存
+     */
+    public boolean flush() {
+        cancel();
+        final WorkingNote note = mCallback.getWorkingNote();
+        if (note == null) {
+            return false;
+        }
+        mCallback.collectChanges();
+        if (!note.hasUnsavedChanges()) {
+            return false;
+        }
+        //界面可能在保存完成前关闭,先移除缓存,避免再次打开时读到旧的快照
+        note.onSaveQueued();
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                long start = BuildConfig.DEBUG ? SystemClock.elapsedRealtime() : 0;
+                boolean saved = false;
+                try {
+                    saved = note.saveNote();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Auto save note failed", e);
+                }
+                if (BuildConfig.DEBUG) {
+                    recordSaveLatency(SystemClock.elapsedRealtime() - start);
+                }
+                final boolean result = saved;
+                mScheduler.post(new Runnable() {
+                    public void run() {
+                        mCallback.onSaveFinished(note, result);
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 取消尚未开始的保存,已经开始的保存会继续执行
+     */
+    public void cancel() {
+        if (mScheduled) {
+            mScheduler.removeCallbacks(mSaveRunnable);
+            mScheduled = false;
+        }
+    }
+
+    /**
+     * 返回所有便签共用的保存线程,任务按提交顺序执行。
+     * 在这个线程中加载便签时,之前已交给后台的保存一定已经完成
+     */
+    public static Executor getSaveExecutor() {
+        return sSaveExecutor;
+    }
+
+    private static void recordSaveLatency(long ms) {
+        synchronized (sMetricsLock) {
+            sSaveCount++;
+            sTotalSaveMs += ms;
+            sLastSaveMs = ms;
+            if (ms > sMaxSaveMs) {
+                sMaxSaveMs = ms;
+            }
+            Log.d(TAG, "Note saved in " + ms + "ms, count:" + sSaveCount + " avg:"
+                    + (sTotalSaveMs / sSaveCount) + "ms max:" + sMaxSaveMs + "ms");
+        }
+    }
+
+    /**
+     * @return 后台保存的次数,发布版中始终为0
+     */
+    public static int getSaveCount() {
+        synchronized (sMetricsLock) {
+            return sSaveCount;
+        }
+    }
+
+    /**
+     * @return 最近一次后台保存的耗时,单位毫秒,发布版中始终为0
+     */
+    public static long getLastSaveLatencyMs() {
+        synchronized (sMetricsLock) {
+            return sLastSaveMs;
+        }
+    }
+
+    /**
+     * @return 后台保存的平均耗时,单位毫秒,发布版中始终为0
+     */
+    public static long getAverageSaveLatencyMs() {
+        synchronized (sMetricsLock) {
+            return sSaveCount == 0 ? 0 : sTotalSaveMs / sSaveCount;
+        }
+    }
+
+    /**
+     * @return 后台保存的最大耗时,单位毫秒,发布版中始终为0
+     */
+    public static long getMaxSaveLatencyMs() {
+        synchronized (sMetricsLock) {
+            return sMaxSaveMs;
+        }
+    }
+}
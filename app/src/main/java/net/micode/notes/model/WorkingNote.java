@@ -18,19 +18,28 @@ package net.micode.notes.model;
 
 import android.appwidget.AppWidgetManager;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.ChecklistItemNote;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.tool.LongHashSet;
 import net.micode.notes.tool.ResourceParser.NoteBgResources;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
 
 /**
  * 此类是用于与数据库进行数据交互的类
@@ -39,14 +48,18 @@ public class WorkingNote {
     // Note for the working note
     private Note mNote;
     // Note Id
-    // 便签ID
-    private long mNoteId;
+    // 便签ID,新便签可能在后台保存时获得ID
+    private volatile long mNoteId;
     // Note content
     // 便签内容
     private String mContent;
     // Note mode
     // 便签模式
     private int mMode;
+    //清单模式的条目,只包含有内容的条目,普通模式下为空;每次修改都替换为新的列表
+    private volatile List<ChecklistItem> mChecklistItems = Collections.emptyList();
+    //已交给Note写入的条目状态,按条目的key保存,用于找出有变化的条目
+    private final HashMap<Long, ChecklistRow> mSavedItems = new HashMap<Long, ChecklistRow>();
     //便签提醒日期
     private long mAlertDate;
     //便签修改日期
@@ -103,6 +116,10 @@ public class WorkingNote {
 
     private static final int DATA_MODE_COLUMN = 3;
 
+    private static final int DATA_CHECKED_COLUMN = 3;
+
+    private static final int DATA_POSITION_COLUMN = 4;
+
     private static final int DATA_IMAGE_PATH_COLUMN = 7;
 
     private static final int DATA_FONT_SELECT_COLUMN = 8;
@@ -141,7 +158,64 @@ public class WorkingNote {
         mFolderId = folderId;
         mIsDeleted = false;
         mNote = new Note();
+        WorkingNoteCache cache = WorkingNoteCache.getInstance(context);
+        long generation = cache.getGeneration();
         loadNote();
+        cache.put(noteId, toCacheEntry(), generation);
+    }
+
+    // Existing note construct from cached state
+    // 根据缓存的快照构造现有便签,不访问数据库
+    private WorkingNote(Context context, long noteId, WorkingNoteCache.Entry entry) {
+        mContext = context;
+        mNoteId = noteId;
+        mIsDeleted = false;
+        mNote = new Note();
+        mFolderId = entry.folderId;
+        mBgColorId = entry.bgColorId;
+        mWidgetId = entry.widgetId;
+        mWidgetType = entry.widgetType;
+        mAlertDate = entry.alertDate;
+        mModifiedDate = entry.modifiedDate;
+        mContent = entry.content;
+        mMode = entry.mode;
+        mImagePath = entry.imagePath;
+        mFontSelect = entry.fontSelect;
+        ArrayList<ChecklistItem> items = new ArrayList<ChecklistItem>(entry.checklistRows.length);
+        for (ChecklistRow row : entry.checklistRows) {
+            items.add(restoreChecklistItem(row));
+        }
+        mChecklistItems = items;
+        if (entry.textDataId > 0) {
+            mNote.setTextDataId(entry.textDataId);
+        }
+        if (entry.callDataId > 0) {
+            mNote.setCallDataId(entry.callDataId);
+        }
+    }
+
+    private WorkingNoteCache.Entry toCacheEntry() {
+        List<ChecklistItem> items = mChecklistItems;
+        ChecklistRow[] rows = new ChecklistRow[items.size()];
+        for (int i = 0; i < rows.length; i++) {
+            long key = items.get(i).getKey();
+            ChecklistRow saved = mSavedItems.get(key);
+            rows[i] = new ChecklistRow(mNote.getChecklistItemId(key), saved.text, saved.checked,
+                    saved.position);
+        }
+        return new WorkingNoteCache.Entry(mFolderId, mBgColorId, mWidgetId, mWidgetType,
+                mAlertDate, mModifiedDate, mContent, mMode, mImagePath, mFontSelect,
+                mNote.getTextDataId(), mNote.getCallDataId(), rows);
+    }
+
+    /**
+     * 由已保存的条目数据行创建条目,并记录条目对应的数据ID和状态
+     */
+    private ChecklistItem restoreChecklistItem(ChecklistRow row) {
+        ChecklistItem item = new ChecklistItem(row.text, row.checked);
+        mNote.setChecklistItemId(item.getKey(), row.dataId);
+        mSavedItems.put(item.getKey(), row);
+        return item;
     }
     //Context.getContentResolver().query获取后面的一些信息：文件名ID，颜色ID，小控件ID，小控件类型，闹钟提醒日期，修改日期
     private void loadNote() {
@@ -174,12 +248,14 @@ public class WorkingNote {
     }
       //类似于上面的Context.getContentResolver().query方法，用于获取该id便签的数据内容信息
     private void loadNoteData() {
+        //清单条目按排序值读出
         Cursor cursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI, DATA_PROJECTION,
                 DataColumns.NOTE_ID + "=?", new String[] {
                         String.valueOf(mNoteId)
-                }, null);
+                }, ChecklistItemNote.POSITION);
 
         if (cursor != null) {
+            ArrayList<ChecklistItem> items = new ArrayList<ChecklistItem>();
             if (cursor.moveToFirst()) {
                 do {
                     String type = cursor.getString(DATA_MIME_TYPE_COLUMN);
@@ -192,12 +268,18 @@ public class WorkingNote {
                         mNote.setTextDataId(cursor.getLong(DATA_ID_COLUMN));
                     } else if (DataConstants.CALL_NOTE.equals(type)) {
                         mNote.setCallDataId(cursor.getLong(DATA_ID_COLUMN));
+                    } else if (DataConstants.CHECKLIST_ITEM.equals(type)) {
+                        items.add(restoreChecklistItem(new ChecklistRow(cursor.getLong(DATA_ID_COLUMN),
+                                cursor.getString(DATA_CONTENT_COLUMN),
+                                cursor.getInt(DATA_CHECKED_COLUMN) == 1,
+                                cursor.getLong(DATA_POSITION_COLUMN))));
                     } else {
                         Log.d(TAG, "Wrong note type with type:" + type);//类型为的标签类型错误：
                     }
                 } while (cursor.moveToNext());
             }
             cursor.close();
+            mChecklistItems = items;
         } else {
             Log.e(TAG, "No data with id:" + mNoteId);//没有ID为的数据：
             throw new IllegalArgumentException("Unable to find note's data with id " + mNoteId);//找不到ID为的便笺数据
@@ -212,21 +294,34 @@ public class WorkingNote {
         note.setWidgetType(widgetType);
         return note;
     }
-    //处理便签数据
+    //处理便签数据,会查询数据库,不要在主线程中调用
     public static WorkingNote load(Context context, long id) {
         return new WorkingNote(context, id, 0);
     }
 
+    /**
+     * 从缓存中取出便签,不访问数据库,可以在主线程中调用
+     * @return 便签加载后没有变化时返回新的WorkingNote,否则返回null,需要调用{@link #load}
+     */
+    public static WorkingNote loadFromCache(Context context, long id) {
+        WorkingNoteCache.Entry entry = WorkingNoteCache.getInstance(context).get(id);
+        return entry == null ? null : new WorkingNote(context, id, entry);
+    }
+
     public synchronized boolean saveNote() {
         if (isWorthSaving()) {
             if (!existInDatabase()) {
-                if ((mNoteId = Note.getNewNoteId(mContext, mFolderId)) == 0) {
+                //新便签和它的数据在一次批量操作中写入
+                if ((mNoteId = mNote.syncNewNote(mContext, mFolderId)) == 0) {
                     Log.e(TAG, "Create new note fail with id:" + mNoteId);//使用新ID创建便签失败
                     return false;
                 }
+            } else if (!mNote.syncNote(mContext, mNoteId)) {
+                Log.e(TAG, "Sync note fail with id:" + mNoteId);
+                return false;
             }
-
-            mNote.syncNote(mContext, mNoteId);
+            //写入后立即移除缓存,不等待ContentObserver的通知,再次打开时读到刚写入的内容
+            WorkingNoteCache.getInstance(mContext).remove(mNoteId);
 
             /**
              * Update widget content if there exist any widget of this note
@@ -242,14 +337,30 @@ public class WorkingNote {
             return false;
         }
     }
+    /**
+     * 修改交给后台保存时在主线程中调用。立即移除缓存中的旧快照,
+     * 保存完成前再次打开便签时从数据库加载,而不是使用保存前的状态
+     */
+    void onSaveQueued() {
+        if (existInDatabase()) {
+            WorkingNoteCache.getInstance(mContext).remove(mNoteId);
+        }
+    }
+
     //存在于数据库中
     public boolean existInDatabase() {
         return mNoteId > 0;
     }
 
+    //是否有需要保存的修改
+    public boolean hasUnsavedChanges() {
+        return isWorthSaving();
+    }
+
     //满足下面条件即可存储
     private boolean isWorthSaving() {
-        if (mIsDeleted || (!existInDatabase() && TextUtils.isEmpty(mContent))
+        if (mIsDeleted || (!existInDatabase() && TextUtils.isEmpty(mContent)
+                && mChecklistItems.isEmpty())
                 || (existInDatabase() && !mNote.isLocalModified())) {
             return false;
         } else {
@@ -288,16 +399,115 @@ public class WorkingNote {
             mNote.setNoteValue(NoteColumns.BG_COLOR_ID, String.valueOf(id));
         }
     }
-    //设置检查列表模式
+    /**
+     * 设置检查列表模式。切换到清单模式时把正文拆分为条目,正文清空;
+     * 切换到普通模式时由条目生成正文并删除条目,没有已勾选的条目时去掉未勾选的标记。
+     * 文本只在切换时转换一次,之后的修改按条目保存,监听器在转换完成后调用
+     */
     public void setCheckListMode(int mode) {
         if (mMode != mode) {
-            if (mNoteSettingStatusListener != null) {
-                mNoteSettingStatusListener.onCheckListModeChanged(mMode, mode);
+            int oldMode = mMode;
+            if (mode == TextNote.MODE_CHECK_LIST) {
+                setChecklistItems(ChecklistItem.parse(mContent));
+                mContent = "";
+            } else {
+                boolean hasChecked = false;
+                for (ChecklistItem item : mChecklistItems) {
+                    hasChecked |= item.isChecked();
+                }
+                String text = ChecklistItem.format(mChecklistItems);
+                mContent = hasChecked ? text : text.replace(ChecklistItem.TAG_UNCHECKED + " ", "");
+                setChecklistItems(Collections.<ChecklistItem>emptyList());
             }
             mMode = mode;
+            mNote.setTextData(DataColumns.CONTENT, mContent);
             mNote.setTextData(TextNote.MODE, String.valueOf(mMode));
+            if (mNoteSettingStatusListener != null) {
+                mNoteSettingStatusListener.onCheckListModeChanged(oldMode, mode);
+            }
         }
     }
+
+    /**
+     * 设置清单模式的条目,只在主线程中调用。与已交给Note写入的状态比较,
+     * 只记录新增、删除和有变化的条目,没有内容的条目不保存
+     * @param items 编辑列表中按顺序排列的条目
+     */
+    public void setChecklistItems(List<ChecklistItem> items) {
+        ArrayList<ChecklistItem> current = new ArrayList<ChecklistItem>(items.size());
+        for (ChecklistItem item : items) {
+            if (!TextUtils.isEmpty(item.getText())) {
+                current.add(item);
+            }
+        }
+        long[] positions = assignPositions(current);
+        LongHashSet keys = new LongHashSet();
+        for (int i = 0; i < current.size(); i++) {
+            ChecklistItem item = current.get(i);
+            long key = item.getKey();
+            keys.add(key);
+            ChecklistRow saved = mSavedItems.get(key);
+            ContentValues values = new ContentValues();
+            if (saved == null || !saved.text.equals(item.getText())) {
+                values.put(ChecklistItemNote.CONTENT, item.getText());
+            }
+            if (saved == null || saved.checked != item.isChecked()) {
+                values.put(ChecklistItemNote.CHECKED, item.isChecked() ? 1 : 0);
+            }
+            if (saved == null || saved.position != positions[i]) {
+                values.put(ChecklistItemNote.POSITION, positions[i]);
+            }
+            if (values.size() > 0) {
+                mNote.setChecklistItemData(key, values);
+                mSavedItems.put(key, new ChecklistRow(0, item.getText(), item.isChecked(),
+                        positions[i]));
+            }
+        }
+        if (mSavedItems.size() > keys.size()) {
+            for (Long key : mSavedItems.keySet().toArray(new Long[mSavedItems.size()])) {
+                if (!keys.contains(key)) {
+                    mNote.deleteChecklistItem(key);
+                    mSavedItems.remove(key);
+                }
+            }
+        }
+        mChecklistItems = current;
+    }
+
+    /**
+     * 计算条目的排序值。已保存的条目保留原来的排序值,新条目取前后条目排序值的中间值,
+     * 只有间隔用完时才按{@link ChecklistItem#POSITION_STEP}重新编号所有条目
+     */
+    @VisibleForTesting
+    long[] assignPositions(List<ChecklistItem> items) {
+        int count = items.size();
+        long[] positions = new long[count];
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            ChecklistRow saved = mSavedItems.get(items.get(i).getKey());
+            if (saved != null && saved.position > previous) {
+                positions[i] = previous = saved.position;
+                continue;
+            }
+            long next = previous + 2 * ChecklistItem.POSITION_STEP;
+            for (int j = i + 1; j < count; j++) {
+                ChecklistRow following = mSavedItems.get(items.get(j).getKey());
+                if (following != null && following.position > previous) {
+                    next = following.position;
+                    break;
+                }
+            }
+            long position = previous + (next - previous) / 2;
+            if (position <= previous) {
+                for (int j = 0; j < count; j++) {
+                    positions[j] = (j + 1) * ChecklistItem.POSITION_STEP;
+                }
+                return positions;
+            }
+            positions[i] = previous = position;
+        }
+        return positions;
+    }
      //设置桌面小部件类型
     public void setWidgetType(int type) {
         if (type != mWidgetType) {
@@ -340,10 +550,23 @@ public class WorkingNote {
         return (mAlertDate > 0 ? true : false);
     }
 
+    /**
+     * @return 便签的正文,清单模式下由条目生成旧版本格式的文本,只在分享等需要完整文本时调用
+     */
     public String getContent() {
+        if (mMode == TextNote.MODE_CHECK_LIST) {
+            return ChecklistItem.format(mChecklistItems);
+        }
         return mContent;
     }
 
+    /**
+     * @return 清单模式下有内容的条目,不要修改返回的列表
+     */
+    public List<ChecklistItem> getChecklistItems() {
+        return mChecklistItems;
+    }
+
     public long getAlertDate() {
         return mAlertDate;
     }
@@ -391,6 +614,24 @@ public class WorkingNote {
         return mFontSelect;
     }
 
+    /**
+     * 已保存的清单条目状态,创建后不再修改
+     */
+    static class ChecklistRow {
+        //数据ID,只在从数据库读出时有效
+        final long dataId;
+        final String text;
+        final boolean checked;
+        final long position;
+
+        ChecklistRow(long dataId, String text, boolean checked, long position) {
+            this.dataId = dataId;
+            this.text = text == null ? "" : text;
+            this.checked = checked;
+            this.position = position;
+        }
+    }
+
     public interface NoteSettingChangedListener {
         /**
          * Called when the background color of current note has just changed
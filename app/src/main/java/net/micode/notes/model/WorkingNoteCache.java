@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.annotation.VisibleForTesting;
+
+import net.micode.notes.data.Notes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 已加载便签状态的缓存,按便签ID保存从数据库读出的快照,再次打开同一便签时不需要查询数据库。
+ * WorkingNote保存时由写入方直接移除对应的便签;同步、恢复备份等其他途径的修改
+ * 通过ContentObserver使缓存失效。provider修改数据行时通知所属便签的uri,
+ * 因此只需要观察便签uri,只有不知道涉及哪些便签的修改才清空整个缓存。每次取出时都根据快照创建新的WorkingNote,
+ * 编辑中的便签不会影响缓存的内容
+ */
+class WorkingNoteCache {
+    //缓存的最大便签数
+    private static final int MAX_ENTRIES = 16;
+
+    private static WorkingNoteCache sInstance;
+
+    /**
+     * 从数据库读出的便签状态快照,创建后不再修改
+     */
+    static class Entry {
+        final long folderId;
+        final int bgColorId;
+        final int widgetId;
+        final int widgetType;
+        final long alertDate;
+        final long modifiedDate;
+        final String content;
+        final int mode;
+        final String imagePath;
+        final int fontSelect;
+        final long textDataId;
+        final long callDataId;
+        //清单条目按排序值排列
+        final WorkingNote.ChecklistRow[] checklistRows;
+
+        Entry(long folderId, int bgColorId, int widgetId, int widgetType, long alertDate,
+              long modifiedDate, String content, int mode, String imagePath, int fontSelect,
+              long textDataId, long callDataId, WorkingNote.ChecklistRow[] checklistRows) {
+            this.folderId = folderId;
+            this.bgColorId = bgColorId;
+            this.widgetId = widgetId;
+            this.widgetType = widgetType;
+            this.alertDate = alertDate;
+            this.modifiedDate = modifiedDate;
+            this.content = content;
+            this.mode = mode;
+            this.imagePath = imagePath;
+            this.fontSelect = fontSelect;
+            this.textDataId = textDataId;
+            this.callDataId = callDataId;
+            this.checklistRows = checklistRows;
+        }
+    }
+
+    private final LinkedHashMap<Long, Entry> mEntries =
+            new LinkedHashMap<Long, Entry>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    //每次失效时加一,查询期间发生过失效的结果不放入缓存
+    private long mGeneration;
+
+    private WorkingNoteCache(Context context) {
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                invalidate(uri);
+            }
+        };
+        context.getContentResolver().registerContentObserver(Notes.CONTENT_NOTE_URI, true,
+                observer);
+    }
+
+    static synchronized WorkingNoteCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WorkingNoteCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    synchronized Entry get(long noteId) {
+        return mEntries.get(noteId);
+    }
+
+    /**
+     * 在查询数据库之前调用,得到的值传给{@link #put}
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * 放入查询结果,查询开始后发生过失效时丢弃,避免缓存旧数据
+     */
+    synchronized void put(long noteId, Entry entry, long generation) {
+        if (generation == mGeneration) {
+            mEntries.put(noteId, entry);
+        }
+    }
+
+    /**
+     * 移除便签的快照,由写入便签的一方在写入前后调用,不依赖ContentObserver的异步通知。
+     * 正在进行的查询结果也不再放入缓存
+     */
+    synchronized void remove(long noteId) {
+        mGeneration++;
+        mEntries.remove(noteId);
+    }
+
+    /**
+     * 单个便签的uri只使对应的便签失效,其他uri清空整个缓存
+     */
+    private synchronized void invalidate(Uri uri) {
+        mGeneration++;
+        if (uri != null && Notes.CONTENT_NOTE_URI.getPath().equals(parentPath(uri))) {
+            mEntries.remove(ContentUris.parseId(uri));
+        } else {
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * 丢弃单例,只在测试中使用,之后的getInstance在新的Context上重新注册观察者
+     */
+    @VisibleForTesting
+    static synchronized void resetInstance() {
+        sInstance = null;
+    }
+
+    private static String parentPath(Uri uri) {
+        String path = uri.getPath();
+        if (path == null || uri.getPathSegments().size() != 2) {
+            return null;
+        }
+        return path.substring(0, path.lastIndexOf('/'));
+    }
+}
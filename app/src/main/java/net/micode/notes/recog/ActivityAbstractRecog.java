@@ -1,12 +1,13 @@
 package net.micode.notes.recog;
 
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Trace;
 import android.util.Log;
 
 import com.baidu.aip.asrwakeup3.core.mini.AutoCheck;
 import com.baidu.aip.asrwakeup3.core.recog.MyRecognizer;
+import com.baidu.aip.asrwakeup3.core.recog.RecognizerSessionManager;
 import com.baidu.aip.asrwakeup3.core.recog.listener.IRecogListener;
 import com.baidu.aip.asrwakeup3.core.recog.listener.MessageStatusRecogListener;
 import com.baidu.aip.asrwakeup3.uiasr.activity.ActivityUiRecog;
@@ -21,10 +22,14 @@ import java.util.Map;
 public abstract class ActivityAbstractRecog extends ActivityUiRecog {
 
     /**
-     * 识别控制器，使用MyRecognizer控制识别的流程
+     * 识别控制器，使用MyRecognizer控制识别的流程。
+     * 引擎由RecognizerSessionManager在进程内共享,第一次开始录音时获取租约,
+     * 未获取或已释放时为null,使用时调用{@link #getRecognizer()}
      */
     protected MyRecognizer myRecognizer;
 
+    private RecognizerSessionManager.Lease recognizerLease;
+
     /*
      * 本Activity中是否需要调用离线命令词功能。根据此参数，判断是否需要调用SDK的ASR_KWS_LOAD_ENGINE事件
      */
@@ -41,18 +46,55 @@ public abstract class ActivityAbstractRecog extends ActivityUiRecog {
         this.enableOffline = enableOffline;
     }
 
-    @Override
-    protected void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        // 基于DEMO集成第1.1, 1.2, 1.3 步骤 初始化EventManager类并注册自定义输出事件
-        // DEMO集成步骤 1.2 新建一个回调类，识别引擎会回调这个类告知重要状态和识别结果
-        IRecogListener listener = new MessageStatusRecogListener(handler);
-        // DEMO集成步骤 1.1 1.3 初始化：new一个IRecogListener示例 & new 一个 MyRecognizer 示例,并注册输出事件
-        myRecognizer = new MyRecognizer(this, listener);
-        if (enableOffline) {
-            // 基于DEMO集成1.4 加载离线资源步骤(离线时使用)。offlineParams是固定值，复制到您的代码里即可
-            Map<String, Object> offlineParams = OfflineRecogParams.fetchOfflineParams();
-            myRecognizer.loadOfflineEngine(offlineParams);
+    /**
+     * 返回识别控制器,尚未获取时向RecognizerSessionManager获取租约。
+     * 推迟到第一次点击录音时进行,不影响界面启动;其他界面刚用过的引擎仍在空闲保留期内时直接复用
+     */
+    protected MyRecognizer getRecognizer() {
+        if (myRecognizer != null) {
+            return myRecognizer;
+        }
+        Trace.beginSection("acquireRecognizer");
+        try {
+            // 基于DEMO集成第1.1, 1.2, 1.3 步骤 初始化EventManager类并注册自定义输出事件
+            // DEMO集成步骤 1.2 新建一个回调类，识别引擎会回调这个类告知重要状态和识别结果
+            IRecogListener listener = new MessageStatusRecogListener(handler);
+            // 基于DEMO集成1.4 加载离线资源步骤(离线时使用)。offlineParams是固定值，引擎已加载时不会重复加载
+            Map<String, Object> offlineParams = enableOffline
+                    ? OfflineRecogParams.fetchOfflineParams() : null;
+            recognizerLease = RecognizerSessionManager.getInstance(this)
+                    .acquire(listener, offlineParams);
+            myRecognizer = recognizerLease.getRecognizer();
+            onRecognizerAcquired();
+        } finally {
+            Trace.endSection();
+        }
+        return myRecognizer;
+    }
+
+    /**
+     * 获取识别控制器后调用,子类在这里通过{@link #setRecogListener}替换回调
+     */
+    protected void onRecognizerAcquired() {
+    }
+
+    /**
+     * 替换本界面接收识别结果的回调
+     */
+    protected void setRecogListener(IRecogListener listener) {
+        if (recognizerLease != null) {
+            recognizerLease.setListener(listener);
+        }
+    }
+
+    /**
+     * 归还识别控制器,正在进行的识别会被取消,引擎由RecognizerSessionManager在空闲超时后释放
+     */
+    protected void releaseRecognizer() {
+        if (recognizerLease != null) {
+            recognizerLease.release();
+            recognizerLease = null;
+            myRecognizer = null;
         }
     }
 
@@ -82,7 +124,7 @@ public abstract class ActivityAbstractRecog extends ActivityUiRecog {
 
         // 这里打印出params， 填写至您自己的app中，直接调用下面这行代码即可。
         // DEMO集成步骤2.2 开始识别
-        myRecognizer.start(params);
+        getRecognizer().start(params);
     }
 
     /**
@@ -91,8 +133,9 @@ public abstract class ActivityAbstractRecog extends ActivityUiRecog {
      * 基于DEMO集成4.1 发送停止事件 停止录音
      */
     protected void stop() {
-
-        myRecognizer.stop();
+        if (myRecognizer != null) {
+            myRecognizer.stop();
+        }
     }
 
     /**
@@ -101,8 +144,9 @@ public abstract class ActivityAbstractRecog extends ActivityUiRecog {
      * 基于DEMO集成4.2 发送取消事件 取消本次识别
      */
     protected void cancel() {
-
-        myRecognizer.cancel();
+        if (myRecognizer != null) {
+            myRecognizer.cancel();
+        }
     }
 
     /**
@@ -111,10 +155,8 @@ public abstract class ActivityAbstractRecog extends ActivityUiRecog {
     @Override
     protected void onDestroy() {
 
-        // 如果之前调用过myRecognizer.loadOfflineEngine()， release()里会自动调用释放离线资源
-        // 基于DEMO5.1 卸载离线资源(离线时使用) release()方法中封装了卸载离线资源的过程
-        // 基于DEMO的5.2 退出事件管理器
-        myRecognizer.release();
+        // 基于DEMO5.1, 5.2 卸载离线资源并退出事件管理器的步骤由RecognizerSessionManager在空闲超时后执行
+        releaseRecognizer();
         Log.i(TAG, "onDestory");
         super.onDestroy();
     }
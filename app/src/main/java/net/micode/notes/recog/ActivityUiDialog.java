@@ -1,7 +1,6 @@
 package net.micode.notes.recog;
 
 import android.content.Intent;
-import android.os.Bundle;
 import android.util.Log;
 
 import com.baidu.aip.asrwakeup3.core.recog.listener.ChainRecogListener;
@@ -32,8 +31,8 @@ public class ActivityUiDialog extends ActivityAbstractRecog {
 
 
     @Override
-    protected void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
+    protected void onRecognizerAcquired() {
+        super.onRecognizerAcquired();
         /**
          * 有2个listner，一个是用户自己的业务逻辑，如MessageStatusRecogListener。另一个是UI对话框的。
          * 使用这个ChainRecogListener把两个listener和并在一起
@@ -41,7 +40,7 @@ public class ActivityUiDialog extends ActivityAbstractRecog {
         chainRecogListener = new ChainRecogListener();
         // DigitalDialogInput 输入 ，MessageStatusRecogListener可替换为用户自己业务逻辑的listener
         chainRecogListener.addListener(new MessageStatusRecogListener(handler));
-        myRecognizer.setEventListener(chainRecogListener); // 替换掉原来的listener
+        setRecogListener(chainRecogListener); // 替换掉原来的listener
 
 
     }
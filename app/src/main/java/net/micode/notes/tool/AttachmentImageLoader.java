@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 便签附件图片的加载。
+ * 图片在后台线程中按显示区域的大小降采样后解码,解码结果保存在有大小限制的内存缓存中;
+ * 原图大于显示区域时把缩小后的图片保存为磁盘缩略图,以路径、文件修改时间和显示大小区分,
+ * 原图修改后旧的缩略图不再使用,由磁盘缓存的大小限制清理。
+ * 除后台解码外的方法都只能在主线程中调用
+ */
+public class AttachmentImageLoader {
+    private static final String TAG = "AttachmentImageLoader";
+
+    //缩略图所在的缓存子目录
+    private static final String THUMBNAIL_DIR = "thumbnails";
+
+    //磁盘缩略图的总大小上限
+    private static final long MAX_DISK_CACHE_BYTES = 20 * 1024 * 1024;
+
+    private static final int THUMBNAIL_QUALITY = 85;
+
+    //解码线程,图片较大时解码耗时长,两个线程避免一张图片阻塞其他请求
+    private static final ExecutorService sDecodeExecutor = Executors.newFixedThreadPool(2);
+
+    private static AttachmentImageLoader sInstance;
+
+    public interface Callback {
+        /**
+         * 在主线程中返回加载结果
+         * @param bitmap 图片不存在或无法解码时为null
+         */
+        void onImageLoaded(String path, Bitmap bitmap);
+    }
+
+    /**
+     * 一次加载请求,界面关闭或显示其他图片时取消
+     */
+    public static class Request {
+        private volatile boolean mCancelled;
+        private Future<?> mFuture;
+        private Callback mCallback;
+
+        private Request(Callback callback) {
+            mCallback = callback;
+        }
+
+        /**
+         * 取消请求,尚未开始的解码不再执行,已完成的结果不再回调
+         */
+        public void cancel() {
+            mCancelled = true;
+            mCallback = null;
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private final File mThumbnailDir;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    //按解码后的字节数计算大小,最多使用可用内存的1/8
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    private AttachmentImageLoader(Context context) {
+        mThumbnailDir = new File(context.getCacheDir(), THUMBNAIL_DIR);
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+        mMemoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    public static synchronized AttachmentImageLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AttachmentImageLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * 加载图片,解码后的宽高不超过给定的大小。
+     * 内存缓存中已有时立即回调并返回null;内存缓存与磁盘缩略图一样以路径、文件修改时间和大小区分,
+     * 原图被覆盖后不会再使用旧的解码结果。读取修改时间只访问文件属性,不读取文件内容
+     * @return 后台加载的请求,用于取消
+     */
+    public Request load(final String path, final int maxWidth, final int maxHeight,
+            Callback callback) {
+        final long modified = TextUtils.isEmpty(path) ? 0 : new File(path).lastModified();
+        final String memoryKey = path + '|' + modified + '|' + maxWidth + 'x' + maxHeight;
+        Bitmap cached = mMemoryCache.get(memoryKey);
+        if (cached != null) {
+            callback.onImageLoaded(path, cached);
+            return null;
+        }
+        final Request request = new Request(callback);
+        request.mFuture = sDecodeExecutor.submit(new Runnable() {
+            public void run() {
+                if (request.isCancelled()) {
+                    return;
+                }
+                Bitmap bitmap = null;
+                try {
+                    bitmap = decode(path, modified, maxWidth, maxHeight);
+                } catch (OutOfMemoryError e) {
+                    Log.e(TAG, "Decode image out of memory: " + path);
+                }
+                if (bitmap != null) {
+                    mMemoryCache.put(memoryKey, bitmap);
+                }
+                final Bitmap result = bitmap;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        Callback target = request.mCallback;
+                        if (!request.isCancelled() && target != null) {
+                            target.onImageLoaded(path, result);
+                        }
+                    }
+                });
+            }
+        });
+        return request;
+    }
+
+    /**
+     * 在后台线程中解码,优先使用磁盘缩略图
+     * @param modified 请求时读取的文件修改时间,与内存缓存的键一致
+     */
+    private Bitmap decode(String path, long modified, int maxWidth, int maxHeight) {
+        if (TextUtils.isEmpty(path)) {
+            return null;
+        }
+        File source = new File(path);
+        if (!source.isFile()) {
+            return null;
+        }
+        File thumbnail = new File(mThumbnailDir,
+                thumbnailName(path, modified, maxWidth, maxHeight));
+        if (thumbnail.isFile()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getPath());
+            if (bitmap != null) {
+                //记录使用时间,清理缓存时先删除最久未使用的缩略图
+                thumbnail.setLastModified(System.currentTimeMillis());
+                return bitmap;
+            }
+        }
+
+        //只读取图片大小,不分配像素内存
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        boolean needScale = options.outWidth > maxWidth || options.outHeight > maxHeight;
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight,
+                maxWidth, maxHeight);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (bitmap == null || !needScale) {
+            return bitmap;
+        }
+
+        //降采样只能按2的幂缩小,再缩放到不超过显示区域的大小
+        float scale = Math.min((float) maxWidth / bitmap.getWidth(),
+                (float) maxHeight / bitmap.getHeight());
+        if (scale < 1f) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+        saveThumbnail(bitmap, thumbnail);
+        return bitmap;
+    }
+
+    /**
+     * 计算2的幂的降采样倍数,保证解码后的图片不小于显示区域
+     */
+    private static int calculateSampleSize(int width, int height, int maxWidth, int maxHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= maxWidth && height / (sampleSize * 2) >= maxHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void saveThumbnail(Bitmap bitmap, File thumbnail) {
+        if (!mThumbnailDir.isDirectory() && !mThumbnailDir.mkdirs()) {
+            return;
+        }
+        //先写入临时文件,避免其他线程读到不完整的缩略图
+        File temp = new File(thumbnail.getPath() + ".tmp" + Thread.currentThread().getId());
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            Bitmap.CompressFormat format = bitmap.hasAlpha()
+                    ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+            bitmap.compress(format, THUMBNAIL_QUALITY, out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(thumbnail)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Save thumbnail failed: " + e.toString());
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Close thumbnail failed: " + e.toString());
+                }
+            }
+        }
+        trimDiskCache();
+    }
+
+    /**
+     * 缩略图总大小超过上限时,按最后使用时间从旧到新删除
+     */
+    private synchronized void trimDiskCache() {
+        File[] files = mThumbnailDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_DISK_CACHE_BYTES) {
+            return;
+        }
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer lhs, Integer rhs) {
+                return modified[lhs] < modified[rhs] ? -1 : (modified[lhs] == modified[rhs] ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < order.length && total > MAX_DISK_CACHE_BYTES; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static String thumbnailName(String path, long modified, int maxWidth, int maxHeight) {
+        String key = path + '|' + modified + '|' + maxWidth + 'x' + maxHeight;
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode()) + '_' + modified;
+        } catch (UnsupportedEncodingException e) {
+            return Integer.toHexString(key.hashCode()) + '_' + modified;
+        }
+    }
+}
@@ -28,6 +28,7 @@ import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -120,6 +121,8 @@ public class BackupUtils {
         //数据列的协议类型为1
         private static final int DATA_COLUMN_CALL_DATE = 2;
         //数据列调用日期为2
+        private static final int DATA_COLUMN_MODE = 2;
+        //文本数据的模式与通话日期同为DATA1
         private static final int DATA_COLUMN_PHONE_NUMBER = 4;
         //数据列电话号码为4
         private final String [] TEXT_FORMAT;//文本格式
@@ -202,7 +205,11 @@ public class BackupUtils {
                                         location));//打印呼叫附件位置
                             }
                         } else if (DataConstants.NOTE.equals(mimeType)) {
-                            String content = dataCursor.getString(DATA_COLUMN_CONTENT);//获取数据列内容
+                            //清单便签的正文为空,按条目生成旧版本格式的文本
+                            String content = dataCursor.getInt(DATA_COLUMN_MODE) == TextNote.MODE_CHECK_LIST
+                                    ? DataUtils.getChecklistText(mContext.getContentResolver(),
+                                            Long.parseLong(noteId))
+                                    : dataCursor.getString(DATA_COLUMN_CONTENT);//获取数据列内容
                             if (!TextUtils.isEmpty(content)) {
                                 ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
                                         content));//打印呼叫附件位置
@@ -17,27 +17,62 @@
 package net.micode.notes.tool;
 
 import android.content.ContentProviderOperation;
-import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.os.Bundle;
 import android.os.RemoteException;
+import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.ChecklistItemNote;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper;
+import net.micode.notes.model.ChecklistItem;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 
 
 public class DataUtils {
     public static final String TAG = "DataUtils";
+
+    /**
+     * 批量操作的进度回调,在执行批量操作的线程中调用
+     */
+    public interface BatchProgressListener {
+        /**
+         * @param done 已处理的ID数
+         * @param total ID总数
+         */
+        void onBatchProgress(int done, int total);
+
+        /**
+         * 每处理完一批ID后检查,返回true时停止处理剩余的ID
+         */
+        boolean isBatchCancelled();
+    }
+
     public static boolean batchDeleteNotes(ContentResolver resolver, HashSet<Long> ids) {//批量删除注释
+        return batchDeleteNotes(resolver, ids, null);
+    }
+
+    /**
+     * 批量删除便签,每{@link Notes#BATCH_MAX_IDS}个ID执行一条删除语句
+     * @param listener 进度回调,可以为null
+     * @return 全部删除成功时返回true,出错或被取消时返回false
+     */
+    public static boolean batchDeleteNotes(ContentResolver resolver, HashSet<Long> ids,
+                                           BatchProgressListener listener) {
         if (ids == null) {
             Log.d(TAG, "the ids is null");//id为空
             return true;
@@ -46,30 +81,10 @@ public class DataUtils {
             Log.d(TAG, "no id is in the hashset");//容器中没有id
             return true;
         }
-
-        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();//给数组列表分配空间
-        for (long id : ids) {
-            if(id == Notes.ID_ROOT_FOLDER) {
-                Log.e(TAG, "Don't delete system folder root");//不删除系统文件夹根目录
-                continue;
-            }
-            ContentProviderOperation.Builder builder = ContentProviderOperation
-                    .newDelete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));//创建复杂对象内容提供程序操作
-            operationList.add(builder.build());
+        if (ids.contains((long) Notes.ID_ROOT_FOLDER)) {
+            Log.e(TAG, "Don't delete system folder root");//不删除系统文件夹根目录,由provider过滤
         }
-        try {
-            ContentProviderResult[] results = resolver.applyBatch(Notes.AUTHORITY, operationList);//批量操作
-            if (results == null || results.length == 0 || results[0] == null) {
-                Log.d(TAG, "delete notes failed, ids:" + ids.toString());//删除便签失败，ID:
-                return false;
-            }//删除便签
-            return true;
-        } catch (RemoteException e) {
-            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        } catch (OperationApplicationException e) {
-            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        }//排除异常
-        return false;
+        return applyBatchCall(resolver, Notes.METHOD_BATCH_DELETE, ids, null, listener);
     }
 
     public static void moveNoteToFoler(ContentResolver resolver, long id, long srcFolderId, long desFolderId) {//将便签移到文件夹内
@@ -82,33 +97,61 @@ public class DataUtils {
 
     public static boolean batchMoveToFolder(ContentResolver resolver, HashSet<Long> ids,
                                             long folderId) {//批量移动到文件夹
+        return batchMoveToFolder(resolver, ids, folderId, null);
+    }
+
+    /**
+     * 批量移动便签到文件夹,每{@link Notes#BATCH_MAX_IDS}个ID执行一条更新语句
+     * @param listener 进度回调,可以为null
+     * @return 全部移动成功时返回true,出错或被取消时返回false
+     */
+    public static boolean batchMoveToFolder(ContentResolver resolver, HashSet<Long> ids,
+                                            long folderId, BatchProgressListener listener) {
         if (ids == null) {
             Log.d(TAG, "the ids is null");//id为空
             return true;
         }
+        Bundle extras = new Bundle();
+        extras.putLong(Notes.EXTRA_BATCH_FOLDER_ID, folderId);
+        return applyBatchCall(resolver, Notes.METHOD_BATCH_MOVE, ids, extras, listener);
+    }
 
-        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();//给数组列表分配空间
+    /**
+     * 把ID集合分成不超过{@link Notes#BATCH_MAX_IDS}个的批次,每批调用一次provider,
+     * 每批在一条语句中完成,批次之间报告进度并检查是否取消
+     */
+    private static boolean applyBatchCall(ContentResolver resolver, String method,
+                                          HashSet<Long> ids, Bundle extras,
+                                          BatchProgressListener listener) {
+        int total = ids.size();
+        long[] chunk = new long[Math.min(total, Notes.BATCH_MAX_IDS)];
+        int size = 0;
+        int done = 0;
         for (long id : ids) {
-            ContentProviderOperation.Builder builder = ContentProviderOperation
-                    .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));//创建复杂对象内容提供程序操作
-            builder.withValue(NoteColumns.PARENT_ID, folderId);
-            builder.withValue(NoteColumns.LOCAL_MODIFIED, 1);
-            operationList.add(builder.build());//添加操作表
-        }
-
-        try {
-            ContentProviderResult[] results = resolver.applyBatch(Notes.AUTHORITY, operationList);//通过applyBatch()函数来应用批量操作
-            if (results == null || results.length == 0 || results[0] == null) {
-                Log.d(TAG, "delete notes failed, ids:" + ids.toString());//删除便签错误，id：
+            chunk[size++] = id;
+            if (size < chunk.length && done + size < total) {
+                continue;
+            }
+            if (listener != null && listener.isBatchCancelled()) {
+                Log.d(TAG, "Batch " + method + " cancelled after " + done + " of " + total);
                 return false;
             }
-            return true;
-        } catch (RemoteException e) {
-            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        } catch (OperationApplicationException e) {
-            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        }//排除异常
-        return false;
+            Bundle args = extras == null ? new Bundle() : new Bundle(extras);
+            args.putLongArray(Notes.EXTRA_BATCH_IDS,
+                    size == chunk.length ? chunk : Arrays.copyOf(chunk, size));
+            try {
+                resolver.call(Notes.CONTENT_NOTE_URI, method, null, args);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                return false;
+            }
+            done += size;
+            size = 0;
+            if (listener != null) {
+                listener.onBatchProgress(done, total);
+            }
+        }
+        return true;
     }
 
     /**
@@ -224,6 +267,41 @@ public class DataUtils {
         return set;
     }
 
+    /**
+     * 按便签ID批量查询便签的桌面小部件,每次查询最多{@link Notes#BATCH_MAX_IDS}个ID
+     */
+    public static HashSet<AppWidgetAttribute> getNotesWidget(ContentResolver resolver,
+                                                           Collection<Long> noteIds) {
+        HashSet<AppWidgetAttribute> set = new HashSet<AppWidgetAttribute>();
+        Long[] ids = noteIds.toArray(new Long[noteIds.size()]);
+        for (int start = 0; start < ids.length; start += Notes.BATCH_MAX_IDS) {
+            int end = Math.min(start + Notes.BATCH_MAX_IDS, ids.length);
+            StringBuilder selection = new StringBuilder(NoteColumns.ID + " IN (");
+            String[] selectionArgs = new String[end - start];
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+                selectionArgs[i - start] = String.valueOf(ids[i]);
+            }
+            selection.append(')');
+            Cursor c = resolver.query(Notes.CONTENT_NOTE_URI,
+                    new String[] { NoteColumns.WIDGET_ID, NoteColumns.WIDGET_TYPE },
+                    selection.toString(), selectionArgs, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        AppWidgetAttribute widget = new AppWidgetAttribute();
+                        widget.widgetId = c.getInt(0);
+                        widget.widgetType = c.getInt(1);
+                        set.add(widget);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+        }
+        return set;
+    }
+
     public static String getCallNumberByNoteId(ContentResolver resolver, long noteId) {//按便笺ID获取电话号码
         Cursor cursor = resolver.query(Notes.CONTENT_DATA_URI,
                 new String [] { CallNote.PHONE_NUMBER },
@@ -243,28 +321,169 @@ public class DataUtils {
         return "";
     }
 
+    /**
+     * 批量获取通话便签的电话号码
+     * @param noteIds 通话便签的ID
+     * @return 便签ID到电话号码的映射,没有电话号码的便签不在其中
+     */
+    public static HashMap<Long, String> getCallNumbersByNoteIds(ContentResolver resolver,
+                                                              Collection<Long> noteIds) {
+        HashMap<Long, String> numbers = new HashMap<Long, String>();
+        if (noteIds == null || noteIds.isEmpty()) {
+            return numbers;
+        }
+        Long[] ids = noteIds.toArray(new Long[noteIds.size()]);
+        for (int start = 0; start < ids.length; start += Notes.BATCH_MAX_IDS) {
+            int end = Math.min(start + Notes.BATCH_MAX_IDS, ids.length);
+            StringBuilder selection = new StringBuilder(CallNote.MIME_TYPE + "=? AND "
+                    + CallNote.NOTE_ID + " IN (");
+            String[] selectionArgs = new String[end - start + 1];
+            selectionArgs[0] = CallNote.CONTENT_ITEM_TYPE;
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+                selectionArgs[i - start + 1] = String.valueOf(ids[i]);
+            }
+            selection.append(')');
+            Cursor cursor = resolver.query(Notes.CONTENT_DATA_URI,
+                    new String [] { CallNote.NOTE_ID, CallNote.PHONE_NUMBER },
+                    selection.toString(), selectionArgs, null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        numbers.put(cursor.getLong(0), cursor.getString(1));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+        return numbers;
+    }
+
     public static long getNoteIdByPhoneNumberAndCallDate(ContentResolver resolver, String phoneNumber, long callDate) {
-        //通过电话号码和通话日期获取便条ID
+        //先按电话号码的规范化键和通话日期走索引,只对命中的行再用PHONE_NUMBERS_EQUAL精确比较
         Cursor cursor = resolver.query(Notes.CONTENT_DATA_URI,
                 new String [] { CallNote.NOTE_ID },
-                CallNote.CALL_DATE + "=? AND " + CallNote.MIME_TYPE + "=? AND PHONE_NUMBERS_EQUAL("
+                CallNote.PHONE_NUMBER_KEY + "=? AND " + CallNote.CALL_DATE + "=? AND "
+                        + CallNote.MIME_TYPE + "=? AND PHONE_NUMBERS_EQUAL("
                         + CallNote.PHONE_NUMBER + ",?)",
-                new String [] { String.valueOf(callDate), CallNote.CONTENT_ITEM_TYPE, phoneNumber },
+                new String [] { NotesDatabaseHelper.phoneNumberKeyOf(phoneNumber),
+                        String.valueOf(callDate), CallNote.CONTENT_ITEM_TYPE, phoneNumber },
                 null);//通过电话号码和通话日期获取便条ID
 
         if (cursor != null) {//游标不为空
-            if (cursor.moveToFirst()) {
-                try {
+            try {
+                if (cursor.moveToFirst()) {
                     return cursor.getLong(0);
-                } catch (IndexOutOfBoundsException e) {
-                    Log.e(TAG, "Get call note id fails " + e.toString());//获取通话记录ID失败
                 }
+            } catch (IndexOutOfBoundsException e) {
+                Log.e(TAG, "Get call note id fails " + e.toString());//获取通话记录ID失败
+            } finally {
+                cursor.close();//关闭游标
             }
-            cursor.close();//关闭游标
         }
         return 0;
     }
 
+    /**
+     * 按排序值读取清单便签的条目,生成旧版本格式的清单文本,用于桌面小部件和导出
+     */
+    public static String getChecklistText(ContentResolver resolver, long noteId) {
+        Cursor cursor = resolver.query(Notes.CONTENT_DATA_URI,
+                new String [] { ChecklistItemNote.CONTENT, ChecklistItemNote.CHECKED },
+                ChecklistItemNote.NOTE_ID + "=? AND " + ChecklistItemNote.MIME_TYPE + "=?",
+                new String [] { String.valueOf(noteId), ChecklistItemNote.CONTENT_ITEM_TYPE },
+                ChecklistItemNote.POSITION);
+        ArrayList<ChecklistItem> items = new ArrayList<ChecklistItem>();
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    items.add(new ChecklistItem(cursor.getString(0), cursor.getInt(1) == 1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return ChecklistItem.format(items);
+    }
+
+    /**
+     * 把清单便签的条目改写为给定的条目,按位置与已有的条目比较,只更新有变化的条目,
+     * 多出的条目删除,不足的条目插入,所有修改在一次批量操作中提交。用于同步时从旧版本格式的文本还原条目
+     * @param items 新的条目,没有内容的条目会被跳过
+     * @return 是否写入成功
+     */
+    public static boolean replaceChecklistItems(ContentResolver resolver, long noteId,
+                                                List<ChecklistItem> items) {
+        ArrayList<ChecklistItem> newItems = new ArrayList<ChecklistItem>();
+        for (ChecklistItem item : items) {
+            if (!TextUtils.isEmpty(item.getText())) {
+                newItems.add(item);
+            }
+        }
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        Cursor cursor = resolver.query(Notes.CONTENT_DATA_URI,
+                new String [] { ChecklistItemNote.ID, ChecklistItemNote.CONTENT,
+                        ChecklistItemNote.CHECKED, ChecklistItemNote.POSITION },
+                ChecklistItemNote.NOTE_ID + "=? AND " + ChecklistItemNote.MIME_TYPE + "=?",
+                new String [] { String.valueOf(noteId), ChecklistItemNote.CONTENT_ITEM_TYPE },
+                ChecklistItemNote.POSITION);
+        int count = 0;
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    long dataId = cursor.getLong(0);
+                    if (count >= newItems.size()) {
+                        operationList.add(ContentProviderOperation.newDelete(
+                                ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId)).build());
+                        continue;
+                    }
+                    ChecklistItem item = newItems.get(count);
+                    long position = (++count) * ChecklistItem.POSITION_STEP;
+                    ContentValues values = new ContentValues();
+                    if (!item.getText().equals(cursor.getString(1))) {
+                        values.put(ChecklistItemNote.CONTENT, item.getText());
+                    }
+                    if (item.isChecked() != (cursor.getInt(2) == 1)) {
+                        values.put(ChecklistItemNote.CHECKED, item.isChecked() ? 1 : 0);
+                    }
+                    if (position != cursor.getLong(3)) {
+                        values.put(ChecklistItemNote.POSITION, position);
+                    }
+                    if (values.size() > 0) {
+                        operationList.add(ContentProviderOperation.newUpdate(
+                                ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId))
+                                .withValues(values).build());
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        for (; count < newItems.size(); count++) {
+            ChecklistItem item = newItems.get(count);
+            operationList.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValue(ChecklistItemNote.MIME_TYPE, ChecklistItemNote.CONTENT_ITEM_TYPE)
+                    .withValue(ChecklistItemNote.NOTE_ID, noteId)
+                    .withValue(ChecklistItemNote.CONTENT, item.getText())
+                    .withValue(ChecklistItemNote.CHECKED, item.isChecked() ? 1 : 0)
+                    .withValue(ChecklistItemNote.POSITION, (count + 1) * ChecklistItem.POSITION_STEP)
+                    .build());
+        }
+        if (operationList.isEmpty()) {
+            return true;
+        }
+        try {
+            resolver.applyBatch(Notes.AUTHORITY, operationList);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        return false;
+    }
+
     public static String getSnippetById(ContentResolver resolver, long noteId) {
         Cursor cursor = resolver.query(Notes.CONTENT_NOTE_URI,
                 new String [] { NoteColumns.SNIPPET },
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import java.util.Arrays;
+
+/**
+ * 保存long值的集合,使用开放寻址的数组实现,元素不装箱。
+ * 增删查的平均复杂度为O(1),非线程安全
+ */
+public class LongHashSet {
+    //表示空位的值,集合中保存该值时单独记录
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mTable;
+
+    private int mSize;
+
+    private boolean mContainsEmptyKey;
+
+    public LongHashSet() {
+        mTable = newTable(MIN_CAPACITY);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY) {
+            return mContainsEmptyKey;
+        }
+        return mTable[indexOf(mTable, value)] == value;
+    }
+
+    /**
+     * @return 集合中原来没有该值时返回true
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (mContainsEmptyKey) {
+                return false;
+            }
+            mContainsEmptyKey = true;
+            mSize++;
+            return true;
+        }
+        int index = indexOf(mTable, value);
+        if (mTable[index] == value) {
+            return false;
+        }
+        mTable[index] = value;
+        mSize++;
+        //装载因子超过一半时扩容
+        if (mSize * 2 > mTable.length) {
+            rehash(mTable.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * @return 集合中原来有该值时返回true
+     */
+    public boolean remove(long value) {
+        if (value == EMPTY) {
+            if (!mContainsEmptyKey) {
+                return false;
+            }
+            mContainsEmptyKey = false;
+            mSize--;
+            return true;
+        }
+        int mask = mTable.length - 1;
+        int index = indexOf(mTable, value);
+        if (mTable[index] != value) {
+            return false;
+        }
+        //删除后把同一探测链上后面的元素前移,保证查找时不会在空位提前结束
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (mTable[next] != EMPTY) {
+            int home = hash(mTable[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mTable[hole] = mTable[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mTable[hole] = EMPTY;
+        mSize--;
+        return true;
+    }
+
+    public void clear() {
+        if (mTable.length > MIN_CAPACITY) {
+            mTable = newTable(MIN_CAPACITY);
+        } else {
+            Arrays.fill(mTable, EMPTY);
+        }
+        mSize = 0;
+        mContainsEmptyKey = false;
+    }
+
+    /**
+     * @return 集合中的所有值,顺序不确定
+     */
+    public long[] toArray() {
+        long[] values = new long[mSize];
+        int count = 0;
+        if (mContainsEmptyKey) {
+            values[count++] = EMPTY;
+        }
+        for (long value : mTable) {
+            if (value != EMPTY) {
+                values[count++] = value;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 只保留同时在另一个集合中的值
+     */
+    public void retainAll(LongHashSet other) {
+        for (long value : toArray()) {
+            if (!other.contains(value)) {
+                remove(value);
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] old = mTable;
+        mTable = newTable(capacity);
+        for (long value : old) {
+            if (value != EMPTY) {
+                mTable[indexOf(mTable, value)] = value;
+            }
+        }
+    }
+
+    /**
+     * @return 值所在的位置,不存在时返回应该插入的空位
+     */
+    private static int indexOf(long[] table, long value) {
+        int mask = table.length - 1;
+        int index = hash(value) & mask;
+        while (table[index] != EMPTY && table[index] != value) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private static int hash(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long[] newTable(int capacity) {
+        long[] table = new long[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * 把便签渲染为分享用的图片。
+ * 便签的全部文本按编辑框的样式排版,不只是屏幕上显示的部分;渲染在后台线程中进行,
+ * 按{@link #TILE_HEIGHT}高的横条逐条绘制,每条只绘制与之相交的文本行,并在条之间报告进度和检查取消。
+ * Bitmap.compress只能编码完整的位图,不能逐条写入同一个图片文件,因此超过{@link #MAX_PIXELS}的长便签
+ * 按原始大小分为多张图片,每张在文本行之间断开,同一时间只有一张图片的位图在内存中。
+ * 背景不透明,因此使用不带透明通道的RGB_565。构造参数在主线程中准备,之后不再访问界面
+ */
+public class NoteImageRenderer {
+    private static final String TAG = "NoteImageRenderer";
+
+    //每张图片的像素数上限,RGB_565下约占8MB内存
+    private static final int MAX_PIXELS = 4 * 1024 * 1024;
+
+    //每次绘制的横条高度
+    private static final int TILE_HEIGHT = 512;
+
+    public interface ProgressListener {
+        /**
+         * 在渲染线程中调用
+         * @param done 已完成的步数
+         * @param total 总步数,每绘制一条和每写入一张图片各为一步
+         */
+        void onRenderProgress(int done, int total);
+
+        /**
+         * 每绘制完一条后检查,返回true时停止渲染
+         */
+        boolean isRenderCancelled();
+    }
+
+    private final CharSequence mText;
+
+    private final TextPaint mPaint;
+
+    private final int mWidth;
+
+    private final Rect mPadding;
+
+    private final float mSpacingMult;
+
+    private final float mSpacingAdd;
+
+    private final Drawable mBackground;
+
+    private final Bitmap mImage;
+
+    /**
+     * @param paint 文本的画笔,渲染时单独使用,调用方不能再修改
+     * @param width 图片宽度,一般为编辑区域的宽度
+     * @param padding 文本四周的留白
+     * @param background 便签背景,调用方不能再使用这个对象
+     * @param image 便签中插入的图片,没有时为null
+     */
+    public NoteImageRenderer(CharSequence text, TextPaint paint, int width, Rect padding,
+            float spacingMult, float spacingAdd, Drawable background, Bitmap image) {
+        mText = text == null ? "" : text;
+        mPaint = paint;
+        mWidth = Math.max(1, width);
+        mPadding = padding;
+        mSpacingMult = spacingMult;
+        mSpacingAdd = spacingAdd;
+        mBackground = background;
+        mImage = image;
+    }
+
+    /**
+     * 在后台线程中渲染并写入文件
+     * @param output 第一张图片的文件,之后的图片在文件名后加序号
+     * @param format 图片格式,一般使用JPEG或WEBP
+     * @return 按顺序排列的各张图片的Uri,取消或失败时返回null
+     */
+    public ArrayList<Uri> render(File output, Bitmap.CompressFormat format, int quality,
+            ProgressListener listener) {
+        int contentWidth = Math.max(1, mWidth - mPadding.left - mPadding.right);
+        StaticLayout layout = new StaticLayout(mText, mPaint, contentWidth,
+                Layout.Alignment.ALIGN_NORMAL, mSpacingMult, mSpacingAdd, false);
+
+        //插入的图片放在文本下方,宽度不超过文本区域
+        int imageWidth = 0;
+        int imageHeight = 0;
+        if (mImage != null && mImage.getWidth() > 0) {
+            imageWidth = Math.min(mImage.getWidth(), contentWidth);
+            imageHeight = (int) ((long) mImage.getHeight() * imageWidth / mImage.getWidth());
+        }
+        int height = mPadding.top + layout.getHeight() + imageHeight + mPadding.bottom;
+        if (mBackground != null) {
+            mBackground.setBounds(0, 0, mWidth, height);
+        }
+        Rect imageRect = new Rect(mPadding.left, mPadding.top + layout.getHeight(),
+                mPadding.left + imageWidth, mPadding.top + layout.getHeight() + imageHeight);
+
+        int[] pageTops = splitPages(layout, height);
+        int pages = pageTops.length - 1;
+        int tiles = 0;
+        for (int i = 0; i < pages; i++) {
+            tiles += (pageTops[i + 1] - pageTops[i] + TILE_HEIGHT - 1) / TILE_HEIGHT;
+        }
+        //写入每张图片各算作一步
+        int total = tiles + pages;
+        int done = 0;
+
+        ArrayList<Uri> uris = new ArrayList<Uri>(pages);
+        for (int i = 0; i < pages; i++) {
+            int top = pageTops[i];
+            int bottom = pageTops[i + 1];
+            Bitmap bitmap;
+            try {
+                bitmap = Bitmap.createBitmap(mWidth, bottom - top, Bitmap.Config.RGB_565);
+            } catch (OutOfMemoryError e) {
+                Log.e(TAG, "Create share image out of memory: " + mWidth + "x" + (bottom - top));
+                return null;
+            }
+            try {
+                Canvas canvas = new Canvas(bitmap);
+                //画布按整个便签的坐标绘制,只有本页的区域落在位图上
+                canvas.translate(0, -top);
+                for (int tileTop = top; tileTop < bottom; tileTop += TILE_HEIGHT) {
+                    if (listener != null && listener.isRenderCancelled()) {
+                        return null;
+                    }
+                    drawTile(canvas, layout, imageRect, tileTop,
+                            Math.min(bottom, tileTop + TILE_HEIGHT));
+                    if (listener != null) {
+                        listener.onRenderProgress(++done, total);
+                    }
+                }
+                if (listener != null && listener.isRenderCancelled()) {
+                    return null;
+                }
+                Uri uri = writeImage(bitmap, pageFile(output, i), format, quality);
+                if (uri == null) {
+                    return null;
+                }
+                uris.add(uri);
+                if (listener != null) {
+                    listener.onRenderProgress(++done, total);
+                }
+            } finally {
+                bitmap.recycle();
+            }
+        }
+        return uris;
+    }
+
+    /**
+     * 计算每张图片的上边界,最后一个值为便签的总高度。
+     * 每张图片不超过{@link #MAX_PIXELS},尽量在文本行的上边缘断开,单行超过一张图片的高度时才截断
+     */
+    private int[] splitPages(StaticLayout layout, int height) {
+        int maxPageHeight = Math.max(TILE_HEIGHT, MAX_PIXELS / mWidth);
+        ArrayList<Integer> tops = new ArrayList<Integer>();
+        int top = 0;
+        tops.add(top);
+        while (height - top > maxPageHeight) {
+            int limit = top + maxPageHeight;
+            int bottom = limit;
+            int textY = limit - mPadding.top;
+            if (textY > 0 && textY < layout.getHeight()) {
+                int lineTop = mPadding.top + layout.getLineTop(layout.getLineForVertical(textY));
+                if (lineTop > top) {
+                    bottom = lineTop;
+                }
+            }
+            top = bottom;
+            tops.add(top);
+        }
+        tops.add(height);
+        int[] result = new int[tops.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = tops.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * 绘制便签中[top, bottom)的横条
+     */
+    private void drawTile(Canvas canvas, StaticLayout layout, Rect imageRect, int top,
+            int bottom) {
+        canvas.save();
+        canvas.clipRect(0, top, mWidth, bottom);
+        canvas.drawColor(Color.WHITE);
+        if (mBackground != null) {
+            mBackground.draw(canvas);
+        }
+        //StaticLayout按画布的裁剪区域只绘制相交的行
+        canvas.save();
+        canvas.translate(mPadding.left, mPadding.top);
+        layout.draw(canvas);
+        canvas.restore();
+        if (!imageRect.isEmpty() && Rect.intersects(imageRect,
+                new Rect(0, top, mWidth, bottom))) {
+            canvas.drawBitmap(mImage, null, imageRect, new Paint(Paint.FILTER_BITMAP_FLAG));
+        }
+        canvas.restore();
+    }
+
+    /**
+     * 第一张图片使用output,之后的图片在扩展名前加序号,例如image_2.jpg
+     */
+    private static File pageFile(File output, int page) {
+        if (page == 0) {
+            return output;
+        }
+        String name = output.getName();
+        int dot = name.lastIndexOf('.');
+        String suffix = "_" + (page + 1);
+        name = dot > 0 ? name.substring(0, dot) + suffix + name.substring(dot) : name + suffix;
+        return new File(output.getParentFile(), name);
+    }
+
+    /**
+     * 先写入临时文件再改名,避免分享出不完整的图片
+     */
+    private static Uri writeImage(Bitmap bitmap, File output, Bitmap.CompressFormat format,
+            int quality) {
+        File dir = output.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Cannot create directory " + dir);
+            return null;
+        }
+        File temp = new File(output.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(temp));
+            if (!bitmap.compress(format, quality, out)) {
+                Log.e(TAG, "Compress share image failed");
+                return null;
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(output)) {
+                Log.e(TAG, "Rename share image failed: " + output);
+                return null;
+            }
+            return Uri.fromFile(output);
+        } catch (IOException e) {
+            Log.e(TAG, "Write share image failed: " + e.toString());
+            return null;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Close share image failed: " + e.toString());
+                }
+            }
+            temp.delete();
+        }
+    }
+}
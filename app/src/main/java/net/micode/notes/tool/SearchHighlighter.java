@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.TextUtils;
+import android.text.style.BackgroundColorSpan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 搜索结果的高亮工具。
+ * 查询按空白拆分为多个词,与搜索时的分词一致;每个词按字面匹配,不解释正则表达式的特殊字符,
+ * 逐个字符转为小写后比较,因此不区分大小写且匹配位置与原文一一对应。
+ * 所有词在创建时编译为一个多模式匹配自动机(Aho-Corasick),高亮时对文本只做一次线性扫描。
+ * 重叠或相邻的匹配合并为一个高亮区域,移除的高亮对象放回对象池复用。
+ * 非线程安全,只在主线程使用
+ */
+public class SearchHighlighter {
+    private static final int ROOT = 0;
+
+    //对象池中最多保留的高亮对象数
+    private static final int MAX_POOLED_SPANS = 32;
+
+    //每个状态的转移字符(升序)和对应的目标状态
+    private final char[][] mEdgeChars;
+    private final int[][] mEdgeTargets;
+
+    //匹配失败时回退的状态
+    private final int[] mFail;
+
+    //在该状态结束的最长词的长度,没有词结束时为0
+    private final int[] mMatchLength;
+
+    private final int mMaxTermLength;
+
+    private final int mColor;
+
+    private final ArrayList<HighlightSpan> mSpanPool = new ArrayList<HighlightSpan>();
+
+    //扫描得到的高亮区域,每两个值为一个区域的起止位置
+    private int[] mRanges = new int[16];
+
+    /**
+     * 本工具添加的高亮样式,用于和文本中的其他样式区分
+     */
+    public static class HighlightSpan extends BackgroundColorSpan {
+        public HighlightSpan(int color) {
+            super(color);
+        }
+    }
+
+    /**
+     * 编译查询
+     * @param query 用户输入的查询
+     * @param color 高亮的背景色
+     * @return 查询中没有可匹配的词时返回null
+     */
+    public static SearchHighlighter compile(String query, int color) {
+        if (TextUtils.isEmpty(query)) {
+            return null;
+        }
+        ArrayList<String> terms = new ArrayList<String>();
+        for (String term : query.trim().split("\\s+")) {
+            //搜索时会去掉引号,高亮时同样忽略
+            term = term.replace("\"", "");
+            if (!TextUtils.isEmpty(term)) {
+                terms.add(term);
+            }
+        }
+        return terms.isEmpty() ? null : new SearchHighlighter(terms, color);
+    }
+
+    private SearchHighlighter(ArrayList<String> terms, int color) {
+        mColor = color;
+
+        //先建立字典树,结点0为根
+        ArrayList<TreeMap<Character, Integer>> children = new ArrayList<TreeMap<Character, Integer>>();
+        ArrayList<Integer> lengths = new ArrayList<Integer>();
+        children.add(new TreeMap<Character, Integer>());
+        lengths.add(0);
+        int maxLength = 0;
+        for (String term : terms) {
+            int state = ROOT;
+            for (int i = 0; i < term.length(); i++) {
+                Character c = fold(term.charAt(i));
+                Integer next = children.get(state).get(c);
+                if (next == null) {
+                    next = children.size();
+                    children.add(new TreeMap<Character, Integer>());
+                    lengths.add(0);
+                    children.get(state).put(c, next);
+                }
+                state = next;
+            }
+            lengths.set(state, term.length());
+            maxLength = Math.max(maxLength, term.length());
+        }
+        mMaxTermLength = maxLength;
+
+        int count = children.size();
+        mEdgeChars = new char[count][];
+        mEdgeTargets = new int[count][];
+        mFail = new int[count];
+        mMatchLength = new int[count];
+        for (int state = 0; state < count; state++) {
+            TreeMap<Character, Integer> edges = children.get(state);
+            mEdgeChars[state] = new char[edges.size()];
+            mEdgeTargets[state] = new int[edges.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> edge : edges.entrySet()) {
+                mEdgeChars[state][i] = edge.getKey();
+                mEdgeTargets[state][i] = edge.getValue();
+                i++;
+            }
+            mMatchLength[state] = lengths.get(state);
+        }
+
+        //按层次计算回退状态,回退状态的深度更小,一定已经计算过
+        int[] queue = new int[count];
+        int head = 0;
+        int tail = 0;
+        for (int child : mEdgeTargets[ROOT]) {
+            mFail[child] = ROOT;
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int i = 0; i < mEdgeChars[state].length; i++) {
+                char c = mEdgeChars[state][i];
+                int child = mEdgeTargets[state][i];
+                mFail[child] = next(mFail[state], c);
+                //同时记录以该位置结尾的较短的词,扫描时不用再沿回退链查找
+                mMatchLength[child] = Math.max(mMatchLength[child], mMatchLength[mFail[child]]);
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    /**
+     * 返回添加了高亮的文本
+     */
+    public Spannable highlight(String text) {
+        SpannableString spannable = new SpannableString(text == null ? "" : text);
+        highlight(spannable, 0, spannable.length());
+        return spannable;
+    }
+
+    /**
+     * 重新高亮文本中的一段区域,用于文本编辑后只更新修改的部分。
+     * 区域两端各扩展最长词的长度,并扩展到覆盖与区域相交的原有高亮,因此跨越修改位置的匹配也能正确更新
+     * @param start 修改区域的起始位置
+     * @param end 修改区域的结束位置(不含)
+     */
+    public void highlight(Spannable text, int start, int end) {
+        int length = text.length();
+        int from = Math.max(0, Math.min(start, length) - (mMaxTermLength - 1));
+        int to = Math.min(length, Math.max(end, from) + (mMaxTermLength - 1));
+        HighlightSpan[] old = text.getSpans(from, to, HighlightSpan.class);
+        for (HighlightSpan span : old) {
+            from = Math.min(from, text.getSpanStart(span));
+            to = Math.max(to, text.getSpanEnd(span));
+            text.removeSpan(span);
+            recycle(span);
+        }
+
+        int rangeCount = scan(text, from, to);
+        for (int i = 0; i < rangeCount; i += 2) {
+            text.setSpan(obtainSpan(), mRanges[i], mRanges[i + 1],
+                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    /**
+     * 扫描文本的[from, to)区域,把合并后的匹配区域写入mRanges
+     * @return mRanges中有效值的个数
+     */
+    private int scan(CharSequence text, int from, int to) {
+        int count = 0;
+        int state = ROOT;
+        for (int i = from; i < to; i++) {
+            state = next(state, fold(text.charAt(i)));
+            int matchLength = mMatchLength[state];
+            if (matchLength == 0) {
+                continue;
+            }
+            int matchStart = i + 1 - matchLength;
+            int matchEnd = i + 1;
+            //较长的词可能覆盖前面已记录的区域,与这些区域合并
+            while (count > 0 && mRanges[count - 1] >= matchStart) {
+                matchStart = Math.min(matchStart, mRanges[count - 2]);
+                count -= 2;
+            }
+            if (count + 2 > mRanges.length) {
+                mRanges = Arrays.copyOf(mRanges, mRanges.length * 2);
+            }
+            mRanges[count++] = matchStart;
+            mRanges[count++] = matchEnd;
+        }
+        return count;
+    }
+
+    private int next(int state, char c) {
+        while (true) {
+            int index = Arrays.binarySearch(mEdgeChars[state], c);
+            if (index >= 0) {
+                return mEdgeTargets[state][index];
+            }
+            if (state == ROOT) {
+                return ROOT;
+            }
+            state = mFail[state];
+        }
+    }
+
+    private HighlightSpan obtainSpan() {
+        int size = mSpanPool.size();
+        return size > 0 ? mSpanPool.remove(size - 1) : new HighlightSpan(mColor);
+    }
+
+    private void recycle(HighlightSpan span) {
+        //其他查询留下的高亮颜色可能不同,不放入对象池
+        if (span.getBackgroundColor() == mColor && mSpanPool.size() < MAX_POOLED_SPANS) {
+            mSpanPool.add(span);
+        }
+    }
+
+    /**
+     * 逐个字符转为小写,保证转换前后的文本长度相同
+     */
+    private static char fold(char c) {
+        return Character.toLowerCase(c);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+
+/**
+ * 界面启动时的初始化流程。
+ * 初始化工作分为三级:{@link #TIER_CRITICAL}在{@link #start}中立即执行,只放显示第一帧必需的工作;
+ * {@link #TIER_FIRST_FRAME}在第一帧绘制后执行;{@link #TIER_IDLE}在之后主线程空闲时执行。
+ * 每级和每项工作都用{@link Trace}标记,可以在systrace中查看,耗时也输出在日志中。
+ * 所有方法都只能在主线程中调用
+ */
+public class StartupPipeline {
+    private static final String TAG = "StartupPipeline";
+
+    public static final int TIER_CRITICAL = 0;
+    public static final int TIER_FIRST_FRAME = 1;
+    public static final int TIER_IDLE = 2;
+
+    private static final String[] TIER_NAMES = new String[] {
+        "critical", "first-frame", "idle"
+    };
+
+    private static class Task {
+        final String name;
+        final Runnable runnable;
+
+        Task(String name, Runnable runnable) {
+            this.name = name;
+            this.runnable = runnable;
+        }
+    }
+
+    private final String mName;
+
+    private final ArrayList<ArrayList<Task>> mTiers = new ArrayList<ArrayList<Task>>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private boolean mCancelled;
+
+    /**
+     * @param name 流程的名称,用作Trace标记和日志的前缀
+     */
+    public StartupPipeline(String name) {
+        mName = name;
+        for (int i = 0; i < TIER_NAMES.length; i++) {
+            mTiers.add(new ArrayList<Task>());
+        }
+    }
+
+    /**
+     * 添加一项初始化工作,同一级的工作按添加顺序执行
+     */
+    public StartupPipeline add(int tier, String name, Runnable runnable) {
+        mTiers.get(tier).add(new Task(name, runnable));
+        return this;
+    }
+
+    /**
+     * 立即执行关键工作,并在root第一次绘制后依次安排后两级工作
+     */
+    public void start(final View root) {
+        runTier(TIER_CRITICAL);
+        root.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            public boolean onPreDraw() {
+                if (root.getViewTreeObserver().isAlive()) {
+                    root.getViewTreeObserver().removeOnPreDrawListener(this);
+                }
+                //在绘制前的回调中发送消息,消息在这一帧绘制完成后才会处理
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        runTier(TIER_FIRST_FRAME);
+                        scheduleIdleTier();
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
+    /**
+     * 取消尚未执行的工作,界面销毁时调用
+     */
+    public void cancel() {
+        mCancelled = true;
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void scheduleIdleTier() {
+        if (mCancelled || mTiers.get(TIER_IDLE).isEmpty()) {
+            return;
+        }
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            public boolean queueIdle() {
+                runTier(TIER_IDLE);
+                return false;
+            }
+        });
+    }
+
+    private void runTier(int tier) {
+        ArrayList<Task> tasks = mTiers.get(tier);
+        if (mCancelled || tasks.isEmpty()) {
+            return;
+        }
+        String tierName = mName + ":" + TIER_NAMES[tier];
+        long tierStart = SystemClock.elapsedRealtime();
+        Trace.beginSection(tierName);
+        try {
+            for (Task task : tasks) {
+                long start = SystemClock.elapsedRealtime();
+                Trace.beginSection(task.name);
+                try {
+                    task.runnable.run();
+                } finally {
+                    Trace.endSection();
+                }
+                Log.d(TAG, tierName + ":" + task.name + " took "
+                        + (SystemClock.elapsedRealtime() - start) + "ms");
+            }
+        } finally {
+            Trace.endSection();
+        }
+        tasks.clear();
+        Log.d(TAG, tierName + " took " + (SystemClock.elapsedRealtime() - tierStart) + "ms");
+    }
+}
@@ -23,6 +23,7 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.support.annotation.VisibleForTesting;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
@@ -33,11 +34,17 @@ import net.micode.notes.data.Notes.NoteColumns;
 public class AlarmInitReceiver extends BroadcastReceiver {
 
     //定义一个存放便签id及闹钟提醒日期的数组
-    private static final String [] PROJECTION = new String [] {
+    @VisibleForTesting
+    public static final String [] PROJECTION = new String [] {
         NoteColumns.ID,
         NoteColumns.ALERTED_DATE
     };
 
+    //提醒时间在当前时间之后的便签
+    @VisibleForTesting
+    public static final String SELECTION = NoteColumns.ALERTED_DATE + ">? AND "
+            + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
+
     private static final int COLUMN_ID                = 0;
     private static final int COLUMN_ALERTED_DATE      = 1;
 
@@ -47,7 +54,7 @@ public class AlarmInitReceiver extends BroadcastReceiver {
         //查询便签数据库Data中的闹钟提醒日期，放回Cursor结果集
         Cursor c = context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
                 PROJECTION,
-                NoteColumns.ALERTED_DATE + ">? AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE,
+                SELECTION,
                 new String[] { String.valueOf(currentDate) },
                 null);
 
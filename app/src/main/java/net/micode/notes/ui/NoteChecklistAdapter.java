@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.Context;
+import android.graphics.Paint;
+import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+
+import net.micode.notes.R;
+import net.micode.notes.model.ChecklistItem;
+import net.micode.notes.tool.SearchHighlighter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 清单模式的编辑列表适配器。
+ * 条目的文本和勾选状态保存在适配器自己的列表中,视图只在显示时绑定并复用;
+ * 插入和删除条目时只通知变化的位置,不逐个修改后续视图的序号,保存时由WorkingNote比较出有变化的条目
+ */
+public class NoteChecklistAdapter extends RecyclerView.Adapter<NoteChecklistAdapter.ItemViewHolder> {
+
+    /**
+     * 编辑事件的回调
+     */
+    public interface Callback {
+        /**
+         * 条目的文本、勾选状态或条目数发生变化
+         */
+        void onChecklistChanged();
+    }
+
+    private final Context mContext;
+
+    private final Callback mCallback;
+
+    private final ArrayList<ChecklistItem> mItems = new ArrayList<ChecklistItem>();
+
+    private RecyclerView mRecyclerView;
+
+    private int mTextAppearance;
+
+    //条目文本的查询高亮,没有查询时为null
+    private SearchHighlighter mHighlighter;
+
+    //需要在绑定后获得焦点的位置和光标位置,没有时为RecyclerView.NO_POSITION
+    private int mPendingFocusPosition = RecyclerView.NO_POSITION;
+    private int mPendingFocusSelection;
+
+    public NoteChecklistAdapter(Context context, Callback callback) {
+        mContext = context;
+        mCallback = callback;
+        setHasStableIds(true);
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        mRecyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        mRecyclerView = null;
+    }
+
+    /**
+     * 用便签的条目重新建立列表,末尾追加一个空条目并使其获得焦点。
+     * 条目对象与WorkingNote共用,保存时按条目的key找出有变化的条目
+     */
+    public void setItems(List<ChecklistItem> items) {
+        mItems.clear();
+        mItems.addAll(items);
+        mItems.add(new ChecklistItem("", false));
+        notifyDataSetChanged();
+        requestFocus(mItems.size() - 1, 0);
+    }
+
+    /**
+     * @return 是否有已勾选且有内容的条目
+     */
+    public boolean hasCheckedItem() {
+        for (ChecklistItem item : mItems) {
+            if (item.isChecked() && !TextUtils.isEmpty(item.getText())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<ChecklistItem> getItems() {
+        return mItems;
+    }
+
+    /**
+     * 设置条目文本的查询高亮,只重新绑定显示中的条目
+     */
+    public void setHighlighter(SearchHighlighter highlighter) {
+        if (mHighlighter != highlighter) {
+            mHighlighter = highlighter;
+            notifyItemRangeChanged(0, mItems.size());
+        }
+    }
+
+    /**
+     * 设置条目文本的字体样式,只重新绑定显示中的条目
+     */
+    public void setTextAppearance(int resId) {
+        if (mTextAppearance != resId) {
+            mTextAppearance = resId;
+            notifyItemRangeChanged(0, mItems.size());
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return mItems.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mItems.get(position).getKey();
+    }
+
+    @Override
+    public ItemViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new ItemViewHolder(LayoutInflater.from(mContext).inflate(
+                R.layout.note_edit_list_item, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(final ItemViewHolder holder, int position) {
+        holder.bind(mItems.get(position), position);
+        if (position == mPendingFocusPosition) {
+            mPendingFocusPosition = RecyclerView.NO_POSITION;
+            //绑定时视图可能尚未添加到列表中,添加后再获得焦点
+            final int selection = mPendingFocusSelection;
+            holder.mEdit.post(new Runnable() {
+                public void run() {
+                    holder.focus(selection);
+                }
+            });
+        }
+    }
+
+    /**
+     * 在当前条目后插入新条目,光标后的文本移到新条目中
+     * @param position 新条目的位置
+     */
+    private void insertItem(int position, String text) {
+        if (position < 0 || position > mItems.size()) {
+            return;
+        }
+        mItems.add(position, new ChecklistItem(text, false));
+        notifyItemInserted(position);
+        requestFocus(position, 0);
+        mCallback.onChecklistChanged();
+    }
+
+    /**
+     * 删除条目,条目剩余的文本追加到上一个条目末尾
+     */
+    private void removeItem(int position, String text) {
+        if (position <= 0 || position >= mItems.size() || mItems.size() == 1) {
+            return;
+        }
+        mItems.remove(position);
+        notifyItemRemoved(position);
+        int previous = position - 1;
+        ItemViewHolder holder = findHolder(previous);
+        if (holder != null) {
+            //上一个条目正在显示,直接在视图上追加,文本监听器会更新条目
+            int length = holder.mEdit.length();
+            holder.mEdit.append(text);
+            holder.focus(length);
+        } else {
+            ChecklistItem item = mItems.get(previous);
+            int length = item.getText().length();
+            item.setText(item.getText() + text);
+            notifyItemChanged(previous);
+            requestFocus(previous, length);
+        }
+        mCallback.onChecklistChanged();
+    }
+
+    /**
+     * 位置对应的视图已经显示时立即获得焦点,否则滚动到该位置,绑定时再获得焦点
+     */
+    private void requestFocus(int position, int selection) {
+        ItemViewHolder holder = findHolder(position);
+        if (holder != null && !holder.isRemoved()) {
+            holder.focus(selection);
+            return;
+        }
+        mPendingFocusPosition = position;
+        mPendingFocusSelection = selection;
+        if (mRecyclerView != null) {
+            mRecyclerView.scrollToPosition(position);
+        }
+    }
+
+    private ItemViewHolder findHolder(int position) {
+        if (mRecyclerView == null) {
+            return null;
+        }
+        return (ItemViewHolder) mRecyclerView.findViewHolderForAdapterPosition(position);
+    }
+
+    class ItemViewHolder extends RecyclerView.ViewHolder
+            implements NoteEditText.OnTextViewChangeListener, TextWatcher,
+            CompoundButton.OnCheckedChangeListener {
+        final CheckBox mCheckBox;
+        final NoteEditText mEdit;
+        //绑定期间设置文本和勾选状态不视为编辑
+        private boolean mBinding;
+        private int mBoundAppearance;
+        //最近一次文本变化的区域,用于只重新高亮修改的部分
+        private int mChangeStart;
+        private int mChangeEnd;
+
+        ItemViewHolder(View itemView) {
+            super(itemView);
+            mCheckBox = (CheckBox) itemView.findViewById(R.id.cb_edit_item);
+            mEdit = (NoteEditText) itemView.findViewById(R.id.et_edit_text);
+            mCheckBox.setOnCheckedChangeListener(this);
+            mEdit.setOnTextViewChangeListener(this);
+            mEdit.addTextChangedListener(this);
+        }
+
+        void bind(ChecklistItem item, int position) {
+            mBinding = true;
+            if (mTextAppearance != 0 && mBoundAppearance != mTextAppearance) {
+                mEdit.setTextAppearance(mContext, mTextAppearance);
+                mBoundAppearance = mTextAppearance;
+            }
+            //序号只用于判断是否为第一个条目,增删条目时实际位置由适配器位置决定
+            mEdit.setIndex(position);
+            mCheckBox.setChecked(item.isChecked());
+            setStrikeThrough(item.isChecked());
+            //设置文本时由文本监听器添加高亮
+            mEdit.setText(item.getText());
+            mCheckBox.setVisibility(TextUtils.isEmpty(item.getText()) && !mEdit.hasFocus()
+                    ? View.GONE : View.VISIBLE);
+            mBinding = false;
+        }
+
+        void focus(int selection) {
+            mEdit.requestFocus();
+            mEdit.setSelection(Math.min(selection, mEdit.length()));
+        }
+
+        private void setStrikeThrough(boolean checked) {
+            if (checked) {
+                mEdit.setPaintFlags(mEdit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
+            } else {
+                mEdit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+            }
+        }
+
+        private ChecklistItem currentItem() {
+            int position = getAdapterPosition();
+            return position == RecyclerView.NO_POSITION ? null : mItems.get(position);
+        }
+
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            setStrikeThrough(isChecked);
+            ChecklistItem item = currentItem();
+            if (mBinding || item == null) {
+                return;
+            }
+            item.setChecked(isChecked);
+            mCallback.onChecklistChanged();
+        }
+
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            mChangeStart = start;
+            mChangeEnd = start + count;
+        }
+
+        public void afterTextChanged(Editable s) {
+            if (mHighlighter != null) {
+                mHighlighter.highlight(s, mChangeStart, mChangeEnd);
+            }
+            ChecklistItem item = currentItem();
+            if (mBinding || item == null) {
+                return;
+            }
+            item.setText(s.toString());
+            mCallback.onChecklistChanged();
+        }
+
+        public void onEditTextDelete(int index, String text) {
+            removeItem(getAdapterPosition(), text);
+        }
+
+        public void onEditTextEnter(int index, String text) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                insertItem(position + 1, text);
+            }
+        }
+
+        public void onTextChange(int index, boolean hasText) {
+            mCheckBox.setVisibility(hasText ? View.VISIBLE : View.GONE);
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.app.AlarmManager;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.PendingIntent;
+import android.app.ProgressDialog;
 import android.app.SearchManager;
 import android.appwidget.AppWidgetManager;
 import android.content.ContentUris;
@@ -30,22 +31,27 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.Typeface;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.support.v7.app.AppCompatActivity;
-import android.text.Spannable;
-import android.text.SpannableString;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextPaint;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.text.format.DateUtils;
-import android.text.style.BackgroundColorSpan;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -54,19 +60,18 @@ import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.Button;
-import android.widget.CheckBox;
-import android.widget.CompoundButton;
-import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.LinearLayout;
+import android.widget.ScrollView;
 import android.widget.PopupWindow;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.baidu.aip.asrwakeup3.core.recog.MyRecognizer;
 import com.baidu.aip.asrwakeup3.core.recog.listener.ChainRecogListener;
 import com.baidu.aip.asrwakeup3.core.recog.listener.MessageStatusRecogListener;
 import com.baidu.aip.asrwakeup3.core.util.MyLogger;
@@ -76,35 +81,35 @@ import com.baidu.voicerecognition.android.ui.DigitalDialogInput;
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.model.ChecklistItem;
 import net.micode.notes.model.Note;
+import net.micode.notes.model.NoteAutoSaver;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.model.WorkingNote.NoteSettingChangedListener;
 import net.micode.notes.recog.ActivityUiDialog;
+import net.micode.notes.tool.AttachmentImageLoader;
 import net.micode.notes.tool.DataUtils;
+import net.micode.notes.tool.NoteImageRenderer;
 import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.tool.ResourceParser.TextAppearanceResources;
+import net.micode.notes.tool.SearchHighlighter;
 import net.micode.notes.ui.DateTimePickerDialog.OnDateTimeSetListener;
-import net.micode.notes.ui.NoteEditText.OnTextViewChangeListener;
 import net.micode.notes.widget.NoteWidgetProvider_2x;
 import net.micode.notes.widget.NoteWidgetProvider_4x;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 /**
  * 实现便签的编辑界面及其菜单功能
  */
 public class NoteEditActivity extends ActivityUiDialog implements OnClickListener,
-        NoteSettingChangedListener, OnTextViewChangeListener {
+        NoteSettingChangedListener {
     //自定义类 ViewHolder 来减少 findViewById() 的使用以及避免过多地 inflate（绑定） view，从而实现目标。
     private class HeadViewHolder {
         public TextView tvModified;
@@ -163,12 +168,25 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
 
     private static final String TAG = "NoteEditActivity";
 
+    //分享图片保存的位置(相对外部存储)和JPEG质量
+    private static final String SHARE_IMAGE_PATH = "DCIM/image.jpg";
+    private static final int SHARE_IMAGE_QUALITY = 90;
+
     private DigitalDialogInput input;
     private ChainRecogListener chainRecogListener;
 
     //需要插入图片的View
     private ImageView mInsertImage;
 
+    //正在后台加载的图片,界面关闭或更换图片时取消
+    private AttachmentImageLoader.Request mImageRequest;
+
+    //等待界面布局完成后加载的图片
+    private String mPendingImagePath;
+
+    //正在后台渲染的分享图片,界面关闭时取消
+    private AsyncTask<Void, Integer, ArrayList<Uri>> mShareImageTask;
+
     private Button mBtnFontBold;
     private Button mBtnFontTilt;
     private Button mBtnFontUnderline;
@@ -199,16 +217,66 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
     private static final int SHORTCUT_ICON_TITLE_MAX_LEN = 10;
 
     //定义相应ASCII码
-    public static final String TAG_CHECKED = String.valueOf('\u221A');
-    public static final String TAG_UNCHECKED = String.valueOf('\u25A1');
+    public static final String TAG_CHECKED = ChecklistItem.TAG_CHECKED;
+    public static final String TAG_UNCHECKED = ChecklistItem.TAG_UNCHECKED;
 
-    private LinearLayout mEditTextList;
+    //清单模式的编辑列表,只为显示中的条目创建视图
+    private RecyclerView mEditTextList;
+
+    private NoteChecklistAdapter mChecklistAdapter;
+
+    //普通模式的编辑框和图片所在的滚动视图
+    private ScrollView mNoteContentScroll;
 
     private String mUserQuery;
-    private Pattern mPattern;
+    //从搜索结果打开时高亮查询词,查询为空时为null
+    private SearchHighlighter mHighlighter;
 
     private Button BtnSpeechInput;
 
+    //正在后台加载的便签ID,加载完成前mWorkingNote为null
+    private long mLoadingNoteId;
+
+    //便签加载的序号,用于丢弃过期的加载结果
+    private int mLoadGeneration;
+
+    //编辑内容的自动保存,停止输入一段时间后在后台保存
+    private NoteAutoSaver mAutoSaver;
+
+    private final TextWatcher mAutoSaveWatcher = new TextWatcher() {
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        public void afterTextChanged(Editable s) {
+            if (mAutoSaver != null) {
+                mAutoSaver.notifyChanged();
+            }
+        }
+    };
+
+    //编辑框文本变化后只重新高亮修改的区域
+    private final TextWatcher mHighlightWatcher = new TextWatcher() {
+        private int mChangeStart;
+        private int mChangeEnd;
+
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            mChangeStart = start;
+            mChangeEnd = start + count;
+        }
+
+        public void afterTextChanged(Editable s) {
+            if (mHighlighter != null) {
+                mHighlighter.highlight(s, mChangeStart, mChangeEnd);
+            }
+        }
+    };
+
     /**
      * 在界面创建时调用的方法，完成界面的创建
      *
@@ -223,11 +291,10 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
             finish();
             return;
         }
-        chainRecogListener = new ChainRecogListener();
-        // DigitalDialogInput 输入 ，MessageStatusRecogListener可替换为用户自己业务逻辑的listener
-        chainRecogListener.addListener(new MessageStatusRecogListener(handler));
-        myRecognizer.setEventListener(chainRecogListener); // 替换掉原来的listener
         initResources();
+        if (mWorkingNote != null) {
+            load();
+        }
     }
 
     /**
@@ -251,6 +318,9 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
                 finish();
                 return;
             }
+            if (mWorkingNote != null) {
+                load();
+            }
             Log.d(TAG, "Restoring from killed activity");
         }
     }
@@ -278,20 +348,13 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
                 noteId = Long.parseLong(intent.getStringExtra(SearchManager.EXTRA_DATA_KEY));
                 mUserQuery = intent.getStringExtra(SearchManager.USER_QUERY);
             }
-            //如果要查询的便签id不存在，则弹出消息“要查看的便签不存在”,并跳转到便签列表界面
-            if (!DataUtils.visibleInNoteDatabase(getContentResolver(), noteId, Notes.TYPE_NOTE)) {
-                Intent jump = new Intent(this, NotesListActivity.class);
-                startActivity(jump);
-                showToast(R.string.error_note_not_exist);
-                finish();
-                return false;
-            } else {
-                mWorkingNote = WorkingNote.load(this, noteId);
-                if (mWorkingNote == null) {
-                    Log.e(TAG, "load note failed with note id" + noteId);
-                    finish();
-                    return false;
-                }
+            //查询只编译一次,显示和编辑时复用
+            mHighlighter = SearchHighlighter.compile(mUserQuery,
+                    getResources().getColor(R.color.user_query_highlight));
+            //便签加载后没有变化时直接使用缓存,否则在后台查询数据库
+            mWorkingNote = WorkingNote.loadFromCache(this, noteId);
+            if (mWorkingNote == null) {
+                startAsyncNoteLoad(noteId);
             }
             //调用系统的输入法输入
             getWindow().setSoftInputMode(
@@ -316,20 +379,9 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
                 if (TextUtils.isEmpty(phoneNumber)) {
                     Log.w(TAG, "The call record number is null");
                 }
-                long noteId = 0;
-                if ((noteId = DataUtils.getNoteIdByPhoneNumberAndCallDate(getContentResolver(),
-                        phoneNumber, callDate)) > 0) {
-                    mWorkingNote = WorkingNote.load(this, noteId);
-                    if (mWorkingNote == null) {
-                        Log.e(TAG, "load call note failed with note id" + noteId);
-                        finish();
-                        return false;
-                    }
-                } else {
-                    mWorkingNote = WorkingNote.createEmptyNote(this, folderId, widgetId,
-                            widgetType, bgResId);
-                    mWorkingNote.convertToCallNote(phoneNumber, callDate);
-                }
+                //查找通话记录对应的便签需要查询数据库,在后台进行
+                startAsyncCallNoteLoad(phoneNumber, callDate, folderId, widgetId, widgetType,
+                        bgResId);
             } else {
                 mWorkingNote = WorkingNote.createEmptyNote(this, folderId, widgetId, widgetType,
                         bgResId);
@@ -343,15 +395,105 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
             finish();
             return false;
         }
-        mWorkingNote.setOnSettingStatusChangedListener(this);
+        if (mWorkingNote != null) {
+            mWorkingNote.setOnSettingStatusChangedListener(this);
+        }
         return true;
     }
 
+    /**
+     * 在后台执行的便签加载
+     */
+    private interface NoteLoader {
+        /**
+         * @return 加载的便签,便签不存在时返回null
+         */
+        WorkingNote load();
+    }
+
+    /**
+     * 在后台检查便签是否存在并加载便签,加载完成后初始化便签界面
+     * @param noteId 要加载的便签ID
+     */
+    private void startAsyncNoteLoad(final long noteId) {
+        mLoadingNoteId = noteId;
+        startAsyncNoteLoad(new NoteLoader() {
+            public WorkingNote load() {
+                if (!DataUtils.visibleInNoteDatabase(getContentResolver(), noteId,
+                        Notes.TYPE_NOTE)) {
+                    return null;
+                }
+                return WorkingNote.load(NoteEditActivity.this, noteId);
+            }
+        });
+    }
+
+    /**
+     * 在后台查找通话记录对应的便签,找到时加载该便签,否则新建通话记录便签
+     */
+    private void startAsyncCallNoteLoad(final String phoneNumber, final long callDate,
+            final long folderId, final int widgetId, final int widgetType, final int bgResId) {
+        mLoadingNoteId = 0;
+        startAsyncNoteLoad(new NoteLoader() {
+            public WorkingNote load() {
+                long noteId = DataUtils.getNoteIdByPhoneNumberAndCallDate(getContentResolver(),
+                        phoneNumber, callDate);
+                if (noteId > 0) {
+                    return WorkingNote.load(NoteEditActivity.this, noteId);
+                }
+                WorkingNote note = WorkingNote.createEmptyNote(NoteEditActivity.this, folderId,
+                        widgetId, widgetType, bgResId);
+                note.convertToCallNote(phoneNumber, callDate);
+                return note;
+            }
+        });
+    }
+
+    /**
+     * 加载在便签的保存线程中执行,排在之前交给后台的保存之后,不会读到保存前的数据
+     */
+    private void startAsyncNoteLoad(final NoteLoader loader) {
+        final int generation = ++mLoadGeneration;
+        new AsyncTask<Void, Void, WorkingNote>() {
+            @Override
+            protected WorkingNote doInBackground(Void... unused) {
+                try {
+                    return loader.load();
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "load note failed", e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(WorkingNote note) {
+                if (generation != mLoadGeneration || isFinishing()) {
+                    return;
+                }
+                //如果要查询的便签id不存在，则弹出消息“要查看的便签不存在”,并跳转到便签列表界面
+                if (note == null) {
+                    Intent jump = new Intent(NoteEditActivity.this, NotesListActivity.class);
+                    startActivity(jump);
+                    showToast(R.string.error_note_not_exist);
+                    finish();
+                    return;
+                }
+                mWorkingNote = note;
+                mWorkingNote.setOnSettingStatusChangedListener(NoteEditActivity.this);
+                load();
+                initNoteScreen();
+                invalidateOptionsMenu();
+            }
+        }.executeOnExecutor(NoteAutoSaver.getSaveExecutor());
+    }
+
 
     @Override
     protected void onResume() {
         super.onResume();
-        initNoteScreen();
+        if (mWorkingNote != null) {
+            initNoteScreen();
+        }
     }
 
     /**
@@ -361,11 +503,13 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
         //设置字体大小
         mNoteEditor.setTextAppearance(this, TextAppearanceResources
                 .getTexAppearanceResource(mFontSizeId));
+        mChecklistAdapter.setHighlighter(mHighlighter);
         //如果便签已选择清单模式。则转换为清单模式
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-            switchToListMode(mWorkingNote.getContent());
+            switchToListMode(mWorkingNote.getChecklistItems());
         } else {
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
+            //设置文本时由mHighlightWatcher添加高亮
+            mNoteEditor.setText(mWorkingNote.getContent());
             Log.e("FontSelectID", String.valueOf(mWorkingNote.getFontSelect()));
             fontselect(mWorkingNote.getFontSelect());
             mNoteEditor.setSelection(mNoteEditor.getText().length());
@@ -429,12 +573,18 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
     protected void onSaveInstanceState(Bundle outState) {
         // 调用父类交给系统处理，这样系统能保存视图层次结构状态
         super.onSaveInstanceState(outState);
+        //便签仍在加载时保存正在加载的便签ID
+        if (mWorkingNote == null) {
+            outState.putLong(Intent.EXTRA_UID, mLoadingNoteId);
+            return;
+        }
         /**
          * For new note without note id, we should firstly save it to
          * generate a id. If the editing note is not worth saving, there
          * is no id which is equivalent to create new note
          */
         //对于没有便签ID的新便签，我们应该首先保存它以生成id。如果编辑的便签不值得保存，则没有id等同于创建新便签
+        //状态必须在返回前写入,只能同步保存
         if (!mWorkingNote.existInDatabase()) {
             saveNote();
         }
@@ -489,6 +639,22 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
      * 初始化并绑定各类控件资源
      */
     private void initResources() {
+        mAutoSaver = new NoteAutoSaver(new NoteAutoSaver.Callback() {
+            public WorkingNote getWorkingNote() {
+                return mWorkingNote;
+            }
+
+            public void collectChanges() {
+                getWorkingText();
+            }
+
+            public void onSaveFinished(WorkingNote note, boolean saved) {
+                if (saved) {
+                    Log.d(TAG, "Note data was saved with id:" + note.getNoteId());
+                    setResult(RESULT_OK);
+                }
+            }
+        });
 
         mHeadViewPanel = findViewById(R.id.note_title);
 
@@ -528,6 +694,8 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
 
         //绑定文本编辑的EditText视图
         mNoteEditor = (EditText) findViewById(R.id.note_edit_view);
+        mNoteEditor.addTextChangedListener(mAutoSaveWatcher);
+        mNoteEditor.addTextChangedListener(mHighlightWatcher);
 
         mNoteEditorPanel = findViewById(R.id.sv_note_edit);
         mNoteBgColorSelector = findViewById(R.id.note_bg_color_selector);
@@ -551,12 +719,21 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
         if(mFontSizeId >= TextAppearanceResources.getResourcesSize()) {
             mFontSizeId = ResourceParser.BG_DEFAULT_FONT_SIZE;
         }
-        mEditTextList = (LinearLayout) findViewById(R.id.note_edit_list);
+        mNoteContentScroll = (ScrollView) findViewById(R.id.sv_note_content);
+        mEditTextList = (RecyclerView) findViewById(R.id.note_edit_list);
+        mEditTextList.setLayoutManager(new LinearLayoutManager(this));
+        //条目增删时不做动画,保证新条目立即可以获得焦点
+        mEditTextList.setItemAnimator(null);
+        mChecklistAdapter = new NoteChecklistAdapter(this, new NoteChecklistAdapter.Callback() {
+            public void onChecklistChanged() {
+                mAutoSaver.notifyChanged();
+            }
+        });
+        mEditTextList.setAdapter(mChecklistAdapter);
 
         //绑定语音输入按钮视图
         BtnSpeechInput=(Button)findViewById(R.id.btn_speech_input);
         BtnSpeechInput.setOnClickListener(this);
-        load();
     }
 
     /**
@@ -565,15 +742,24 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
     @Override
     protected void onPause() {
         super.onPause();
-        if(saveNote()) {
-            Log.e(TAG, "Note data was saved with length:" + mWorkingNote.getContent().length());
+        //把尚未保存的修改交给后台保存,不等待写入完成
+        if (mAutoSaver.flush()) {
+            setResult(RESULT_OK);
         }
         clearSettingState();
+        //不在语音输入时归还识别引擎,引擎在空闲保留期内可供再次打开的界面直接使用
         if (!running) {
-            myRecognizer.release();
+            releaseRecognizer();
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        cancelImageLoad();
+        cancelShareImage();
+    }
+
     /**
      * 更新桌面小部件
      */
@@ -601,6 +787,9 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
      * @param v
      */
     public void onClick(View v) {
+        if (mWorkingNote == null) {
+            return;
+        }
         int id = v.getId();
         //点击背景色选择视图时将显示可供选择的背景色
         if (id == R.id.btn_set_bg_color) {
@@ -618,8 +807,8 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
             mSharedPrefs.edit().putInt(PREFERENCE_FONT_SIZE, mFontSizeId).commit();
             findViewById(sFontSelectorSelectionMap.get(mFontSizeId)).setVisibility(View.VISIBLE);
             if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-                getWorkingText();
-                switchToListMode(mWorkingNote.getContent());
+                mChecklistAdapter.setTextAppearance(
+                        TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
             } else {
                 mNoteEditor.setTextAppearance(this,
                         TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
@@ -642,7 +831,9 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
             return;
         }
         //保存便签编辑信息
-        saveNote();
+        if (mAutoSaver.flush()) {
+            setResult(RESULT_OK);
+        }
         super.onBackPressed();
     }
 
@@ -679,6 +870,10 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
         }
         clearSettingState();
         menu.clear();
+        //便签加载完成后会重新准备菜单
+        if (mWorkingNote == null) {
+            return true;
+        }
         if (mWorkingNote.getFolderId() == Notes.ID_CALL_RECORD_FOLDER) {
             getMenuInflater().inflate(R.menu.call_note_edit, menu);
         } else {
@@ -704,6 +899,9 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
      */
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        if (mWorkingNote == null) {
+            return true;
+        }
         switch (item.getItemId()) {
             //新建便签
             case R.id.menu_new_note:
@@ -727,6 +925,8 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
                 break;
             //进入清单模式
             case R.id.menu_list_mode:
+                //先写入编辑中的内容,切换时由WorkingNote转换一次
+                getWorkingText();
                 mWorkingNote.setCheckListMode(mWorkingNote.getCheckListMode() == 0 ?
                         TextNote.MODE_CHECK_LIST : 0);
                 break;
@@ -737,10 +937,7 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
                 break;
             //图片分享
             case R.id.menu_image_share:
-                Bitmap bitmap = captureView(mNoteEditorPanel);
-                Uri uri = saveBitmap(bitmap, "image");
-                Log.d("uri:", String.valueOf(uri));
-                sendTo(this, uri);
+                shareAsImage();
                 break;
             //发送到桌面
             case R.id.menu_send_to_desktop:
@@ -795,24 +992,32 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
     }
 
     /**
-     * 图片分享
-     * @param uri 图片Uri
+     * 图片分享,长便签分为多张图片时使用{@link Intent#ACTION_SEND_MULTIPLE}
+     * @param uris 按顺序排列的图片Uri
      */
-    private void sendTo(Context context, Uri uri){
-        if (uri == null) {
+    private void sendTo(Context context, ArrayList<Uri> uris){
+        if (uris == null || uris.isEmpty()) {
             return;
         }
-        Intent intent = new Intent(Intent.ACTION_SEND);
+        Intent intent;
+        if (uris.size() == 1) {
+            intent = new Intent(Intent.ACTION_SEND);
+            intent.putExtra(Intent.EXTRA_STREAM, uris.get(0));
+        } else {
+            intent = new Intent(Intent.ACTION_SEND_MULTIPLE);
+            intent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, uris);
+        }
         intent.setType("image/*");
-        intent.putExtra(Intent.EXTRA_STREAM, uri);
         context.startActivity(intent);
     }
 
     //实现新建便签功能
     private void createNewNote() {
         // Firstly, save current editing notes
-        //首先保存当前便签
-        saveNote();
+        //首先保存当前便签,不需要便签ID,交给后台保存即可
+        if (mAutoSaver.flush()) {
+            setResult(RESULT_OK);
+        }
 
         // For safety, start a new NoteEditActivity
         //保险起见，在启动一个新的NoteEditActivity
@@ -850,15 +1055,20 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
         return NotesPreferenceActivity.getSyncAccountName(this).trim().length() > 0;
     }
 
-    public void onClockAlertChanged(long date, boolean set) {
+    public void onClockAlertChanged(final long date, final boolean set) {
         /**
          * User could set clock to an unsaved note, so before setting the
          * alert clock, we should save the note first
          */
         //用户可以在未保存的便签中设置闹钟，因此我们需要在设置闹钟前保存便签
-        if (!mWorkingNote.existInDatabase()) {
-            saveNote();
-        }
+        runWhenSaved(new Runnable() {
+            public void run() {
+                setClockAlert(date, set);
+            }
+        });
+    }
+
+    private void setClockAlert(long date, boolean set) {
         if (mWorkingNote.getNoteId() > 0) {
             Intent intent = new Intent(this, AlarmReceiver.class);
             intent.setData(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mWorkingNote.getNoteId()));
@@ -883,164 +1093,30 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
     }
 
     public void onWidgetChanged() {
-        updateWidget();
-    }
-
-    /**
-     * 便签内文本删除时调用，便签内存储文本的方法是使用一个LineaLayout布局，每串文本以按下回车键划分为不同的视图
-     * 所以删除时，删除到前面没有文本的时候，将删除该文本对应的视图。
-     * @param index
-     * @param text
-     */
-    public void onEditTextDelete(int index, String text) {
-        //首先获取便签内视图的数目
-        int childCount = mEditTextList.getChildCount();
-        if (childCount == 1) {
-            return;
-        }
-
-        for (int i = index + 1; i < childCount; i++) {
-            ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                    .setIndex(i - 1);
-        }
-        //删除index索引对应的视图
-        mEditTextList.removeViewAt(index);
-        NoteEditText edit = null;
-        //同时，被删除的视图后的视图索引-1
-        if(index == 0) {
-            edit = (NoteEditText) mEditTextList.getChildAt(0).findViewById(
-                    R.id.et_edit_text);
-        } else {
-            edit = (NoteEditText) mEditTextList.getChildAt(index - 1).findViewById(
-                    R.id.et_edit_text);
-        }
-        int length = edit.length();
-        edit.append(text);
-        edit.requestFocus();
-        edit.setSelection(length);
-    }
-
-    /**
-     * 当用户按下回车键后调用，从当前光标处增加一个视图，光标后的文本到当前视图的文本末的文本加到下一个视图内中，当前视图后的视图的索引+1
-     * @param index
-     * @param text
-     */
-    public void onEditTextEnter(int index, String text) {
-        /**
-         * Should not happen, check for debug
-         */
-        if(index > mEditTextList.getChildCount()) {
-            Log.e(TAG, "Index out of mEditTextList boundrary, should not happen");
-        }
-        //新建一个视图
-        View view = getListItem(text, index);
-        mEditTextList.addView(view, index);
-        NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-        edit.requestFocus();
-        edit.setSelection(0);
-        //被按下回车键的视图后面的视图索引+1
-        for (int i = index + 1; i < mEditTextList.getChildCount(); i++) {
-            ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                    .setIndex(i);
-        }
-    }
-
-    //转换清单模式
-    private void switchToListMode(String text) {
-        mEditTextList.removeAllViews();
-        String[] items = text.split("\n");
-        int index = 0;
-        for (String item : items) {
-            if(!TextUtils.isEmpty(item)) {
-                mEditTextList.addView(getListItem(item, index));
-                index++;
-            }
-        }
-        mEditTextList.addView(getListItem("", index));
-        mEditTextList.getChildAt(index).findViewById(R.id.et_edit_text).requestFocus();
-
-        mNoteEditor.setVisibility(View.GONE);
-        mEditTextList.setVisibility(View.VISIBLE);
-    }
-
-    /**
-     * 富文本显示，给查询结果的文本进行高亮显示
-     * @param fullText
-     * @param userQuery
-     * @return
-     */
-    private Spannable getHighlightQueryResult(String fullText, String userQuery) {
-        SpannableString spannable = new SpannableString(fullText == null ? "" : fullText);
-        if (!TextUtils.isEmpty(userQuery)) {
-            mPattern = Pattern.compile(userQuery);
-            Matcher m = mPattern.matcher(fullText);
-            int start = 0;
-            while (m.find(start)) {
-                spannable.setSpan(
-                        new BackgroundColorSpan(this.getResources().getColor(
-                                R.color.user_query_highlight)), m.start(), m.end(),
-                        Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-                start = m.end();
-            }
-        }
-        return spannable;
-    }
-
-    /**
-     * 获取便签编辑文本列表，指的是编辑的文本，以回车键会划分，划分成多个NoteEditText视图
-     * @param item
-     * @param index
-     * @return
-     */
-    private View getListItem(String item, int index) {
-        //首先绑定到对应布局文件
-        View view = LayoutInflater.from(this).inflate(R.layout.note_edit_list_item, null);
-        //控件绑定
-        final NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-        edit.setTextAppearance(this, TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
-        CheckBox cb = ((CheckBox) view.findViewById(R.id.cb_edit_item));
-        cb.setOnCheckedChangeListener(new OnCheckedChangeListener() {
-            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                if (isChecked) {
-                    edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-                } else {
-                    edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-                }
+        //后台自动保存时也会回调,在主线程中更新桌面小部件
+        runOnUiThread(new Runnable() {
+            public void run() {
+                updateWidget();
             }
         });
+    }
 
-        //如果文本视图前的复选框被勾选，将字体加上删除线
-        if (item.startsWith(TAG_CHECKED)) {
-            cb.setChecked(true);
-            edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-            item = item.substring(TAG_CHECKED.length(), item.length()).trim();
-        } else if (item.startsWith(TAG_UNCHECKED)) {//如果取消勾选，则恢复
-            cb.setChecked(false);
-            edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-            item = item.substring(TAG_UNCHECKED.length(), item.length()).trim();
-        }
-
-        edit.setOnTextViewChangeListener(this);
-        edit.setIndex(index);
-        edit.setText(getHighlightQueryResult(item, mUserQuery));
-        return view;
+    //转换清单模式,条目视图在显示时才创建
+    private void switchToListMode(List<ChecklistItem> items) {
+        mChecklistAdapter.setTextAppearance(
+                TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
+        mChecklistAdapter.setItems(items);
+        updateEditorVisibility(true);
     }
 
     /**
-     * 当文本内容发生改变时调用
-     * @param index
-     * @param hasText
+     * 切换普通模式的编辑框和清单模式的编辑列表,清单模式下只在插入了图片时显示图片所在的滚动视图
      */
-    public void onTextChange(int index, boolean hasText) {
-        if (index >= mEditTextList.getChildCount()) {
-            Log.e(TAG, "Wrong index, should not happen");
-            return;
-        }
-        if(hasText) {
-            mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.VISIBLE);
-        } else {
-            mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.GONE);
-        }
+    private void updateEditorVisibility(boolean listMode) {
+        mNoteEditor.setVisibility(listMode ? View.GONE : View.VISIBLE);
+        mEditTextList.setVisibility(listMode ? View.VISIBLE : View.GONE);
+        mNoteContentScroll.setVisibility(!listMode || mInsertImage.getDrawable() != null
+                ? View.VISIBLE : View.GONE);
     }
 
     /**
@@ -1050,37 +1126,23 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
      */
     public void onCheckListModeChanged(int oldMode, int newMode) {
         if (newMode == TextNote.MODE_CHECK_LIST) {
-            switchToListMode(mNoteEditor.getText().toString());
+            switchToListMode(mWorkingNote.getChecklistItems());
         } else {
-            if (!getWorkingText()) {
-                mWorkingNote.setWorkingText(mWorkingNote.getContent().replace(TAG_UNCHECKED + " ",
-                        ""));
-            }
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
-            mEditTextList.setVisibility(View.GONE);
-            mNoteEditor.setVisibility(View.VISIBLE);
+            mNoteEditor.setText(mWorkingNote.getContent());
+            updateEditorVisibility(false);
         }
     }
 
+    /**
+     * 把编辑内容写入WorkingNote,清单模式下只记录有变化的条目
+     * @return 清单模式下是否有已勾选的条目
+     */
     private boolean getWorkingText() {
         boolean hasChecked = false;
         //当设置为清单模式时
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-            StringBuilder sb = new StringBuilder();
-            //重新绘制视图
-            for (int i = 0; i < mEditTextList.getChildCount(); i++) {
-                View view = mEditTextList.getChildAt(i);
-                NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-                if (!TextUtils.isEmpty(edit.getText())) {
-                    if (((CheckBox) view.findViewById(R.id.cb_edit_item)).isChecked()) {
-                        sb.append(TAG_CHECKED).append(" ").append(edit.getText()).append("\n");
-                        hasChecked = true;
-                    } else {
-                        sb.append(TAG_UNCHECKED).append(" ").append(edit.getText()).append("\n");
-                    }
-                }
-            }
-            mWorkingNote.setWorkingText(sb.toString());
+            hasChecked = mChecklistAdapter.hasCheckedItem();
+            mWorkingNote.setChecklistItems(mChecklistAdapter.getItems());
         } else {
             //若未设置，则按普通文本设置
             mWorkingNote.setWorkingText(mNoteEditor.getText().toString());
@@ -1089,10 +1151,43 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
     }
 
     /**
-     * 保存便签，返回是否保存的布尔值
+     * 便签已在数据库中时立即执行,否则交给后台保存,保存完成后在主线程中执行,
+     * 执行时便签未能保存则没有便签ID。保存线程按顺序执行,排在保存之后的任务能得到便签ID
+     * @param action 需要便签ID的操作
+     */
+    private void runWhenSaved(final Runnable action) {
+        if (mWorkingNote.existInDatabase() || !mAutoSaver.flush()) {
+            action.run();
+            return;
+        }
+        setResult(RESULT_OK);
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... unused) {
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void unused) {
+                if (!isFinishing()) {
+                    action.run();
+                }
+            }
+        }.executeOnExecutor(NoteAutoSaver.getSaveExecutor());
+    }
+
+    /**
+     * 在主线程中同步保存便签，返回是否保存的布尔值。
+     * 便签的保存互斥,后台自动保存正在写入时会等待它完成,
+     * 只用于必须在返回前得到便签ID的场合,其他场合使用{@link #runWhenSaved}或自动保存
      * @return
      */
     private boolean saveNote() {
+        if (mWorkingNote == null) {
+            return false;
+        }
+        //需要立即得到便签ID时同步保存,取消尚未开始的自动保存
+        mAutoSaver.cancel();
         getWorkingText();
         boolean saved = mWorkingNote.saveNote();
         if (saved) {
@@ -1117,10 +1212,14 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
          * editing note is exists in databases. So, for new note, firstly
          * save it
          */
-        if (!mWorkingNote.existInDatabase()) {
-            saveNote();
-        }
+        runWhenSaved(new Runnable() {
+            public void run() {
+                installShortcut();
+            }
+        });
+    }
 
+    private void installShortcut() {
         if (mWorkingNote.getNoteId() > 0) {
             Intent sender = new Intent();
             Intent shortcutIntent = new Intent(this, NoteEditActivity.class);
@@ -1162,40 +1261,92 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
     }
 
     /**
-     * 截取指定View为图片
-     *
-     * @param view
-     * @return
-     * @throws Throwable
+     * 在后台把便签渲染为图片后分享,渲染过程中显示进度
      */
-    public static Bitmap captureView(View view){
-        Bitmap bm = Bitmap.createBitmap(view.getWidth(), view.getHeight(), Bitmap.Config.ARGB_8888);
-        view.draw(new Canvas(bm));
-        return bm;
-    }
-
-    /** * 将图片存到本地 */
-    private static Uri saveBitmap(Bitmap bm, String picName) {
-        try {
-            String dir=Environment.getExternalStorageDirectory().getAbsolutePath()+"/DCIM/"+picName+".png";
-            Log.d("dir: ", dir);
-            File f = new File(dir);
-            if (!f.exists()) {
-                f.getParentFile().mkdirs();
-                f.createNewFile();
+    private void shareAsImage() {
+        if (mShareImageTask != null) {
+            return;
+        }
+        getWorkingText();
+        //渲染需要的样式在主线程中取出,后台线程不访问视图
+        TextPaint paint = new TextPaint(mNoteEditor.getPaint());
+        paint.setColor(mNoteEditor.getCurrentTextColor());
+        int width = mNoteEditorPanel.getWidth() > 0 ? mNoteEditorPanel.getWidth()
+                : getResources().getDisplayMetrics().widthPixels;
+        Rect padding = new Rect(mNoteEditor.getPaddingLeft(), mNoteEditor.getPaddingTop(),
+                mNoteEditor.getPaddingRight(), mNoteEditor.getPaddingBottom());
+        Drawable background = getResources().getDrawable(mWorkingNote.getBgColorResId());
+        Bitmap image = mInsertImage.getDrawable() instanceof BitmapDrawable
+                ? ((BitmapDrawable) mInsertImage.getDrawable()).getBitmap() : null;
+        final NoteImageRenderer renderer = new NoteImageRenderer(mWorkingNote.getContent(),
+                paint, width, padding, mNoteEditor.getLineSpacingMultiplier(),
+                mNoteEditor.getLineSpacingExtra(), background, image);
+        final File output = new File(Environment.getExternalStorageDirectory(),
+                SHARE_IMAGE_PATH);
+
+        final ProgressDialog progress = new ProgressDialog(this);
+        mShareImageTask = new AsyncTask<Void, Integer, ArrayList<Uri>>() {
+            protected ArrayList<Uri> doInBackground(Void... unused) {
+                return renderer.render(output, Bitmap.CompressFormat.JPEG, SHARE_IMAGE_QUALITY,
+                        new NoteImageRenderer.ProgressListener() {
+                            public void onRenderProgress(int done, int total) {
+                                publishProgress(done * 100 / total);
+                            }
+
+                            public boolean isRenderCancelled() {
+                                return isCancelled();
+                            }
+                        });
+            }
+
+            @Override
+            protected void onProgressUpdate(Integer... values) {
+                progress.setProgress(values[0]);
+            }
+
+            @Override
+            protected void onPostExecute(ArrayList<Uri> uris) {
+                if (mShareImageTask == this) {
+                    mShareImageTask = null;
+                }
+                if (progress.isShowing()) {
+                    progress.dismiss();
+                }
+                Log.d(TAG, "Share image uris: " + uris);
+                sendTo(NoteEditActivity.this, uris);
             }
-            FileOutputStream out = new FileOutputStream(f);
-            bm.compress(Bitmap.CompressFormat.PNG, 90, out);
-            out.flush();
-            out.close();
-            Uri uri = Uri.fromFile(f);
-            return uri;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();    }
-        return null;
+
+            @Override
+            protected void onCancelled(ArrayList<Uri> uris) {
+                if (mShareImageTask == this) {
+                    mShareImageTask = null;
+                }
+                if (progress.isShowing()) {
+                    progress.dismiss();
+                }
+            }
+        };
+        progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progress.setMessage(getString(R.string.progress_rendering_image));
+        progress.setMax(100);
+        progress.setCancelable(false);
+        progress.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        cancelShareImage();
+                    }
+                });
+        progress.show();
+        mShareImageTask.execute();
+    }
+
+    private void cancelShareImage() {
+        if (mShareImageTask != null) {
+            mShareImageTask.cancel(false);
+            mShareImageTask = null;
+        }
     }
+
     /**
      * 从相机中获取图片
      */
@@ -1252,12 +1403,63 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
         }
     }
 
-    //展示图片
-    private void displayImage(String imagePath){
+    //展示图片,在后台按显示区域的大小降采样解码
+    private void displayImage(final String imagePath){
         save(imagePath);
+        cancelImageLoad();
         if (imagePath != null){
-            Bitmap bitmap = BitmapFactory.decodeFile(imagePath);
-            mInsertImage.setImageBitmap(bitmap);
+            if (mNoteEditorPanel.getWidth() > 0) {
+                loadImage(imagePath);
+                return;
+            }
+            //界面尚未完成布局时不知道显示区域的大小,布局完成后再加载
+            mPendingImagePath = imagePath;
+            mNoteEditorPanel.getViewTreeObserver().addOnGlobalLayoutListener(
+                    new ViewTreeObserver.OnGlobalLayoutListener() {
+                        public void onGlobalLayout() {
+                            mNoteEditorPanel.getViewTreeObserver()
+                                    .removeOnGlobalLayoutListener(this);
+                            if (imagePath.equals(mPendingImagePath)) {
+                                mPendingImagePath = null;
+                                loadImage(imagePath);
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * 按图片的显示区域解码:宽度不超过内容区域的宽度,高度不超过一屏可见的内容区域。
+     * 清单模式下内容区域可能隐藏,此时使用整个编辑区域的大小
+     */
+    private void loadImage(String imagePath) {
+        View area = mNoteContentScroll.getWidth() > 0 ? mNoteContentScroll : mNoteEditorPanel;
+        int maxWidth = area.getWidth() - area.getPaddingLeft() - area.getPaddingRight();
+        int maxHeight = area.getHeight() - area.getPaddingTop() - area.getPaddingBottom();
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            DisplayMetrics metrics = getResources().getDisplayMetrics();
+            maxWidth = metrics.widthPixels;
+            maxHeight = metrics.heightPixels;
+        }
+        mImageRequest = AttachmentImageLoader.getInstance(this).load(imagePath,
+                maxWidth, maxHeight,
+                new AttachmentImageLoader.Callback() {
+                    public void onImageLoaded(String path, Bitmap bitmap) {
+                        mImageRequest = null;
+                        mInsertImage.setImageBitmap(bitmap);
+                        if (mWorkingNote != null
+                                && mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
+                            updateEditorVisibility(true);
+                        }
+                    }
+                });
+    }
+
+    private void cancelImageLoad() {
+        mPendingImagePath = null;
+        if (mImageRequest != null) {
+            mImageRequest.cancel();
+            mImageRequest = null;
         }
     }
 
@@ -1298,14 +1500,28 @@ public class NoteEditActivity extends ActivityUiDialog implements OnClickListene
         mBtnFontUnderline.setOnClickListener(this);
     }
 
+    /**
+     * 识别引擎在第一次点击语音输入时获取,获取后替换为对话框使用的回调
+     */
+    @Override
+    protected void onRecognizerAcquired() {
+        super.onRecognizerAcquired();
+        chainRecogListener = new ChainRecogListener();
+        // DigitalDialogInput 输入 ，MessageStatusRecogListener可替换为用户自己业务逻辑的listener
+        chainRecogListener.addListener(new MessageStatusRecogListener(handler));
+        setRecogListener(chainRecogListener); // 替换掉原来的listener
+    }
+
     /**
      * 开始录音，点击按钮后调用。
      */
     @Override
     protected void start() {
         final Map<String, Object> params = fetchParams();
+        //需要先获取识别引擎,获取时才会设置chainRecogListener
+        MyRecognizer recognizer = getRecognizer();
         // BaiduASRDigitalDialog的输入参数
-        input = new DigitalDialogInput(myRecognizer, chainRecogListener, params);
+        input = new DigitalDialogInput(recognizer, chainRecogListener, params);
         BaiduASRDigitalDialog.setInput(input); // 传递input信息，在BaiduASRDialog中读取,
         Intent intent = new Intent(this, BaiduASRDigitalDialog.class);
         // 修改对话框样式
@@ -18,19 +18,27 @@ package net.micode.notes.ui;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 
+import net.micode.notes.R;
 import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.tool.DataUtils;
+import net.micode.notes.tool.ResourceParser.NoteItemBgResources;
+
+import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * 该类主要是设置便签列表中每个item(便签或文件夹)里的数据信息
  */
 public class NoteItemData {
     //NoteColumns是一个存放有一个item（便签或文件夹）所有信息的字符串数组
-    static final String [] PROJECTION = new String [] {
+    @VisibleForTesting
+    public static final String [] PROJECTION = new String [] {
         //每一行的唯一标识的ID
         NoteColumns.ID,
         //闹钟提醒的日期
@@ -70,6 +78,11 @@ public class NoteItemData {
     private static final int WIDGET_ID_COLUMN             = 10;
     private static final int WIDGET_TYPE_COLUMN           = 11;
 
+    //列表中一行的位置形状,由所在位置和前后行决定,同一行的形状变化时背景需要重新计算
+    public static final int SHAPE_FIRST              = 1;
+    public static final int SHAPE_LAST               = 1 << 1;
+    public static final int SHAPE_FOLLOWING_FOLDER   = 1 << 2;
+
     private long mId;
     private long mAlertDate;
     private int mBgColorId;
@@ -84,6 +97,15 @@ public class NoteItemData {
     private int mWidgetType;
     private String mName;
     private String mPhoneNumber;
+    //联系人姓名尚未缓存,暂时显示电话号码
+    private boolean mContactPending;
+
+    //预先计算的标题、修改时间和背景资源
+    private String mTitle;
+    private CharSequence mTime;
+    private int mBgResId;
+
+    private int mShape;
 
     private boolean mIsLastItem;
     private boolean mIsFirstItem;
@@ -91,12 +113,71 @@ public class NoteItemData {
     private boolean mIsOneNoteFollowingFolder;
     private boolean mIsMultiNotesFollowingFolder;
 
+    private NoteItemData(Cursor cursor) {
+        readRow(cursor);
+    }
+
+    /**
+     * 依次读取游标中的所有行,创建列表条目并预先计算显示需要的内容。
+     * 通话便签的号码用一次查询批量取出,查询联系人时不要在主线程中调用
+     * @param cursor 列表的一段连续的行
+     * @param shapes 每一行的位置形状,由{@link #SHAPE_FIRST}等标志组成,与游标的行一一对应
+     * @param prefetchContacts 是否查询尚未缓存的联系人姓名
+     */
+    public static NoteItemData[] createItems(Context context, Cursor cursor, int[] shapes,
+                                             boolean prefetchContacts) {
+        int count = Math.min(cursor.getCount(), shapes.length);
+        NoteItemData[] items = new NoteItemData[count];
+        HashSet<Long> callNoteIds = new HashSet<Long>();
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            NoteItemData item = new NoteItemData(cursor);
+            item.setShape(shapes[i]);
+            if (item.mParentId == Notes.ID_CALL_RECORD_FOLDER) {
+                callNoteIds.add(item.mId);
+            }
+            items[i] = item;
+        }
+
+        if (!callNoteIds.isEmpty()) {
+            HashMap<Long, String> numbers = DataUtils.getCallNumbersByNoteIds(
+                    context.getContentResolver(), callNoteIds);
+            if (prefetchContacts) {
+                Contact.prefetchContacts(context, numbers.values());
+            }
+            for (NoteItemData item : items) {
+                if (item.mParentId == Notes.ID_CALL_RECORD_FOLDER) {
+                    item.setPhoneNumber(numbers.get(item.mId));
+                }
+            }
+        }
+        for (NoteItemData item : items) {
+            item.prepareDisplay(context);
+        }
+        return items;
+    }
+
+    /**
+     * 根据位置形状设置首行、末行和紧跟文件夹等标志
+     */
+    private void setShape(int shape) {
+        mShape = shape;
+        boolean first = (shape & SHAPE_FIRST) != 0;
+        boolean last = (shape & SHAPE_LAST) != 0;
+        mIsFirstItem = first;
+        mIsLastItem = last;
+        mIsOnlyOneItem = first && last;
+        mIsMultiNotesFollowingFolder = false;
+        mIsOneNoteFollowingFolder = false;
+        if (mType == Notes.TYPE_NOTE && !first && (shape & SHAPE_FOLLOWING_FOLDER) != 0) {
+            mIsMultiNotesFollowingFolder = !last;
+            mIsOneNoteFollowingFolder = last;
+        }
+    }
+
     /**
-     * NoteItemData类的构造函数，进行初始化的操作
-     * @param context 通过该参数来进行进行资源的访问
-     * @param cursor 数据库查询语句返回的数据集
+     * 读取游标当前行的各列
      */
-    public NoteItemData(Context context, Cursor cursor) {
+    private void readRow(Cursor cursor) {
         //以下是将cursor中的每一行的数据赋值到变量中
         mId = cursor.getLong(ID_COLUMN);
         mAlertDate = cursor.getLong(ALERTED_DATE_COLUMN);
@@ -112,56 +193,66 @@ public class NoteItemData {
         mType = cursor.getInt(TYPE_COLUMN);
         mWidgetId = cursor.getInt(WIDGET_ID_COLUMN);
         mWidgetType = cursor.getInt(WIDGET_TYPE_COLUMN);
-
         mPhoneNumber = "";
-        if (mParentId == Notes.ID_CALL_RECORD_FOLDER) {
-            mPhoneNumber = DataUtils.getCallNumberByNoteId(context.getContentResolver(), mId);
-            if (!TextUtils.isEmpty(mPhoneNumber)) {
-                mName = Contact.getContact(context, mPhoneNumber);
-                if (mName == null) {
-                    mName = mPhoneNumber;
-                }
-            }
+        mName = "";
+    }
+
+    /**
+     * 设置通话便签的电话号码,姓名只从联系人缓存中读取,未缓存时暂时显示号码
+     */
+    private void setPhoneNumber(String phoneNumber) {
+        if (TextUtils.isEmpty(phoneNumber)) {
+            return;
         }
+        mPhoneNumber = phoneNumber;
+        mContactPending = !Contact.isCached(phoneNumber);
+        String name = Contact.getCachedContact(phoneNumber);
+        mName = name == null ? phoneNumber : name;
+    }
 
-        if (mName == null) {
-            mName = "";
+    /**
+     * 尚未取得联系人姓名时重新读取缓存,在绑定视图时调用,不会查询数据库
+     * @return 是否已取得结果
+     */
+    public boolean refreshContact() {
+        if (mContactPending && Contact.isCached(mPhoneNumber)) {
+            String name = Contact.getCachedContact(mPhoneNumber);
+            mName = name == null ? mPhoneNumber : name;
+            mContactPending = false;
         }
-        checkPostion(cursor);
+        return !mContactPending;
     }
 
     /**
-     * 用于检查cursor（数据集）的当前游标位置
-     * @param cursor
+     * 预先计算标题、修改时间和背景资源,绑定视图时直接使用
      */
-    private void checkPostion(Cursor cursor) {
-        mIsLastItem = cursor.isLast() ? true : false;
-        mIsFirstItem = cursor.isFirst() ? true : false;
-        mIsOnlyOneItem = (cursor.getCount() == 1);
-        mIsMultiNotesFollowingFolder = false;
-        mIsOneNoteFollowingFolder = false;
-        //如果文件类型为便签，且不是cursor中的第一个item
-        if (mType == Notes.TYPE_NOTE && !mIsFirstItem) {
-            int position = cursor.getPosition();
-            //如果cursor能移到上一行
-            if (cursor.moveToPrevious()) {
-                //如果文件类型为便签
-                if (cursor.getInt(TYPE_COLUMN) == Notes.TYPE_FOLDER
-                        || cursor.getInt(TYPE_COLUMN) == Notes.TYPE_SYSTEM) {
-                    if (cursor.getCount() > (position + 1)) {
-                        //多文件文件夹
-                        mIsMultiNotesFollowingFolder = true;
-                    } else {
-                        //单文件文件夹
-                        mIsOneNoteFollowingFolder = true;
-                    }
-                }
-                if (!cursor.moveToNext()) {
-                    throw new IllegalStateException("cursor move to previous but can't move back");
-                }
+    private void prepareDisplay(Context context) {
+        if (mId == Notes.ID_CALL_RECORD_FOLDER) {
+            mTitle = context.getString(R.string.call_record_folder_name)
+                    + context.getString(R.string.format_folder_files_count, mNotesCount);
+        } else if (mType == Notes.TYPE_FOLDER) {
+            mTitle = mSnippet + context.getString(R.string.format_folder_files_count, mNotesCount);
+        } else {
+            mTitle = DataUtils.getFormattedSnippet(mSnippet);
+        }
+        mTime = DateUtils.getRelativeTimeSpanString(mModifiedDate);
+
+        if (mType == Notes.TYPE_NOTE) {
+            if (mIsOnlyOneItem || mIsOneNoteFollowingFolder) {
+                mBgResId = NoteItemBgResources.getNoteBgSingleRes(mBgColorId);
+            } else if (mIsLastItem) {
+                mBgResId = NoteItemBgResources.getNoteBgLastRes(mBgColorId);
+            } else if (mIsFirstItem || mIsMultiNotesFollowingFolder) {
+                mBgResId = NoteItemBgResources.getNoteBgFirstRes(mBgColorId);
+            } else {
+                mBgResId = NoteItemBgResources.getNoteBgNormalRes(mBgColorId);
             }
+        } else {
+            //如果是文件夹，则采用默认背景颜色
+            mBgResId = NoteItemBgResources.getFolderBgRes();
         }
     }
+
     //以下是set，get及一些简单的判断方法
     public boolean isOneFollowingFolder() {
         return mIsOneNoteFollowingFolder;
@@ -179,6 +270,30 @@ public class NoteItemData {
         return mName;
     }
 
+    public String getPhoneNumber() {
+        return mPhoneNumber;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public CharSequence getTime() {
+        return mTime;
+    }
+
+    public int getBgResId() {
+        return mBgResId;
+    }
+
+    public boolean isContactPending() {
+        return mContactPending;
+    }
+
+    public int getShape() {
+        return mShape;
+    }
+
     public boolean isFirst() {
         return mIsFirstItem;
     }
@@ -246,8 +361,4 @@ public class NoteItemData {
     public boolean isCallRecord() {
         return (mParentId == Notes.ID_CALL_RECORD_FOLDER && !TextUtils.isEmpty(mPhoneNumber));
     }
-
-    public static int getNoteType(Cursor cursor) {
-        return cursor.getInt(TYPE_COLUMN);
-    }
 }
@@ -19,6 +19,7 @@ package net.micode.notes.ui;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.appwidget.AppWidgetManager;
 import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
@@ -27,6 +28,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -34,14 +36,20 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
+import android.support.annotation.VisibleForTesting;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.util.Log;
 import android.view.ActionMode;
+import android.view.Choreographer;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Display;
@@ -59,17 +67,14 @@ import android.view.View.OnTouchListener;
 import android.view.inputmethod.InputMethodManager;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
-import android.widget.AdapterView;
-import android.widget.AdapterView.OnItemClickListener;
-import android.widget.AdapterView.OnItemLongClickListener;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.FrameLayout;
-import android.widget.ListView;
 import android.widget.PopupMenu;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import net.micode.notes.BuildConfig;
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
@@ -78,6 +83,7 @@ import net.micode.notes.model.WorkingNote;
 import net.micode.notes.tool.BackupUtils;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.ResourceParser;
+import net.micode.notes.tool.StartupPipeline;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
 import net.micode.notes.widget.NoteWidgetProvider_2x;
 import net.micode.notes.widget.NoteWidgetProvider_4x;
@@ -92,11 +98,10 @@ import java.util.HashSet;
  * 主界面实现类，负责便签列表及便签文件夹的展示
  *
  */
-public class NotesListActivity extends AppCompatActivity implements OnClickListener, OnItemLongClickListener {
+public class NotesListActivity extends AppCompatActivity implements OnClickListener,
+        NotesListAdapter.OnItemClickListener {
     //以下是对静态常量的设置
 
-    //文件夹内便签查询的令牌token
-    private static final int FOLDER_NOTE_LIST_QUERY_TOKEN = 0;
     //查询文件夹列表的令牌token
     private static final int FOLDER_LIST_QUERY_TOKEN      = 1;
     private static final int MENU_FOLDER_DELETE = 0;
@@ -120,7 +125,9 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
 
     private WebView mWebView;
 
-    private ListView mNotesListView;
+    private RecyclerView mNotesListView;
+
+    private LinearLayoutManager mNotesLayoutManager;
 
     private Button mAddNewNote;
 
@@ -144,16 +151,125 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
 
     private NoteItemData mFocusNoteDataItem;
 
-    private static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?";
-    //主文件夹的查询串
-    private static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
-            + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?)" + " OR ("
+    @VisibleForTesting
+    public static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?";
+    //主文件夹的查询串,系统文件夹都在主文件夹中,只显示有便签的通话记录文件夹。
+    //所有条件都限定在parent_id下,查询和排序都可以使用文件夹索引
+    @VisibleForTesting
+    public static final String ROOT_FOLDER_SELECTION = NoteColumns.PARENT_ID + "=? AND ("
+            + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM + " OR ("
             + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
-            + NoteColumns.NOTES_COUNT + ">0)";
+            + NoteColumns.NOTES_COUNT + ">0))";
+
+    //移动便签时可选的目标文件夹:文件夹只能建在主文件夹中,不包括当前文件夹
+    @VisibleForTesting
+    public static final String DESTINATION_FOLDER_SELECTION = NoteColumns.PARENT_ID + "="
+            + Notes.ID_ROOT_FOLDER + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER
+            + " AND " + NoteColumns.ID + "<>?";
+
+    //在文件夹中移动便签时,主文件夹也是可选的目标
+    @VisibleForTesting
+    public static final String DESTINATION_FOLDER_WITH_ROOT_SELECTION = NoteColumns.PARENT_ID + "="
+            + Notes.ID_ROOT_FOLDER + " AND ((" + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER
+            + " AND " + NoteColumns.ID + "<>?) OR " + NoteColumns.ID + "=" + Notes.ID_ROOT_FOLDER + ")";
+
+    //主文件夹排在最前,其余文件夹按修改时间倒序
+    @VisibleForTesting
+    public static final String DESTINATION_FOLDER_SORT_ORDER = NoteColumns.TYPE + " DESC,"
+            + NoteColumns.MODIFIED_DATE + " DESC";
 
     private final static int REQUEST_CODE_OPEN_NODE = 102;
     private final static int REQUEST_CODE_NEW_NODE  = 103;
 
+    //启动时的分级初始化,界面销毁时取消尚未执行的部分
+    private StartupPipeline mStartupPipeline;
+
+    //便签列表正在后台查询
+    private boolean mNotesListQueryRunning;
+
+    //查询期间数据变化或切换了文件夹,查询完成后需要重新查询
+    private boolean mNotesListQueryPending;
+
+    //界面可见期间监听便签数据的变化,在后台生成新快照并只刷新变化的行
+    private final ContentObserver mNotesObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            startAsyncNotesListQuery();
+        }
+    };
+
+    //批量删除的条目超过该数目时显示进度并允许取消
+    private static final int BATCH_PROGRESS_THRESHOLD = 500;
+
+    private final FrameMonitor mScrollFrameMonitor = new FrameMonitor();
+
+    //列表更新(数据变化后的增量刷新和动画)期间的帧间隔统计
+    private final FrameMonitor mUpdateFrameMonitor = new FrameMonitor();
+
+    /**
+     * 记录一段时间内每一帧的间隔,停止时输出平均值、最大值和超过两个刷新周期的帧数。
+     * 只在调试版中统计,发布版中start不做任何事
+     */
+    private static class FrameMonitor implements Choreographer.FrameCallback {
+        //超过该间隔的帧视为卡顿
+        private static final long JANK_FRAME_NANOS = 2 * 16666667L;
+
+        private boolean mRunning;
+        private long mLastFrameNanos;
+        private int mFrameCount;
+        private int mJankCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        void start() {
+            if (!BuildConfig.DEBUG || mRunning) {
+                return;
+            }
+            mRunning = true;
+            mLastFrameNanos = 0;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        /**
+         * @param reason 统计的场景,输出在日志中
+         */
+        void stop(String reason) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+            if (mFrameCount > 0) {
+                Log.d(TAG, reason + ": " + mFrameCount + " frames, avg:"
+                        + (mTotalNanos / mFrameCount / 1000) + "us max:" + (mMaxNanos / 1000)
+                        + "us janky:" + mJankCount);
+            }
+            mFrameCount = 0;
+            mJankCount = 0;
+            mTotalNanos = 0;
+            mMaxNanos = 0;
+        }
+
+        public void doFrame(long frameTimeNanos) {
+            if (!mRunning) {
+                return;
+            }
+            if (mLastFrameNanos != 0) {
+                long interval = frameTimeNanos - mLastFrameNanos;
+                mFrameCount++;
+                mTotalNanos += interval;
+                if (interval > mMaxNanos) {
+                    mMaxNanos = interval;
+                }
+                if (interval > JANK_FRAME_NANOS) {
+                    mJankCount++;
+                }
+            }
+            mLastFrameNanos = frameTimeNanos;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
 
    /**
     * 在界面创建时调用的方法，完成界面的创建
@@ -163,14 +279,35 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.note_list);//获取布局文件note_list.xml
-        initResources();//初始化各类控件和资源
+        mStartupPipeline = new StartupPipeline(TAG)
+                .add(StartupPipeline.TIER_CRITICAL, "initResources", new Runnable() {
+                    public void run() {
+                        setContentView(R.layout.note_list);//获取布局文件note_list.xml
+                        initResources();//初始化各类控件和资源
+                    }
+                })
+                /**
+                 * Insert an introduction when user firstly use this application
+                 */
+                //当用户是第一次使用时，在后台插入该App的相关介绍,插入后由数据变化的通知刷新列表
+                .add(StartupPipeline.TIER_FIRST_FRAME, "introduction", new Runnable() {
+                    public void run() {
+                        setAppInfoFromRawRes();
+                    }
+                })
+                //天气页面默认不显示,主线程空闲时再加载
+                .add(StartupPipeline.TIER_IDLE, "weather", new Runnable() {
+                    public void run() {
+                        loadWeatherView();
+                    }
+                });
+        mStartupPipeline.start(getWindow().getDecorView());
+    }
 
-        /**
-         * Insert an introduction when user firstly use this application
-         */
-        //当用户是第一次使用时，会插入该App的相关介绍
-        setAppInfoFromRawRes();
+    @Override
+    protected void onDestroy() {
+        mStartupPipeline.cancel();
+        super.onDestroy();
     }
 
 
@@ -183,25 +320,37 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
      */
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (resultCode == RESULT_OK
-                && (requestCode == REQUEST_CODE_OPEN_NODE || requestCode == REQUEST_CODE_NEW_NODE)) {
-            mNotesListAdapter.changeCursor(null);
-        } else {
+        //编辑便签后列表由数据变化的通知增量刷新,不需要清空
+        if (resultCode != RESULT_OK
+                || (requestCode != REQUEST_CODE_OPEN_NODE && requestCode != REQUEST_CODE_NEW_NODE)) {
             super.onActivityResult(requestCode, resultCode, data);
         }
     }
 
     /**
-     *  此方法用于对首次使用用户的介绍，调用raw下的文件
+     *  此方法用于对首次使用用户的介绍，在后台读取raw下的文件并保存为便签
      */
     private void setAppInfoFromRawRes() {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
+        final Context context = getApplicationContext();
+        new AsyncTask<Void, Void, Void>() {
+            protected Void doInBackground(Void... unused) {
+                addIntroductionNote(context);
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * 在后台线程中调用,加锁避免同时打开的多个界面重复插入
+     */
+    private static synchronized void addIntroductionNote(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
         if (!sp.getBoolean(PREFERENCE_ADD_INTRODUCTION, false)) {
             StringBuilder sb = new StringBuilder();
             InputStream in = null;
             //读取introduction文件里的内容
             try {
-                 in = getResources().openRawResource(R.raw.introduction);
+                 in = context.getResources().openRawResource(R.raw.introduction);
                 if (in != null) {
                     InputStreamReader isr = new InputStreamReader(in);
                     BufferedReader br = new BufferedReader(isr);
@@ -228,7 +377,7 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
                 }
             }
 
-            WorkingNote note = WorkingNote.createEmptyNote(this, Notes.ID_ROOT_FOLDER,
+            WorkingNote note = WorkingNote.createEmptyNote(context, Notes.ID_ROOT_FOLDER,
                     AppWidgetManager.INVALID_APPWIDGET_ID, Notes.TYPE_WIDGET_INVALIDE,
                     ResourceParser.RED);
             note.setWorkingText(sb.toString());
@@ -244,9 +393,18 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
     @Override
     protected void onStart() {
         super.onStart();
+        mContentResolver.registerContentObserver(Notes.CONTENT_NOTE_URI, true, mNotesObserver);
         startAsyncNotesListQuery();
     }
 
+    @Override
+    protected void onStop() {
+        mContentResolver.unregisterContentObserver(mNotesObserver);
+        mScrollFrameMonitor.stop("Scroll");
+        mUpdateFrameMonitor.stop("List update");
+        super.onStop();
+    }
+
     /**
      *  初始化各类控件资源
      */
@@ -255,20 +413,39 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
        //定义查询Handler类，用于完成便签及文件夹内文本内容的展示
        mBackgroundQueryHandler = new BackgroundQueryHandler(this.getContentResolver());
        mWebView = (WebView) findViewById(R.id.webview_weather);
-       mWebView.loadUrl("https://tianqiapi.com/api.php?style=tg&skin=pitaya");
-       if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-           mWebView.getSettings().setMixedContentMode(WebSettings.MIXED_CONTENT_ALWAYS_ALLOW);
-       }
-       mWebView.getSettings().setBlockNetworkImage(false);
        mWebView.setVisibility(View.GONE);
        mWebView.setBackgroundColor(0);
         mCurrentFolderId = Notes.ID_ROOT_FOLDER;
-        mNotesListView = (ListView) findViewById(R.id.notes_list);
-        mNotesListView.addFooterView(LayoutInflater.from(this).inflate(R.layout.note_list_footer, null),
-                null, false);
-        mNotesListView.setOnItemClickListener(new OnListItemClickListener());
-        mNotesListView.setOnItemLongClickListener(this);
+        mNotesListView = (RecyclerView) findViewById(R.id.notes_list);
+        mNotesLayoutManager = new LinearLayoutManager(this);
+        mNotesListView.setLayoutManager(mNotesLayoutManager);
+        mNotesListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                //调试版中滚动时统计帧间隔,停止后输出帧间隔和绑定视图的耗时
+                if (!BuildConfig.DEBUG) {
+                    return;
+                }
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    mScrollFrameMonitor.stop("Scroll");
+                    mNotesListAdapter.logBindStats("Scroll");
+                } else {
+                    mScrollFrameMonitor.start();
+                }
+            }
+
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                //按页加载时，在后台加载可见范围附近尚未加载的条目
+                NotesListSnapshot snapshot = mNotesListAdapter.getSnapshot();
+                if (snapshot != null) {
+                    snapshot.prefetch(mNotesLayoutManager.findFirstVisibleItemPosition(),
+                            mNotesLayoutManager.findLastVisibleItemPosition());
+                }
+            }
+        });
         mNotesListAdapter = new NotesListAdapter(this);
+        mNotesListAdapter.setOnItemClickListener(this);
         mNotesListView.setAdapter(mNotesListAdapter);
         mAddNewNote = (Button) findViewById(R.id.btn_new_note);
         mAddNewNote.setOnClickListener(this);
@@ -281,10 +458,21 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
         mModeCallBack = new ModeCallback();
     }
 
+    /**
+     * 加载天气页面,在启动完成后主线程空闲时调用
+     */
+    private void loadWeatherView() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mWebView.getSettings().setMixedContentMode(WebSettings.MIXED_CONTENT_ALWAYS_ALLOW);
+        }
+        mWebView.getSettings().setBlockNetworkImage(false);
+        mWebView.loadUrl("https://tianqiapi.com/api.php?style=tg&skin=pitaya");
+    }
+
     /**
      *  实现ActionMode.Callback接口，用于实现菜单功能
      */
-   private class ModeCallback implements ListView.MultiChoiceModeListener, OnMenuItemClickListener {
+   private class ModeCallback implements ActionMode.Callback, OnMenuItemClickListener {
         private DropdownMenu mDropDownMenu;
         private ActionMode mActionMode;
         private MenuItem mMoveMenu;
@@ -310,7 +498,6 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
             }
             mActionMode = mode;
             mNotesListAdapter.setChoiceMode(true);
-            mNotesListView.setLongClickable(false);
             mAddNewNote.setVisibility(View.GONE);
             //以下设置一个DropDownMenu，用于实现全选和取消全选的功能
             View customView = LayoutInflater.from(NotesListActivity.this).inflate(
@@ -362,7 +549,6 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
         //销毁时调用
         public void onDestroyActionMode(ActionMode mode) {
             mNotesListAdapter.setChoiceMode(false);
-            mNotesListView.setLongClickable(true);
             mAddNewNote.setVisibility(View.VISIBLE);
         }
 
@@ -370,6 +556,7 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
             mActionMode.finish();
         }
 
+        //列表条目的选中状态变化
         public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
                 boolean checked) {
             mNotesListAdapter.setCheckedItem(position, checked);
@@ -440,8 +627,7 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
                      * also change. This is very bad, just for the UI designer's strong requirement.
                      */
                     if (event.getY() < (event.getX() * (-0.12) + 94)) {
-                        View view = mNotesListView.getChildAt(mNotesListView.getChildCount() - 1
-                                - mNotesListView.getFooterViewsCount());
+                        View view = getLastNoteItemView();
                         if (view != null && view.getBottom() > start
                                 && (view.getTop() < (start + 94))) {
                             mOriginY = (int) event.getY();
@@ -476,15 +662,109 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
     };
 
     /**
-     * 开始查询数据库中便签信息，并依照文件类型及修改日期降序排列
+     * 列表中最后一个显示出来的便签或文件夹视图,不包含底部空白视图
+     */
+    private View getLastNoteItemView() {
+        for (int i = mNotesListView.getChildCount() - 1; i >= 0; i--) {
+            View child = mNotesListView.getChildAt(i);
+            if (child instanceof NotesListItem) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 开始查询数据库中便签信息，并依照文件类型及修改日期降序排列。
+     * 在后台生成列表快照,同一文件夹内与当前快照比较差异,列表只刷新、动画显示变化的行;
+     * 文件夹内的条目超过{@link NotesListSnapshot#FULLY_LOADED_THRESHOLD}时按页加载条目。
+     * 同一时间只有一个查询,查询期间的再次请求合并为完成后的一次查询
      */
     private void startAsyncNotesListQuery() {
-        String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
+        if (mNotesListQueryRunning) {
+            mNotesListQueryPending = true;
+            return;
+        }
+        mNotesListQueryRunning = true;
+        final String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
                 : NORMAL_SELECTION;
-        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, null,
-                Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection, new String[]{
-                        String.valueOf(mCurrentFolderId)
-                }, NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC");
+        final String[] selectionArgs = new String[] {
+                String.valueOf(mCurrentFolderId)
+        };
+        final NotesListSnapshot previous = mNotesListAdapter.getSnapshot();
+        //旧快照的条目在主线程中会被修改,复制后再交给后台线程
+        final NoteItemData[] previousItems = previous == null ? null : previous.copyItems();
+        final int firstVisible = mNotesLayoutManager.findFirstVisibleItemPosition();
+        final int lastVisible = mNotesLayoutManager.findLastVisibleItemPosition();
+        new AsyncTask<Void, Void, NotesListSnapshot>() {
+            //与当前快照的差异,切换文件夹或第一次查询时为null
+            private DiffUtil.DiffResult mDiff;
+
+            @Override
+            protected NotesListSnapshot doInBackground(Void... unused) {
+                NotesListSnapshot snapshot = NotesListSnapshot.load(NotesListActivity.this,
+                        selection, selectionArgs, previous, previousItems, firstVisible,
+                        lastVisible);
+                if (snapshot != null && previous != null
+                        && previous.isSameList(selection, selectionArgs)) {
+                    mDiff = NotesListSnapshot.diff(previous, snapshot);
+                }
+                return snapshot;
+            }
+
+            @Override
+            protected void onPostExecute(NotesListSnapshot snapshot) {
+                mNotesListQueryRunning = false;
+                if (mNotesListQueryPending) {
+                    mNotesListQueryPending = false;
+                    startAsyncNotesListQuery();
+                    return;
+                }
+                if (snapshot == null || isFinishing()
+                        || previous != mNotesListAdapter.getSnapshot()) {
+                    return;
+                }
+                if (mDiff != null && BuildConfig.DEBUG) {
+                    //调试版中统计增量刷新期间绑定的行数和帧间隔
+                    mNotesListAdapter.resetBindStats();
+                    mUpdateFrameMonitor.start();
+                    mNotesListAdapter.setSnapshot(snapshot, mDiff);
+                    measureListUpdate();
+                } else {
+                    mNotesListAdapter.setSnapshot(snapshot, mDiff);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * 在增量刷新的布局和条目动画都完成后输出这段时间的帧间隔和绑定视图的次数、耗时,只在调试版中调用。
+     * 下一帧完成布局后检查动画,动画在之后的帧中执行
+     */
+    private void measureListUpdate() {
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+            public void doFrame(long frameTimeNanos) {
+                mNotesListView.post(new Runnable() {
+                    public void run() {
+                        RecyclerView.ItemAnimator animator = mNotesListView.getItemAnimator();
+                        if (animator == null) {
+                            finishListUpdateMeasure();
+                            return;
+                        }
+                        animator.isRunning(new RecyclerView.ItemAnimator.ItemAnimatorFinishedListener() {
+                            public void onAnimationsFinished() {
+                                finishListUpdateMeasure();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private void finishListUpdateMeasure() {
+        mUpdateFrameMonitor.stop("List update");
+        mNotesListAdapter.logBindStats("List update");
     }
 
     /**
@@ -505,10 +785,6 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
         @Override
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
             switch (token) {
-                //查询便签
-                case FOLDER_NOTE_LIST_QUERY_TOKEN:
-                    mNotesListAdapter.changeCursor(cursor);
-                    break;
                 //查询文件夹
                 case FOLDER_LIST_QUERY_TOKEN:
                     if (cursor != null && cursor.getCount() > 0) {
@@ -557,41 +833,91 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
     }
     //实现批量删除的功能
     private void batchDelete() {
-        new AsyncTask<Void, Void, HashSet<AppWidgetAttribute>>() {
+        final HashSet<Long> ids = mNotesListAdapter.getSelectedItemIds();
+        final ProgressDialog progress = ids.size() > BATCH_PROGRESS_THRESHOLD
+                ? new ProgressDialog(this) : null;
+        final AsyncTask<Void, Integer, HashSet<AppWidgetAttribute>> task =
+                new AsyncTask<Void, Integer, HashSet<AppWidgetAttribute>>() {
             //将会在后台执行任务
             protected HashSet<AppWidgetAttribute> doInBackground(Void... unused) {
-                HashSet<AppWidgetAttribute> widgets = mNotesListAdapter.getSelectedWidget();
+                //选中的便签可能不在已加载的页中,删除前按ID查询它们的桌面小部件
+                HashSet<AppWidgetAttribute> widgets = DataUtils.getNotesWidget(mContentResolver,
+                        ids);
+                DataUtils.BatchProgressListener listener = new DataUtils.BatchProgressListener() {
+                    public void onBatchProgress(int done, int total) {
+                        publishProgress(done);
+                    }
+
+                    public boolean isBatchCancelled() {
+                        return isCancelled();
+                    }
+                };
                 if (!isSyncMode()) {
                     // if not synced, delete notes directly
-                    if (DataUtils.batchDeleteNotes(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds())) {
-                    } else {
+                    if (!DataUtils.batchDeleteNotes(mContentResolver, ids, listener)
+                            && !isCancelled()) {
                         Log.e(TAG, "Delete notes error, should not happens");
                     }
                 } else {
                     // in sync mode, we'll move the deleted note into the trash
                     // folder
-                    if (!DataUtils.batchMoveToFolder(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds(), Notes.ID_TRASH_FOLER)) {
+                    if (!DataUtils.batchMoveToFolder(mContentResolver, ids,
+                            Notes.ID_TRASH_FOLER, listener) && !isCancelled()) {
                         Log.e(TAG, "Move notes to trash folder error, should not happens");
                     }
                 }
                 return widgets;
             }
+
+            @Override
+            protected void onProgressUpdate(Integer... values) {
+                if (progress != null) {
+                    progress.setProgress(values[0]);
+                }
+            }
+
             //当后台操作结束时调用
             @Override
             protected void onPostExecute(HashSet<AppWidgetAttribute> widgets) {
-                if (widgets != null) {
-                    for (AppWidgetAttribute widget : widgets) {
-                        if (widget.widgetId != AppWidgetManager.INVALID_APPWIDGET_ID
-                                && widget.widgetType != Notes.TYPE_WIDGET_INVALIDE) {
-                            updateWidget(widget.widgetId, widget.widgetType);
+                onBatchDeleteFinished(progress, widgets);
+            }
+
+            //取消时已处理的批次不会回滚,同样需要更新小部件并退出多选模式
+            @Override
+            protected void onCancelled(HashSet<AppWidgetAttribute> widgets) {
+                onBatchDeleteFinished(progress, widgets);
+            }
+        };
+        if (progress != null) {
+            progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            progress.setMessage(getString(R.string.progress_deleting_notes));
+            progress.setMax(ids.size());
+            progress.setCancelable(false);
+            progress.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+                    new DialogInterface.OnClickListener() {
+                        public void onClick(DialogInterface dialog, int which) {
+                            task.cancel(false);
                         }
-                    }
+                    });
+            progress.show();
+        }
+        task.execute();
+    }
+
+    private void onBatchDeleteFinished(ProgressDialog progress,
+                                       HashSet<AppWidgetAttribute> widgets) {
+        if (progress != null && progress.isShowing()) {
+            progress.dismiss();
+        }
+        if (widgets != null) {
+            for (AppWidgetAttribute widget : widgets) {
+                if (widget.widgetId != AppWidgetManager.INVALID_APPWIDGET_ID
+                        && widget.widgetType != Notes.TYPE_WIDGET_INVALIDE) {
+                    updateWidget(widget.widgetId, widget.widgetType);
                 }
-                mModeCallBack.finishActionMode();
             }
-        }.execute();
+        }
+        mModeCallBack.finishActionMode();
     }
 
     /**
@@ -604,25 +930,35 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
             return;
         }
 
-        HashSet<Long> ids = new HashSet<Long>();
+        final HashSet<Long> ids = new HashSet<Long>();
         ids.add(folderId);
-        HashSet<AppWidgetAttribute> widgets = DataUtils.getFolderNoteWidget(mContentResolver,
-                folderId);
-        if (!isSyncMode()) {
-            // if not synced, delete folder directly
-            DataUtils.batchDeleteNotes(mContentResolver, ids);
-        } else {
-            // in sync mode, we'll move the deleted folder into the trash folder
-            DataUtils.batchMoveToFolder(mContentResolver, ids, Notes.ID_TRASH_FOLER);
-        }
-        if (widgets != null) {
-            for (AppWidgetAttribute widget : widgets) {
-                if (widget.widgetId != AppWidgetManager.INVALID_APPWIDGET_ID
-                        && widget.widgetType != Notes.TYPE_WIDGET_INVALIDE) {
-                    updateWidget(widget.widgetId, widget.widgetType);
+        final long deletedFolderId = folderId;
+        new AsyncTask<Void, Void, HashSet<AppWidgetAttribute>>() {
+            protected HashSet<AppWidgetAttribute> doInBackground(Void... unused) {
+                HashSet<AppWidgetAttribute> widgets = DataUtils.getFolderNoteWidget(
+                        mContentResolver, deletedFolderId);
+                if (!isSyncMode()) {
+                    // if not synced, delete folder directly
+                    DataUtils.batchDeleteNotes(mContentResolver, ids);
+                } else {
+                    // in sync mode, we'll move the deleted folder into the trash folder
+                    DataUtils.batchMoveToFolder(mContentResolver, ids, Notes.ID_TRASH_FOLER);
                 }
+                return widgets;
             }
-        }
+
+            @Override
+            protected void onPostExecute(HashSet<AppWidgetAttribute> widgets) {
+                if (widgets != null) {
+                    for (AppWidgetAttribute widget : widgets) {
+                        if (widget.widgetId != AppWidgetManager.INVALID_APPWIDGET_ID
+                                && widget.widgetType != Notes.TYPE_WIDGET_INVALIDE) {
+                            updateWidget(widget.widgetId, widget.widgetType);
+                        }
+                    }
+                }
+            }
+        }.execute();
     }
 
     /**
@@ -1045,60 +1381,55 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
     }
 
     /**
-     * 对主界面的便签列表中的item设置点击事件监听器
+     * 主界面的便签列表中的item的点击事件
      */
-    private class OnListItemClickListener implements OnItemClickListener {
-
-        public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-            if (view instanceof NotesListItem) {
-                NoteItemData item = ((NotesListItem) view).getItemData();
-                if (mNotesListAdapter.isInChoiceMode()) {
-                    if (item.getType() == Notes.TYPE_NOTE) {
-                        //修正有Header的ListView的position的值，从0开始
-                        position = position - mNotesListView.getHeaderViewsCount();
-                        mModeCallBack.onItemCheckedStateChanged(null, position, id,
-                                !mNotesListAdapter.isSelectedItem(position));
-                    }
-                    return;
-                }
-
-                switch (mState) {
-                    //主界面列表
-                    case NOTE_LIST:
-                        //如果是文件夹，则打开该文件夹
-                        if (item.getType() == Notes.TYPE_FOLDER
-                                || item.getType() == Notes.TYPE_SYSTEM) {
-                            openFolder(item);
-                        //如果是便签，则打开改便签
-                        } else if (item.getType() == Notes.TYPE_NOTE) {
-                            openNode(item);
-                        } else {
-                            Log.e(TAG, "Wrong note type in NOTE_LIST");
-                        }
-                        break;
-                    case SUB_FOLDER:
-                    case CALL_RECORD_FOLDER:
-                        if (item.getType() == Notes.TYPE_NOTE) {
-                            openNode(item);
-                        } else {
-                            Log.e(TAG, "Wrong note type in SUB_FOLDER");
-                        }
-                        break;
-                    default:
-                        break;
-                }
+    public void onItemClick(NotesListItem view, int position) {
+        NoteItemData item = view.getItemData();
+        //条目尚未加载完成
+        if (item == null) {
+            return;
+        }
+        if (mNotesListAdapter.isInChoiceMode()) {
+            if (item.getType() == Notes.TYPE_NOTE) {
+                mModeCallBack.onItemCheckedStateChanged(null, position, item.getId(),
+                        !mNotesListAdapter.isSelectedItem(position));
             }
+            return;
         }
 
+        switch (mState) {
+            //主界面列表
+            case NOTE_LIST:
+                //如果是文件夹，则打开该文件夹
+                if (item.getType() == Notes.TYPE_FOLDER
+                        || item.getType() == Notes.TYPE_SYSTEM) {
+                    openFolder(item);
+                //如果是便签，则打开改便签
+                } else if (item.getType() == Notes.TYPE_NOTE) {
+                    openNode(item);
+                } else {
+                    Log.e(TAG, "Wrong note type in NOTE_LIST");
+                }
+                break;
+            case SUB_FOLDER:
+            case CALL_RECORD_FOLDER:
+                if (item.getType() == Notes.TYPE_NOTE) {
+                    openNode(item);
+                } else {
+                    Log.e(TAG, "Wrong note type in SUB_FOLDER");
+                }
+                break;
+            default:
+                break;
+        }
     }
 
     /**
      * 查询目标文件夹
      */
     private void startQueryDestinationFolders() {
-        String selection = NoteColumns.TYPE + "=? AND " + NoteColumns.PARENT_ID + "<>? AND " + NoteColumns.ID + "<>?";
-        selection = (mState == ListEditState.NOTE_LIST) ? selection:
-            "(" + selection + ") OR (" + NoteColumns.ID + "=" + Notes.ID_ROOT_FOLDER + ")";
+        String selection = (mState == ListEditState.NOTE_LIST) ? DESTINATION_FOLDER_SELECTION
+                : DESTINATION_FOLDER_WITH_ROOT_SELECTION;
         /**
          * 此方法开始异步查询
          *
@@ -1116,37 +1447,38 @@ public class NotesListActivity extends AppCompatActivity implements OnClickListe
                 FoldersListAdapter.PROJECTION,
                 selection,
                 new String[] {
-                        String.valueOf(Notes.TYPE_FOLDER),
-                        String.valueOf(Notes.ID_TRASH_FOLER),
                         String.valueOf(mCurrentFolderId)
                 },
-                NoteColumns.MODIFIED_DATE + " DESC");
+                DESTINATION_FOLDER_SORT_ORDER);
     }
 
     /**
-     * 对ListView中的item响应长按事件
+     * 对列表中的item响应长按事件,多选模式下不响应
      *
-     * @param parent ListView所采用的Adapter
      * @param view 长按的item
      * @param position 长按的位置
-     * @param id 长按的item对应的id
-     * @return
+     * @return 是否处理了长按事件
      */
-    public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
-        if (view instanceof NotesListItem) {
-            mFocusNoteDataItem = ((NotesListItem) view).getItemData();
-            //如果长按的对象是便签
-            if (mFocusNoteDataItem.getType() == Notes.TYPE_NOTE && !mNotesListAdapter.isInChoiceMode()) {
-                if (mNotesListView.startActionMode(mModeCallBack) != null) {
-                    mModeCallBack.onItemCheckedStateChanged(null, position, id, true);
-                    mNotesListView.performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
-                } else {
-                    Log.e(TAG, "startActionMode fails");
-                }
-            }//如果长按的对象是文件夹
-            else if (mFocusNoteDataItem.getType() == Notes.TYPE_FOLDER) {
-                mNotesListView.setOnCreateContextMenuListener(mFolderOnCreateContextMenuListener);
+    public boolean onItemLongClick(NotesListItem view, int position) {
+        NoteItemData item = view.getItemData();
+        if (item == null || mNotesListAdapter.isInChoiceMode()) {
+            return false;
+        }
+        mFocusNoteDataItem = item;
+        //如果长按的对象是便签
+        if (mFocusNoteDataItem.getType() == Notes.TYPE_NOTE) {
+            if (mNotesListView.startActionMode(mModeCallBack) != null) {
+                mModeCallBack.onItemCheckedStateChanged(null, position, item.getId(), true);
+                mNotesListView.performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+            } else {
+                Log.e(TAG, "startActionMode fails");
             }
+            return true;
+        }//如果长按的对象是文件夹
+        else if (mFocusNoteDataItem.getType() == Notes.TYPE_FOLDER) {
+            //菜单由列表的监听器创建,从长按的item弹出
+            mNotesListView.setOnCreateContextMenuListener(mFolderOnCreateContextMenuListener);
+            return view.showContextMenu();
         }
         return false;
     }
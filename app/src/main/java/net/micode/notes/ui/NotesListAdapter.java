@@ -17,28 +17,58 @@
 package net.micode.notes.ui;
 
 import android.content.Context;
-import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
 
+import net.micode.notes.BuildConfig;
+import net.micode.notes.R;
+import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
+import net.micode.notes.tool.LongHashSet;
 
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 
 /**
- * 便签列表适配器，继承CursorAdapter，用于将Cursor的数据适配成合适的形式显示在View中给用户看
+ * 便签列表适配器，把{@link NotesListSnapshot}中的条目显示在RecyclerView中。
+ * 使用便签ID作为稳定ID,更换快照时按后台计算的差异只刷新变化的行,列表末尾固定有一个底部空白视图
  */
-public class NotesListAdapter extends CursorAdapter {
+public class NotesListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     private static final String TAG = "NotesListAdapter";
+
+    private static final int VIEW_TYPE_NOTE = 0;
+    private static final int VIEW_TYPE_FOOTER = 1;
+
+    //底部空白视图的ID,不会与便签ID重复
+    private static final long FOOTER_ID = Long.MIN_VALUE;
+
     private Context mContext;
-    private HashMap<Integer, Boolean> mSelectedIndex;
+    private NotesListSnapshot mSnapshot;
+    //选中的便签ID
+    private final LongHashSet mSelectedIds = new LongHashSet();
     private int mNotesCount;
     private boolean mChoiceMode;
+    private OnItemClickListener mOnItemClickListener;
+    //绑定视图的耗时统计,只在调试版中统计,滚动停止或列表更新完成时输出
+    private int mBindCount;
+    private long mBindNanos;
+    private long mMaxBindNanos;
+    //等待批量查询联系人姓名的号码,同一次布局中绑定的号码合并为一次查询
+    private HashSet<String> mPendingContactNumbers;
+    //已经提交查询、尚未返回结果的号码
+    private HashSet<String> mLoadingContactNumbers;
+    private Handler mHandler;
+    private final Runnable mPrefetchContactsRunnable = new Runnable() {
+        public void run() {
+            prefetchContacts();
+        }
+    };
     /**
      * 设置app的桌面部件属性
      */
@@ -47,67 +77,269 @@ public class NotesListAdapter extends CursorAdapter {
         public int widgetType;
     }
 
+    /**
+     * 列表条目的点击和长按回调
+     */
+    public interface OnItemClickListener {
+        void onItemClick(NotesListItem view, int position);
+
+        boolean onItemLongClick(NotesListItem view, int position);
+    }
+
+    private static class FooterViewHolder extends RecyclerView.ViewHolder {
+        FooterViewHolder(View itemView) {
+            super(itemView);
+        }
+    }
+
+    private class NoteViewHolder extends RecyclerView.ViewHolder
+            implements View.OnClickListener, View.OnLongClickListener {
+        NoteViewHolder(NotesListItem itemView) {
+            super(itemView);
+            itemView.setOnClickListener(this);
+            itemView.setOnLongClickListener(this);
+        }
+
+        public void onClick(View v) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION && mOnItemClickListener != null) {
+                mOnItemClickListener.onItemClick((NotesListItem) itemView, position);
+            }
+        }
+
+        public boolean onLongClick(View v) {
+            int position = getAdapterPosition();
+            return position != RecyclerView.NO_POSITION && mOnItemClickListener != null
+                    && mOnItemClickListener.onItemLongClick((NotesListItem) itemView, position);
+        }
+    }
+
     NotesListAdapter(Context context) {
-        super(context, null);
-        mSelectedIndex = new HashMap<Integer, Boolean>();
+        mPendingContactNumbers = new HashSet<String>();
+        mLoadingContactNumbers = new HashSet<String>();
+        mHandler = new Handler();
         mContext = context;
         mNotesCount = 0;
+        setHasStableIds(true);
+    }
+
+    public void setOnItemClickListener(OnItemClickListener listener) {
+        mOnItemClickListener = listener;
+    }
+
+    /**
+     * 便签和文件夹的行数,不包含底部空白视图
+     */
+    public int getNoteItemCount() {
+        return mSnapshot == null ? 0 : mSnapshot.size();
+    }
+
+    @Override
+    public int getItemCount() {
+        return getNoteItemCount() + 1;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position < getNoteItemCount() ? mSnapshot.getId(position) : FOOTER_ID;
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return position < getNoteItemCount() ? VIEW_TYPE_NOTE : VIEW_TYPE_FOOTER;
     }
 
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return new NotesListItem(context);
+    public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        if (viewType == VIEW_TYPE_FOOTER) {
+            return new FooterViewHolder(LayoutInflater.from(mContext).inflate(
+                    R.layout.note_list_footer, parent, false));
+        }
+        NotesListItem item = new NotesListItem(mContext);
+        item.setLayoutParams(new RecyclerView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+                ViewGroup.LayoutParams.WRAP_CONTENT));
+        return new NoteViewHolder(item);
     }
 
     /**
-     * 将现有视图绑定到游标指向的数据
-     *
-     * @param view 现有视图，由newView返回
-     * @param context 与应用程序全局信息的接口
-     * @param cursor 从中获取数据的光标。 光标已移动到正确的位置。
+     * 绑定位置对应的条目,条目尚未加载时先显示空行
      */
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        if (view instanceof NotesListItem) {
-            NoteItemData itemData = new NoteItemData(context, cursor);
-            ((NotesListItem) view).bind(context, itemData, mChoiceMode,
-                    isSelectedItem(cursor.getPosition()));
+    public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+        if (!(holder.itemView instanceof NotesListItem)) {
+            return;
+        }
+        long start = BuildConfig.DEBUG ? SystemClock.elapsedRealtimeNanos() : 0;
+        NotesListItem view = (NotesListItem) holder.itemView;
+        NoteItemData itemData = getItemData(position);
+        if (itemData == null) {
+            view.bindPlaceholder();
+        } else {
+            if (!itemData.refreshContact()) {
+                requestContact(itemData.getPhoneNumber());
+            }
+            view.bind(mContext, itemData, mChoiceMode, mSelectedIds.contains(itemData.getId()));
+        }
+        if (BuildConfig.DEBUG) {
+            long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+            mBindCount++;
+            mBindNanos += elapsed;
+            if (elapsed > mMaxBindNanos) {
+                mMaxBindNanos = elapsed;
+            }
+        }
+    }
+
+    /**
+     * 取得位置对应的列表条目,条目尚未加载时由快照在后台加载
+     * @return 条目尚未加载时返回null
+     */
+    public NoteItemData getItemData(int position) {
+        return mSnapshot == null ? null : mSnapshot.getItem(position);
+    }
+
+    public NotesListSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * 更换快照并去掉已不在列表中的选中项
+     * @param diff 旧快照到新快照的差异,为null时刷新整个列表
+     */
+    public void setSnapshot(NotesListSnapshot snapshot, DiffUtil.DiffResult diff) {
+        NotesListSnapshot old = mSnapshot;
+        mSnapshot = snapshot;
+        mNotesCount = snapshot == null ? 0 : snapshot.getNotesCount();
+        if (snapshot != null) {
+            snapshot.setOnItemsLoadedListener(new NotesListSnapshot.OnItemsLoadedListener() {
+                public void onItemsLoaded(int positionStart, int itemCount) {
+                    notifyItemRangeChanged(positionStart, itemCount);
+                }
+            });
+        }
+        if (!mSelectedIds.isEmpty()) {
+            LongHashSet ids = new LongHashSet();
+            if (snapshot != null) {
+                for (long id : snapshot.getNoteIds()) {
+                    ids.add(id);
+                }
+            }
+            mSelectedIds.retainAll(ids);
         }
+        if (diff != null) {
+            diff.dispatchUpdatesTo(this);
+        } else {
+            notifyDataSetChanged();
+        }
+        if (old != null && old != snapshot) {
+            old.release();
+        }
+    }
+
+    /**
+     * 输出上次调用以来绑定视图的次数和耗时,并重新开始统计,发布版中不输出
+     * @param reason 统计的场景,如滚动或列表更新
+     */
+    public void logBindStats(String reason) {
+        if (!BuildConfig.DEBUG) {
+            return;
+        }
+        if (mBindCount == 0) {
+            Log.d(TAG, reason + ": no item bound");
+            return;
+        }
+        Log.d(TAG, reason + ": bound " + mBindCount + " items, avg:"
+                + (mBindNanos / mBindCount / 1000) + "us max:" + (mMaxBindNanos / 1000) + "us");
+        resetBindStats();
+    }
+
+    public void resetBindStats() {
+        mBindCount = 0;
+        mBindNanos = 0;
+        mMaxBindNanos = 0;
+    }
+
+    /**
+     * 记录需要查询联系人姓名的号码,当前这一轮绑定结束后统一查询
+     */
+    private void requestContact(String phoneNumber) {
+        if (mLoadingContactNumbers.contains(phoneNumber)
+                || !mPendingContactNumbers.add(phoneNumber)) {
+            return;
+        }
+        if (mPendingContactNumbers.size() == 1) {
+            mHandler.post(mPrefetchContactsRunnable);
+        }
+    }
+
+    /**
+     * 在后台批量查询可见条目中的联系人姓名,查询完成后刷新列表
+     */
+    private void prefetchContacts() {
+        if (mPendingContactNumbers.isEmpty()) {
+            return;
+        }
+        final HashSet<String> numbers = new HashSet<String>(mPendingContactNumbers);
+        mPendingContactNumbers.clear();
+        mLoadingContactNumbers.addAll(numbers);
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... unused) {
+                Contact.prefetchContacts(mContext, numbers);
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void unused) {
+                //查询失败(如没有联系人权限)的号码不再重复查询
+                for (String number : numbers) {
+                    if (Contact.isCached(number)) {
+                        mLoadingContactNumbers.remove(number);
+                    }
+                }
+                notifyItemRangeChanged(0, getNoteItemCount());
+            }
+        }.execute();
     }
 
     /**
-     * 将被选中的item加入到mSelectedIndex中
+     * 设置某一位置的便签的选中状态,选中状态按便签ID保存,重新查询后仍然有效,只刷新该行
      * @param position 选中的item的位置
      * @param checked   选中状态（true或false）
      */
     public void setCheckedItem(final int position, final boolean checked) {
-        mSelectedIndex.put(position, checked);
-        notifyDataSetChanged();
+        long id = getItemId(position);
+        if (checked ? mSelectedIds.add(id) : mSelectedIds.remove(id)) {
+            notifyItemChanged(position);
+        }
     }
 
     public boolean isInChoiceMode() {
         return mChoiceMode;
     }
 
+    /**
+     * 进入或退出多选模式,复选框的显示状态变化,刷新所有行
+     */
     public void setChoiceMode(boolean mode) {
-        mSelectedIndex.clear();
+        mSelectedIds.clear();
         mChoiceMode = mode;
+        notifyItemRangeChanged(0, getNoteItemCount());
     }
 
     /**
-     * 为列表中的所有项设置选中状态
+     * 为列表中的所有便签设置选中状态,只刷新一次列表
      *
      * @param checked 选中状态
      */
     public void selectAll(boolean checked) {
-        Cursor cursor = getCursor();
-        for (int i = 0; i < getCount(); i++) {
-            if (cursor.moveToPosition(i)) {
-                if (NoteItemData.getNoteType(cursor) == Notes.TYPE_NOTE) {
-                    setCheckedItem(i, checked);
-                }
+        mSelectedIds.clear();
+        if (checked && mSnapshot != null) {
+            for (long id : mSnapshot.getNoteIds()) {
+                mSelectedIds.add(id);
             }
         }
+        notifyItemRangeChanged(0, getNoteItemCount());
     }
 
     /**
@@ -115,61 +347,23 @@ public class NotesListAdapter extends CursorAdapter {
      * @return  选中Id的HashSet集合
      */
     public HashSet<Long> getSelectedItemIds() {
-        HashSet<Long> itemSet = new HashSet<Long>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position)) {
-                Long id = getItemId(position);
-                if (id == Notes.ID_ROOT_FOLDER) {
-                    Log.d(TAG, "Wrong item id, should not happen");
-                } else {
-                    itemSet.add(id);
-                }
-            }
-        }
-
-        return itemSet;
-    }
-
-    public HashSet<AppWidgetAttribute> getSelectedWidget() {
-        HashSet<AppWidgetAttribute> itemSet = new HashSet<AppWidgetAttribute>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position)) {
-                Cursor c = (Cursor) getItem(position);
-                if (c != null) {
-                    AppWidgetAttribute widget = new AppWidgetAttribute();
-                    NoteItemData item = new NoteItemData(mContext, c);
-                    widget.widgetId = item.getWidgetId();
-                    widget.widgetType = item.getWidgetType();
-                    itemSet.add(widget);
-                    /**
-                     * Don't close cursor here, only the adapter could close it
-                     */
-                } else {
-                    Log.e(TAG, "Invalid cursor");
-                    return null;
-                }
+        HashSet<Long> itemSet = new HashSet<Long>(mSelectedIds.size() * 2);
+        for (long id : mSelectedIds.toArray()) {
+            if (id == Notes.ID_ROOT_FOLDER) {
+                Log.d(TAG, "Wrong item id, should not happen");
+            } else {
+                itemSet.add(id);
             }
         }
         return itemSet;
     }
 
     /**
-     * 获取选中的数目，使用迭代器计算
+     * 获取选中的数目
      * @return 选中数目
      */
     public int getSelectedCount() {
-        Collection<Boolean> values = mSelectedIndex.values();
-        if (null == values) {
-            return 0;
-        }
-        Iterator<Boolean> iter = values.iterator();
-        int count = 0;
-        while (iter.hasNext()) {
-            if (iter.next()) {
-                count++;
-            }
-        }
-        return count;
+        return mSelectedIds.size();
     }
 
     public boolean isAllSelected() {
@@ -178,39 +372,6 @@ public class NotesListAdapter extends CursorAdapter {
     }
 
     public boolean isSelectedItem(final int position) {
-        if (null == mSelectedIndex.get(position)) {
-            return false;
-        }
-        return mSelectedIndex.get(position);
-    }
-
-    @Override
-    protected void onContentChanged() {
-        super.onContentChanged();
-        calcNotesCount();
-    }
-
-    @Override
-    public void changeCursor(Cursor cursor) {
-        super.changeCursor(cursor);
-        calcNotesCount();
-    }
-
-    /**
-     * 计算便签数目
-     */
-    private void calcNotesCount() {
-        mNotesCount = 0;
-        for (int i = 0; i < getCount(); i++) {
-            Cursor c = (Cursor) getItem(i);
-            if (c != null) {
-                if (NoteItemData.getNoteType(c) == Notes.TYPE_NOTE) {
-                    mNotesCount++;
-                }
-            } else {
-                Log.e(TAG, "Invalid cursor");
-                return;
-            }
-        }
+        return mSelectedIds.contains(getItemId(position));
     }
 }
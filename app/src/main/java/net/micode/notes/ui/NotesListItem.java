@@ -17,7 +17,6 @@
 package net.micode.notes.ui;
 
 import android.content.Context;
-import android.text.format.DateUtils;
 import android.util.Log;
 import android.view.View;
 import android.widget.CheckBox;
@@ -27,8 +26,6 @@ import android.widget.TextView;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
-import net.micode.notes.tool.DataUtils;
-import net.micode.notes.tool.ResourceParser.NoteItemBgResources;
 
 /**
  * 该类主要是对便签列表中的每个item(便签或文件夹)的样式进行设置
@@ -40,6 +37,9 @@ public class NotesListItem extends LinearLayout {
     private TextView mCallName;
     private NoteItemData mItemData;
     private CheckBox mCheckBox;
+    //当前使用的标题样式和提醒图标,相同时不重复设置
+    private int mTitleAppearance;
+    private int mAlertIcon;
 
     /**
      * 构造便签列表中的每个item对象
@@ -56,6 +56,10 @@ public class NotesListItem extends LinearLayout {
         mCheckBox = (CheckBox) findViewById(android.R.id.checkbox);
     }
 
+    /**
+     * 绑定列表条目,标题、时间和背景都已在创建条目时计算好,这里只做赋值,
+     * 与当前状态相同的样式和图标不重复设置
+     */
     public void bind(Context context, NoteItemData data, boolean choiceMode, boolean checked) {
         //如果是便签item则复选框可见
         if (choiceMode && data.getType() == Notes.TYPE_NOTE) {
@@ -71,69 +75,58 @@ public class NotesListItem extends LinearLayout {
         if (data.getId() == Notes.ID_CALL_RECORD_FOLDER) {
             //设置item的样式
             mCallName.setVisibility(View.GONE);
-            mAlert.setVisibility(View.VISIBLE);
-            mTitle.setTextAppearance(context, R.style.TextAppearancePrimaryItem);
-            mTitle.setText(context.getString(R.string.call_record_folder_name)
-                    + context.getString(R.string.format_folder_files_count, data.getNotesCount()));
-            mAlert.setImageResource(R.drawable.call_record);
+            setTitleAppearance(context, R.style.TextAppearancePrimaryItem);
+            setAlertIcon(R.drawable.call_record);
         } else if (data.getParentId() == Notes.ID_CALL_RECORD_FOLDER) {
             mCallName.setVisibility(View.VISIBLE);
             mCallName.setText(data.getCallName());
-            mTitle.setTextAppearance(context,R.style.TextAppearanceSecondaryItem);
-            mTitle.setText(DataUtils.getFormattedSnippet(data.getSnippet()));
+            setTitleAppearance(context, R.style.TextAppearanceSecondaryItem);
             //如果该便签设有闹钟，则显示闹钟图标
-            if (data.hasAlert()) {
-                mAlert.setImageResource(R.drawable.clock);
-                mAlert.setVisibility(View.VISIBLE);
-            } else {
-                mAlert.setVisibility(View.GONE);
-            }
+            setAlertIcon(data.hasAlert() ? R.drawable.clock : 0);
         } else {
             mCallName.setVisibility(View.GONE);
-            mTitle.setTextAppearance(context, R.style.TextAppearancePrimaryItem);
-            //如果是普通文件夹
-            if (data.getType() == Notes.TYPE_FOLDER) {
-                //设置显示名字为“文件名（便签个数）”
-                mTitle.setText(data.getSnippet()
-                        + context.getString(R.string.format_folder_files_count,
-                                data.getNotesCount()));
-                mAlert.setVisibility(View.GONE);
-            } else {
-                //如果是普通便签
-                mTitle.setText(DataUtils.getFormattedSnippet(data.getSnippet()));
-                if (data.hasAlert()) {
-                    mAlert.setImageResource(R.drawable.clock);
-                    mAlert.setVisibility(View.VISIBLE);
-                } else {
-                    mAlert.setVisibility(View.GONE);
-                }
-            }
+            setTitleAppearance(context, R.style.TextAppearancePrimaryItem);
+            //普通文件夹不显示图标,普通便签设有闹钟时显示闹钟图标
+            setAlertIcon(data.getType() != Notes.TYPE_FOLDER && data.hasAlert()
+                    ? R.drawable.clock : 0);
         }
-        mTime.setText(DateUtils.getRelativeTimeSpanString(data.getModifiedDate()));
+        mTitle.setText(data.getTitle());
+        mTime.setText(data.getTime());
+        setBackgroundResource(data.getBgResId());
+    }
+
+    /**
+     * 条目尚未加载时显示空行,加载完成后重新绑定
+     */
+    public void bindPlaceholder() {
+        mItemData = null;
+        mCheckBox.setVisibility(View.GONE);
+        mCallName.setVisibility(View.GONE);
+        mAlert.setVisibility(View.GONE);
+        mTitle.setText(null);
+        mTime.setText(null);
+    }
 
-        setBackground(data);
+    private void setTitleAppearance(Context context, int style) {
+        if (mTitleAppearance != style) {
+            mTitle.setTextAppearance(context, style);
+            mTitleAppearance = style;
+        }
     }
 
     /**
-     * 根据便签内背景色来设置每个便签item的背景颜色
-     * @param data
+     * @param resId 图标资源,为0时隐藏图标
      */
-    private void setBackground(NoteItemData data) {
-        int id = data.getBgColorId();
-        if (data.getType() == Notes.TYPE_NOTE) {
-            if (data.isSingle() || data.isOneFollowingFolder()) {
-                setBackgroundResource(NoteItemBgResources.getNoteBgSingleRes(id));
-            } else if (data.isLast()) {
-                setBackgroundResource(NoteItemBgResources.getNoteBgLastRes(id));
-            } else if (data.isFirst() || data.isMultiFollowingFolder()) {
-                setBackgroundResource(NoteItemBgResources.getNoteBgFirstRes(id));
-            } else {
-                setBackgroundResource(NoteItemBgResources.getNoteBgNormalRes(id));
-            }
-        } else {
-            //如果是文件夹，则采用默认背景颜色
-            setBackgroundResource(NoteItemBgResources.getFolderBgRes());
+    private void setAlertIcon(int resId) {
+        if (resId == 0) {
+            mAlert.setVisibility(View.GONE);
+            return;
+        }
+        if (mAlertIcon != resId) {
+            mAlert.setImageResource(resId);
+            mAlertIcon = resId;
         }
+        mAlert.setVisibility(View.VISIBLE);
     }
 
     public NoteItemData getItemData() {
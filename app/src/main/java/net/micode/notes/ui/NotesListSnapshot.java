@@ -0,0 +1,538 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.support.annotation.VisibleForTesting;
+import android.support.v7.util.DiffUtil;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+/**
+ * 便签列表在某一时刻的快照。
+ * 创建时用一次只包含整数列的查询取出文件夹内所有行的ID和用于比较内容的列,按(type, modified_date, _id)倒序排列;
+ * 列表条目按页({@link #PAGE_SIZE}行)根据键区间加载,行数不超过{@link #FULLY_LOADED_THRESHOLD}时创建快照时
+ * 加载全部条目,否则只加载可见位置附近的页,其余的页在需要时在后台加载,内存中最多保留{@link #MAX_LOADED_PAGES}页。
+ * 新快照复用旧快照中没有变化的条目,新旧快照的差异在后台用{@link DiffUtil}计算,列表只刷新变化的行。
+ * 键列按文件夹索引的顺序读取,每行只有几个整数;计算差异、统计便签数和全选都需要所有行的ID,
+ * 因此键列总是全部读取,只有条目按页加载。
+ * 创建快照和计算差异可以在后台线程中进行,其他方法只能在主线程中调用
+ */
+public class NotesListSnapshot {
+    private static final String TAG = "NotesListSnapshot";
+
+    //每页的行数
+    static final int PAGE_SIZE = 100;
+
+    //行数超过该值时按页加载条目
+    public static final int FULLY_LOADED_THRESHOLD = 1000;
+
+    //按页加载时内存中最多保留的页数
+    private static final int MAX_LOADED_PAGES = 5;
+
+    //可见范围前后这么多行内的条目需要预先加载
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    @VisibleForTesting
+    public static final String SORT_ORDER = NoteColumns.TYPE + " DESC,"
+            + NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID + " DESC";
+
+    //只包含整数列,用于确定行的位置和比较内容
+    @VisibleForTesting
+    public static final String[] KEY_PROJECTION = new String[] {
+            NoteColumns.ID,
+            NoteColumns.TYPE,
+            NoteColumns.MODIFIED_DATE,
+            NoteColumns.VERSION,
+            NoteColumns.NOTES_COUNT
+    };
+
+    private static final int ID_COLUMN            = 0;
+    private static final int TYPE_COLUMN          = 1;
+    private static final int MODIFIED_DATE_COLUMN = 2;
+    private static final int VERSION_COLUMN       = 3;
+    private static final int NOTES_COUNT_COLUMN   = 4;
+
+    //小于等于键的行,即排在该键之后或就是该键的行
+    private static final String AT_OR_BEFORE_KEY_SELECTION = "(" + NoteColumns.TYPE + "<? OR ("
+            + NoteColumns.TYPE + "=? AND (" + NoteColumns.MODIFIED_DATE + "<? OR ("
+            + NoteColumns.MODIFIED_DATE + "=? AND " + NoteColumns.ID + "<=?))))";
+
+    //大于等于键的行,即排在该键之前或就是该键的行
+    private static final String FROM_KEY_SELECTION = "(" + NoteColumns.TYPE + ">? OR ("
+            + NoteColumns.TYPE + "=? AND (" + NoteColumns.MODIFIED_DATE + ">? OR ("
+            + NoteColumns.MODIFIED_DATE + "=? AND " + NoteColumns.ID + ">=?))))";
+
+    /**
+     * 在后台加载的条目可以使用时的回调,在主线程中调用
+     */
+    public interface OnItemsLoadedListener {
+        void onItemsLoaded(int positionStart, int itemCount);
+    }
+
+    private final Context mContext;
+
+    private final String mSelection;
+
+    private final String[] mSelectionArgs;
+
+    private final long[] mIds;
+
+    private final int[] mTypes;
+
+    private final long[] mModifiedDates;
+
+    private final long[] mVersions;
+
+    private final int[] mNotesCounts;
+
+    private int mNotesCount;
+
+    private final NoteItemData[] mItems;
+
+    //按页加载时按访问顺序排列的已加载的页,超出容量时释放最久未访问的页
+    private final LinkedList<Integer> mLoadedPages = new LinkedList<Integer>();
+
+    //加载时发现数据已变化的页,不再重试,等待数据变化触发的新快照
+    private final HashSet<Integer> mFailedPages = new HashSet<Integer>();
+
+    //正在后台加载的页和对应的任务,快照释放时取消
+    private final HashMap<Integer, AsyncTask<Void, Void, NoteItemData[]>> mLoadingPages =
+            new HashMap<Integer, AsyncTask<Void, Void, NoteItemData[]>>();
+
+    private OnItemsLoadedListener mListener;
+
+    //加载任务在后台线程中检查,释放后不再查询
+    private volatile boolean mReleased;
+
+    private NotesListSnapshot(Context context, String selection, String[] selectionArgs,
+                              int count) {
+        mContext = context.getApplicationContext();
+        mSelection = selection;
+        mSelectionArgs = selectionArgs == null ? new String[0] : selectionArgs;
+        mIds = new long[count];
+        mTypes = new int[count];
+        mModifiedDates = new long[count];
+        mVersions = new long[count];
+        mNotesCounts = new int[count];
+        mItems = new NoteItemData[count];
+    }
+
+    /**
+     * 查询文件夹内的行并创建快照,会访问数据库,不要在主线程中调用
+     * @param previous 当前显示的快照,同一文件夹内没有变化的条目直接复用,可以为null
+     * @param previousItems 在主线程中用{@link #copyItems()}取得的previous的条目,previous为null时忽略
+     * @param firstVisible 当前第一个可见行的位置,附近的条目在返回前加载
+     * @param lastVisible 当前最后一个可见行的位置
+     * @return 查询失败时返回null
+     */
+    public static NotesListSnapshot load(Context context, String selection,
+                                         String[] selectionArgs, NotesListSnapshot previous,
+                                         NoteItemData[] previousItems,
+                                         int firstVisible, int lastVisible) {
+        Cursor cursor = context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
+                KEY_PROJECTION, selection, selectionArgs, SORT_ORDER);
+        if (cursor == null) {
+            return null;
+        }
+        NotesListSnapshot snapshot;
+        try {
+            snapshot = new NotesListSnapshot(context, selection, selectionArgs,
+                    cursor.getCount());
+            snapshot.readKeys(cursor);
+        } finally {
+            cursor.close();
+        }
+
+        if (previous != null && previous.isSameList(selection, selectionArgs)) {
+            snapshot.reuseItems(previous, previousItems);
+        }
+        int count = snapshot.size();
+        if (count <= FULLY_LOADED_THRESHOLD) {
+            firstVisible = 0;
+            lastVisible = count - 1;
+        } else {
+            firstVisible = Math.max(0, firstVisible - PREFETCH_DISTANCE);
+            lastVisible = Math.min(count - 1, Math.max(lastVisible, 0) + PREFETCH_DISTANCE);
+        }
+        for (int page = firstVisible / PAGE_SIZE; page * PAGE_SIZE <= lastVisible; page++) {
+            if (snapshot.isPageMissing(page)) {
+                NoteItemData[] items = snapshot.loadPage(page);
+                if (items == null) {
+                    snapshot.mFailedPages.add(page);
+                } else {
+                    snapshot.setPageItems(page, items);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * 计算新旧快照的差异,不要在主线程中调用。
+     * ID相同的行是同一行,ID、比较内容的列和位置形状都相同时内容没有变化
+     */
+    public static DiffUtil.DiffResult diff(final NotesListSnapshot oldSnapshot,
+                                           final NotesListSnapshot newSnapshot) {
+        return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldSnapshot.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newSnapshot.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldSnapshot.mIds[oldItemPosition] == newSnapshot.mIds[newItemPosition];
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return isSameContent(oldSnapshot, oldItemPosition, newSnapshot, newItemPosition);
+            }
+        }, true);
+    }
+
+    private static boolean isSameContent(NotesListSnapshot a, int i, NotesListSnapshot b, int j) {
+        return a.mIds[i] == b.mIds[j]
+                && a.mTypes[i] == b.mTypes[j]
+                && a.mModifiedDates[i] == b.mModifiedDates[j]
+                && a.mVersions[i] == b.mVersions[j]
+                && a.mNotesCounts[i] == b.mNotesCounts[j]
+                && a.shapeOf(i) == b.shapeOf(j);
+    }
+
+    /**
+     * 读取查询结果中各行的ID和比较内容的列,同时统计便签数
+     */
+    private void readKeys(Cursor cursor) {
+        int notesCount = 0;
+        for (int i = 0; i < mIds.length && cursor.moveToPosition(i); i++) {
+            mIds[i] = cursor.getLong(ID_COLUMN);
+            mTypes[i] = cursor.getInt(TYPE_COLUMN);
+            mModifiedDates[i] = cursor.getLong(MODIFIED_DATE_COLUMN);
+            mVersions[i] = cursor.getLong(VERSION_COLUMN);
+            mNotesCounts[i] = cursor.getInt(NOTES_COUNT_COLUMN);
+            if (mTypes[i] == Notes.TYPE_NOTE) {
+                notesCount++;
+            }
+        }
+        mNotesCount = notesCount;
+    }
+
+    /**
+     * 复用旧快照中内容和位置形状都没有变化的条目,只在创建快照时调用。
+     * 旧快照此时仍在主线程中使用,其条目数组会被主线程修改,因此只读取在主线程中复制的条目;
+     * 键数组创建后不再修改,可以直接读取
+     */
+    private void reuseItems(NotesListSnapshot previous, NoteItemData[] previousItems) {
+        HashMap<Long, Integer> oldPositions = new HashMap<Long, Integer>(previous.size() * 2);
+        for (int i = 0; i < previous.mIds.length; i++) {
+            oldPositions.put(previous.mIds[i], i);
+        }
+        for (int i = 0; i < mIds.length; i++) {
+            Integer old = oldPositions.get(mIds[i]);
+            if (old != null && isSameContent(previous, old, this, i)) {
+                mItems[i] = previousItems[old];
+            }
+        }
+        //按页加载时复用的条目同样计入已加载的页,超出容量时释放
+        if (mIds.length > FULLY_LOADED_THRESHOLD) {
+            for (int page = 0; page * PAGE_SIZE < mIds.length; page++) {
+                if (hasPageItems(page)) {
+                    touchPage(page);
+                }
+            }
+        }
+    }
+
+    /**
+     * 行的位置形状,由是否首行、末行以及前一行是否为文件夹决定
+     */
+    private int shapeOf(int position) {
+        int shape = 0;
+        if (position == 0) {
+            shape |= NoteItemData.SHAPE_FIRST;
+        } else if (mTypes[position - 1] == Notes.TYPE_FOLDER
+                || mTypes[position - 1] == Notes.TYPE_SYSTEM) {
+            shape |= NoteItemData.SHAPE_FOLLOWING_FOLDER;
+        }
+        if (position == mIds.length - 1) {
+            shape |= NoteItemData.SHAPE_LAST;
+        }
+        return shape;
+    }
+
+    /**
+     * 页中是否有尚未创建的条目
+     */
+    private boolean isPageMissing(int page) {
+        int end = Math.min(mIds.length, (page + 1) * PAGE_SIZE);
+        for (int i = page * PAGE_SIZE; i < end; i++) {
+            if (mItems[i] == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasPageItems(int page) {
+        int end = Math.min(mIds.length, (page + 1) * PAGE_SIZE);
+        for (int i = page * PAGE_SIZE; i < end; i++) {
+            if (mItems[i] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 按第一行和最后一行的键查询一页并创建条目,会访问数据库,不要在主线程中调用
+     * @return 与页中各行一一对应的条目;期间数据已变化、查询结果与快照不一致时返回null
+     */
+    private NoteItemData[] loadPage(int page) {
+        int start = page * PAGE_SIZE;
+        int end = Math.min(mIds.length, start + PAGE_SIZE);
+        if (start >= end) {
+            return null;
+        }
+        ArrayList<String> args = new ArrayList<String>(Arrays.asList(mSelectionArgs));
+        appendKeyArgs(args, start);
+        appendKeyArgs(args, end - 1);
+
+        ContentResolver resolver = mContext.getContentResolver();
+        Cursor cursor = resolver.query(Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION,
+                pageSelection(mSelection), args.toArray(new String[args.size()]), SORT_ORDER);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (cursor.getCount() != end - start) {
+                Log.d(TAG, "Page " + page + " changed since snapshot, skip");
+                return null;
+            }
+            int[] shapes = new int[end - start];
+            for (int i = start; i < end; i++) {
+                shapes[i - start] = shapeOf(i);
+            }
+            NoteItemData[] items = NoteItemData.createItems(mContext, cursor, shapes, true);
+            for (int i = start; i < end; i++) {
+                if (items[i - start].getId() != mIds[i]) {
+                    Log.d(TAG, "Page " + page + " changed since snapshot, skip");
+                    return null;
+                }
+            }
+            return items;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 一页的查询条件:文件夹的条件加上页中第一行和最后一行的键区间,
+     * 参数依次为文件夹条件的参数、第一行的键和最后一行的键
+     */
+    @VisibleForTesting
+    public static String pageSelection(String selection) {
+        return "(" + selection + ") AND " + AT_OR_BEFORE_KEY_SELECTION
+                + " AND " + FROM_KEY_SELECTION;
+    }
+
+    private void appendKeyArgs(ArrayList<String> args, int position) {
+        args.add(String.valueOf(mTypes[position]));
+        args.add(String.valueOf(mTypes[position]));
+        args.add(String.valueOf(mModifiedDates[position]));
+        args.add(String.valueOf(mModifiedDates[position]));
+        args.add(String.valueOf(mIds[position]));
+    }
+
+    /**
+     * 保存一页的条目,按页加载时同时释放超出容量的页
+     */
+    private void setPageItems(int page, NoteItemData[] items) {
+        System.arraycopy(items, 0, mItems, page * PAGE_SIZE, items.length);
+        if (mIds.length > FULLY_LOADED_THRESHOLD) {
+            touchPage(page);
+        }
+    }
+
+    /**
+     * 把页移到最近访问的位置,并释放超出容量的最久未访问的页
+     */
+    private void touchPage(int page) {
+        Integer key = page;
+        if (!mLoadedPages.isEmpty() && mLoadedPages.getFirst().equals(key)) {
+            return;
+        }
+        mLoadedPages.remove(key);
+        mLoadedPages.addFirst(key);
+        while (mLoadedPages.size() > MAX_LOADED_PAGES) {
+            int eldest = mLoadedPages.removeLast();
+            int start = eldest * PAGE_SIZE;
+            Arrays.fill(mItems, start, Math.min(mItems.length, start + PAGE_SIZE), null);
+        }
+    }
+
+    /**
+     * 复制当前已加载的条目,尚未加载或已释放的位置为null。
+     * 在主线程中调用,结果传给后台创建新快照的{@link #load}
+     */
+    public NoteItemData[] copyItems() {
+        return mItems.clone();
+    }
+
+    public void setOnItemsLoadedListener(OnItemsLoadedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 快照是否是同一个文件夹的列表
+     */
+    public boolean isSameList(String selection, String[] selectionArgs) {
+        return mSelection.equals(selection) && Arrays.equals(mSelectionArgs,
+                selectionArgs == null ? new String[0] : selectionArgs);
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    public int getType(int position) {
+        return mTypes[position];
+    }
+
+    /**
+     * 文件夹内的便签数,包含尚未加载条目的行
+     */
+    public int getNotesCount() {
+        return mNotesCount;
+    }
+
+    /**
+     * 文件夹内所有便签的ID,包含尚未加载条目的行
+     */
+    public long[] getNoteIds() {
+        long[] ids = new long[mNotesCount];
+        int count = 0;
+        for (int i = 0; i < mIds.length && count < ids.length; i++) {
+            if (mTypes[i] == Notes.TYPE_NOTE) {
+                ids[count++] = mIds[i];
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 取得位置对应的列表条目,条目尚未加载时在后台加载所在的页
+     * @return 条目尚未加载时返回null,加载完成后通过{@link OnItemsLoadedListener}通知
+     */
+    public NoteItemData getItem(int position) {
+        if (position < 0 || position >= mItems.length) {
+            return null;
+        }
+        NoteItemData item = mItems[position];
+        int page = position / PAGE_SIZE;
+        if (item == null) {
+            requestPage(page);
+        } else if (mIds.length > FULLY_LOADED_THRESHOLD) {
+            touchPage(page);
+        }
+        return item;
+    }
+
+    /**
+     * 列表滚动时调用,在后台加载可见范围附近尚未加载的页
+     */
+    public void prefetch(int firstVisible, int lastVisible) {
+        if (mIds.length == 0 || firstVisible < 0) {
+            return;
+        }
+        int first = Math.max(0, firstVisible - PREFETCH_DISTANCE) / PAGE_SIZE;
+        int last = Math.min(mIds.length - 1, lastVisible + PREFETCH_DISTANCE) / PAGE_SIZE;
+        for (int page = first; page <= last; page++) {
+            if (isPageMissing(page)) {
+                requestPage(page);
+            }
+        }
+    }
+
+    private void requestPage(final int page) {
+        if (mReleased || mLoadingPages.containsKey(page) || mFailedPages.contains(page)) {
+            return;
+        }
+        AsyncTask<Void, Void, NoteItemData[]> task = new AsyncTask<Void, Void, NoteItemData[]>() {
+            @Override
+            protected NoteItemData[] doInBackground(Void... unused) {
+                //排队期间快照可能已被替换,不再查询
+                if (mReleased || isCancelled()) {
+                    return null;
+                }
+                return loadPage(page);
+            }
+
+            @Override
+            protected void onPostExecute(NoteItemData[] items) {
+                mLoadingPages.remove(page);
+                if (mReleased) {
+                    return;
+                }
+                //数据已变化的页不再重试,等待新快照
+                if (items == null) {
+                    mFailedPages.add(page);
+                    return;
+                }
+                setPageItems(page, items);
+                if (mListener != null) {
+                    mListener.onItemsLoaded(page * PAGE_SIZE, items.length);
+                }
+            }
+        };
+        mLoadingPages.put(page, task);
+        task.execute();
+    }
+
+    /**
+     * 快照被新快照替换后调用,取消尚未开始的页加载,丢弃尚未完成的加载结果
+     */
+    public void release() {
+        mReleased = true;
+        mListener = null;
+        for (AsyncTask<Void, Void, NoteItemData[]> task : mLoadingPages.values()) {
+            task.cancel(false);
+        }
+        mLoadingPages.clear();
+    }
+}
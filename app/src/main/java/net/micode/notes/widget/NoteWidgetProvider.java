@@ -27,7 +27,10 @@ import android.widget.RemoteViews;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.ui.NoteEditActivity;
 import net.micode.notes.ui.NotesListActivity;
@@ -43,6 +46,10 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
     public static final int COLUMN_BG_COLOR_ID  = 1;
     public static final int COLUMN_SNIPPET      = 2;
 
+    //桌面小部件对应的不在回收站中的便签
+    public static final String WIDGET_SELECTION = NoteColumns.WIDGET_ID + "=? AND "
+            + NoteColumns.PARENT_ID + "<>?";
+
     private static final String TAG = "NoteWidgetProvider";
 
     @Override
@@ -60,11 +67,31 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
     private Cursor getNoteWidgetInfo(Context context, int widgetId) {
         return context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
                 PROJECTION,
-                NoteColumns.WIDGET_ID + "=? AND " + NoteColumns.PARENT_ID + "<>?",
+                WIDGET_SELECTION,
                 new String[] { String.valueOf(widgetId), String.valueOf(Notes.ID_TRASH_FOLER) },
                 null);
     }
 
+    /**
+     * 摘要只保存便签的第一行,桌面控件显示完整的正文,清单便签由条目生成正文
+     */
+    private String getNoteContent(Context context, long noteId, String snippet) {
+        Cursor c = context.getContentResolver().query(Notes.CONTENT_DATA_URI,
+                new String[] { DataColumns.CONTENT, TextNote.MODE },
+                DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + "=?",
+                new String[] { String.valueOf(noteId), TextNote.CONTENT_ITEM_TYPE },
+                null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                snippet = c.getInt(1) == TextNote.MODE_CHECK_LIST
+                        ? DataUtils.getChecklistText(context.getContentResolver(), noteId)
+                        : c.getString(0);
+            }
+            c.close();
+        }
+        return snippet;
+    }
+
     protected void update(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
         update(context, appWidgetManager, appWidgetIds, false);
     }
@@ -87,7 +114,8 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
                         c.close();
                         return;
                     }
-                    snippet = c.getString(COLUMN_SNIPPET);
+                    snippet = getNoteContent(context, c.getLong(COLUMN_ID),
+                            c.getString(COLUMN_SNIPPET));
                     bgId = c.getInt(COLUMN_BG_COLOR_ID);
                     intent.putExtra(Intent.EXTRA_UID, c.getLong(COLUMN_ID));
                     intent.setAction(Intent.ACTION_VIEW);
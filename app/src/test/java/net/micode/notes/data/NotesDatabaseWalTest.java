@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.ui.NotesListActivity;
+import net.micode.notes.ui.NotesListSnapshot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 预写日志模式下的并发读写。
+ * 写事务进行期间,其他线程通过provider查询便签列表时使用读连接,不等待写事务结束,
+ * 读到的是最后一次提交的内容;长时间连续写入期间反复查询列表,查询耗时的99百分位数有上限
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class NotesDatabaseWalTest {
+    //查询被写事务阻塞时最多等待的时间
+    private static final long READ_TIMEOUT_SECONDS = 5;
+
+    //连续写入期间列表查询耗时的99百分位数上限
+    private static final long READ_P99_MAX_MILLIS = 50;
+
+    //计算百分位数至少需要的查询次数
+    private static final int MIN_READS = 100;
+
+    private static final String[] ROOT_FOLDER_ARGS = new String[] {
+            String.valueOf(Notes.ID_ROOT_FOLDER)
+    };
+
+    private ContentResolver mResolver;
+
+    private SQLiteDatabase mDb;
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        NotesDatabaseHelper.resetInstance();
+        Robolectric.setupContentProvider(NotesProvider.class, Notes.AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mDb = NotesDatabaseHelper.getInstance(RuntimeEnvironment.application)
+                .getWritableDatabase();
+        mExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        mExecutor.awaitTermination(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        NotesDatabaseHelper.resetInstance();
+    }
+
+    private void insertNote(int index) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        values.put(NoteColumns.MODIFIED_DATE, 1000000L + index);
+        mDb.insert(TABLE.NOTE, null, values);
+    }
+
+    /**
+     * 与便签列表打开根目录时的查询相同,经过provider读取列表的键列
+     * @return 列表中的行数
+     */
+    private long queryRootList() {
+        Cursor cursor = mResolver.query(Notes.CONTENT_NOTE_URI,
+                NotesListSnapshot.KEY_PROJECTION, NotesListActivity.ROOT_FOLDER_SELECTION,
+                ROOT_FOLDER_ARGS, NotesListSnapshot.SORT_ORDER);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void databaseUsesWriteAheadLog() {
+        Cursor cursor = mDb.rawQuery("PRAGMA journal_mode", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("wal", cursor.getString(0).toLowerCase());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void readDoesNotWaitForWriteTransaction() throws Exception {
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch commit = new CountDownLatch(1);
+        Future<?> writer = mExecutor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                mDb.beginTransaction();
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        insertNote(i);
+                    }
+                    written.countDown();
+                    commit.await();
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
+                }
+                return null;
+            }
+        });
+        assertTrue(written.await(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        //写事务尚未提交,查询不等待并读到提交前的内容
+        Future<Long> read = mExecutor.submit(new Callable<Long>() {
+            public Long call() {
+                return queryRootList();
+            }
+        });
+        assertEquals(0L, (long) read.get(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        commit.countDown();
+        writer.get(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(1000L, queryRootList());
+    }
+
+    @Test
+    public void readsDuringSustainedWrites() throws Exception {
+        final int transactions = 100;
+        final int rowsPerTransaction = 100;
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        Future<?> writer = mExecutor.submit(new Callable<Void>() {
+            public Void call() {
+                try {
+                    for (int t = 0; t < transactions; t++) {
+                        mDb.beginTransaction();
+                        try {
+                            for (int i = 0; i < rowsPerTransaction; i++) {
+                                insertNote(t * rowsPerTransaction + i);
+                            }
+                            mDb.setTransactionSuccessful();
+                        } finally {
+                            mDb.endTransaction();
+                        }
+                    }
+                } finally {
+                    writing.set(false);
+                }
+                return null;
+            }
+        });
+
+        long[] nanos = new long[transactions * rowsPerTransaction];
+        int reads = 0;
+        long lastCount = 0;
+        //写入很快结束时继续查询,保证百分位数有足够的样本
+        while (writing.get() || reads < MIN_READS) {
+            long start = System.nanoTime();
+            long count = queryRootList();
+            long elapsed = System.nanoTime() - start;
+            //每次读到的都是某次提交后的完整内容
+            assertEquals(0, count % rowsPerTransaction);
+            assertTrue(count >= lastCount);
+            lastCount = count;
+            if (reads == nanos.length) {
+                nanos = Arrays.copyOf(nanos, reads * 2);
+            }
+            nanos[reads++] = elapsed;
+        }
+        writer.get(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(transactions * rowsPerTransaction, queryRootList());
+
+        Arrays.sort(nanos, 0, reads);
+        long p99Millis = TimeUnit.NANOSECONDS.toMillis(nanos[(reads * 99 + 99) / 100 - 1]);
+        assertTrue("p99 of " + reads + " reads: " + p99Millis + "ms",
+                p99Millis <= READ_P99_MAX_MILLIS);
+    }
+}
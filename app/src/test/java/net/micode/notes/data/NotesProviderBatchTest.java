@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 批量写入的压力测试。
+ * applyBatch和bulkInsert在一个事务中提交,大批量时中途让步也不能丢失行;
+ * 批量移动和删除按{@link Notes#BATCH_MAX_IDS}个ID一个操作,整批只发出一次变化通知,
+ * 任一操作失败时整批回滚,不发出通知
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class NotesProviderBatchTest {
+    private ContentResolver mResolver;
+
+    private ShadowContentResolver mShadowResolver;
+
+    @Before
+    public void setUp() {
+        NotesDatabaseHelper.resetInstance();
+        Robolectric.setupContentProvider(NotesProvider.class, Notes.AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mShadowResolver = shadowOf(mResolver);
+    }
+
+    @After
+    public void tearDown() {
+        NotesDatabaseHelper.resetInstance();
+    }
+
+    private static ContentValues newNoteValues(int index) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        values.put(NoteColumns.MODIFIED_DATE, 1000000L + index);
+        return values;
+    }
+
+    /**
+     * 每个便签一个插入便签的操作和一个插入正文的操作,正文通过反向引用取得便签ID
+     */
+    private static ArrayList<ContentProviderOperation> newNoteOperations(int count) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < count; i++) {
+            int noteIndex = operations.size();
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValues(newNoteValues(i)).build());
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValue(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE)
+                    .withValue(DataColumns.CONTENT, "note " + i)
+                    .withValueBackReference(DataColumns.NOTE_ID, noteIndex)
+                    .build());
+        }
+        return operations;
+    }
+
+    private int countRows(Uri uri, String selection) {
+        Cursor cursor = mResolver.query(uri, new String[] { "_id" }, selection, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countNotes() {
+        return countRows(Notes.CONTENT_NOTE_URI, NoteColumns.TYPE + "=" + Notes.TYPE_NOTE);
+    }
+
+    private void applyBatchOf(int count) throws Exception {
+        ArrayList<ContentProviderOperation> operations = newNoteOperations(count);
+        ContentProviderResult[] results = mResolver.applyBatch(Notes.AUTHORITY, operations);
+
+        assertEquals(operations.size(), results.length);
+        assertEquals(count, countNotes());
+        assertEquals(count, countRows(Notes.CONTENT_DATA_URI,
+                DataColumns.MIME_TYPE + "='" + TextNote.CONTENT_ITEM_TYPE + "'"));
+        //正文插入在对应的便签下
+        long lastNoteId = ContentUris.parseId(results[results.length - 2].uri);
+        assertEquals(1, countRows(Notes.CONTENT_DATA_URI,
+                DataColumns.NOTE_ID + "=" + lastNoteId));
+    }
+
+    @Test
+    public void applyBatchOf1kNotes() throws Exception {
+        applyBatchOf(1000);
+    }
+
+    @Test
+    public void applyBatchOf10kNotes() throws Exception {
+        applyBatchOf(10000);
+    }
+
+    @Test
+    public void bulkInsertOf10kNotes() {
+        ContentValues[] values = new ContentValues[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = newNoteValues(i);
+        }
+        int inserted = mResolver.bulkInsert(Notes.CONTENT_NOTE_URI, values);
+        assertEquals(values.length, inserted);
+        assertEquals(values.length, countNotes());
+    }
+
+    /**
+     * 逐行插入,每行单独提交一次事务
+     */
+    @Test
+    public void singleInsertsOf1kNotes() {
+        for (int i = 0; i < 1000; i++) {
+            mResolver.insert(Notes.CONTENT_NOTE_URI, newNoteValues(i));
+        }
+        assertEquals(1000, countNotes());
+    }
+
+    @Test
+    public void failedOperationRollsBackWholeBatch() throws Exception {
+        //超过让步间隔的批量操作,没有其他连接等待时不会中途提交;最后一个操作更新不存在的便签
+        ArrayList<ContentProviderOperation> operations = newNoteOperations(600);
+        operations.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, Integer.MAX_VALUE))
+                .withValue(NoteColumns.BG_COLOR_ID, 1)
+                .withExpectedCount(1)
+                .build());
+        try {
+            mResolver.applyBatch(Notes.AUTHORITY, operations);
+            fail("Expected the batch to fail");
+        } catch (OperationApplicationException e) {
+            //期望的失败
+        }
+        assertEquals(0, countNotes());
+        assertEquals(0, countRows(Notes.CONTENT_DATA_URI, null));
+    }
+    /**
+     * 在根目录插入便签
+     * @return 便签ID,按插入顺序
+     */
+    private long[] insertNotes(int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = newNoteValues(i);
+        }
+        assertEquals(count, mResolver.bulkInsert(Notes.CONTENT_NOTE_URI, values));
+        long[] ids = new long[count];
+        Cursor cursor = mResolver.query(Notes.CONTENT_NOTE_URI, new String[] { NoteColumns.ID },
+                NoteColumns.TYPE + "=" + Notes.TYPE_NOTE, null, NoteColumns.ID);
+        try {
+            assertEquals(count, cursor.getCount());
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    private long insertFolder() {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+        values.put(NoteColumns.SNIPPET, "folder");
+        return ContentUris.parseId(mResolver.insert(Notes.CONTENT_NOTE_URI, values));
+    }
+
+    /**
+     * 与批量调用相同,每{@link Notes#BATCH_MAX_IDS}个ID一个按ID集合选择的操作
+     * @param values 移动时为目标文件夹,删除时为null
+     */
+    private static ArrayList<ContentProviderOperation> newIdSetOperations(long[] ids,
+                                                                         ContentValues values) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int start = 0; start < ids.length; start += Notes.BATCH_MAX_IDS) {
+            int end = Math.min(start + Notes.BATCH_MAX_IDS, ids.length);
+            StringBuilder selection = new StringBuilder(NoteColumns.ID + " IN (");
+            String[] args = new String[end - start];
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+                args[i - start] = String.valueOf(ids[i]);
+            }
+            selection.append(')');
+            ContentProviderOperation.Builder builder = values == null
+                    ? ContentProviderOperation.newDelete(Notes.CONTENT_NOTE_URI)
+                    : ContentProviderOperation.newUpdate(Notes.CONTENT_NOTE_URI)
+                            .withValues(values);
+            operations.add(builder.withSelection(selection.toString(), args)
+                    .withExpectedCount(end - start).build());
+        }
+        return operations;
+    }
+
+    private static ContentValues moveTo(long folderId) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, folderId);
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        return values;
+    }
+
+    /**
+     * 更新不存在的便签并要求更新一行,执行时必然失败
+     */
+    private static ContentProviderOperation newFailingOperation() {
+        return ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, Integer.MAX_VALUE))
+                .withValue(NoteColumns.BG_COLOR_ID, 1)
+                .withExpectedCount(1)
+                .build();
+    }
+
+    private int countNotesIn(long folderId) {
+        return countRows(Notes.CONTENT_NOTE_URI, NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+                + " AND " + NoteColumns.PARENT_ID + "=" + folderId);
+    }
+
+    /**
+     * @return 从第from个通知开始发出的通知
+     */
+    private List<ShadowContentResolver.NotifiedUri> notificationsSince(int from) {
+        List<ShadowContentResolver.NotifiedUri> notified = mShadowResolver.getNotifiedUris();
+        return notified.subList(from, notified.size());
+    }
+
+    private void moveBatchOf(int count) throws Exception {
+        long[] ids = insertNotes(count);
+        long folderId = insertFolder();
+        ArrayList<ContentProviderOperation> operations = newIdSetOperations(ids, moveTo(folderId));
+        int notified = mShadowResolver.getNotifiedUris().size();
+
+        mResolver.applyBatch(Notes.AUTHORITY, operations);
+
+        assertEquals(0, countNotesIn(Notes.ID_ROOT_FOLDER));
+        assertEquals(count, countNotesIn(folderId));
+        List<ShadowContentResolver.NotifiedUri> notifications = notificationsSince(notified);
+        assertEquals(1, notifications.size());
+        assertEquals(Notes.CONTENT_NOTE_URI, notifications.get(0).uri);
+    }
+
+    private void deleteBatchOf(int count) throws Exception {
+        long[] ids = insertNotes(count);
+        ArrayList<ContentProviderOperation> operations = newIdSetOperations(ids, null);
+        int notified = mShadowResolver.getNotifiedUris().size();
+
+        mResolver.applyBatch(Notes.AUTHORITY, operations);
+
+        assertEquals(0, countNotes());
+        List<ShadowContentResolver.NotifiedUri> notifications = notificationsSince(notified);
+        assertEquals(1, notifications.size());
+        assertEquals(Notes.CONTENT_NOTE_URI, notifications.get(0).uri);
+    }
+
+    @Test
+    public void moveBatchOf1kNotes() throws Exception {
+        moveBatchOf(1000);
+    }
+
+    @Test
+    public void moveBatchOf10kNotes() throws Exception {
+        moveBatchOf(10000);
+    }
+
+    @Test
+    public void deleteBatchOf1kNotes() throws Exception {
+        deleteBatchOf(1000);
+    }
+
+    @Test
+    public void deleteBatchOf10kNotes() throws Exception {
+        deleteBatchOf(10000);
+    }
+
+    /**
+     * 移动了全部便签之后的操作失败,已执行的移动全部回滚,不发出通知
+     */
+    @Test
+    public void failedOperationRollsBackMoveBatch() throws Exception {
+        long[] ids = insertNotes(10000);
+        long folderId = insertFolder();
+        ArrayList<ContentProviderOperation> operations = newIdSetOperations(ids, moveTo(folderId));
+        operations.add(newFailingOperation());
+        int notified = mShadowResolver.getNotifiedUris().size();
+        try {
+            mResolver.applyBatch(Notes.AUTHORITY, operations);
+            fail("Expected the batch to fail");
+        } catch (OperationApplicationException e) {
+            //期望的失败
+        }
+        assertEquals(ids.length, countNotesIn(Notes.ID_ROOT_FOLDER));
+        assertEquals(0, countNotesIn(folderId));
+        assertEquals(0, notificationsSince(notified).size());
+    }
+
+    @Test
+    public void failedOperationRollsBackDeleteBatch() throws Exception {
+        long[] ids = insertNotes(10000);
+        ArrayList<ContentProviderOperation> operations = newIdSetOperations(ids, null);
+        operations.add(newFailingOperation());
+        int notified = mShadowResolver.getNotifiedUris().size();
+        try {
+            mResolver.applyBatch(Notes.AUTHORITY, operations);
+            fail("Expected the batch to fail");
+        } catch (OperationApplicationException e) {
+            //期望的失败
+        }
+        assertEquals(ids.length, countNotes());
+        assertEquals(0, notificationsSince(notified).size());
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import net.micode.notes.data.Notes.ChecklistItemNote;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.SearchColumns;
+import net.micode.notes.data.Notes.TextNote;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 搜索的分词、全文索引表达式和LIKE模式的转义,以及通过provider的搜索结果
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class NotesProviderSearchTest {
+    private static final Uri SEARCH_URI = Uri.parse("content://" + Notes.AUTHORITY + "/search");
+
+    private ContentResolver mResolver;
+
+    private long mNextModifiedDate = 1000000L;
+
+    @Before
+    public void setUp() {
+        NotesDatabaseHelper.resetInstance();
+        Robolectric.setupContentProvider(NotesProvider.class, Notes.AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        NotesDatabaseHelper.resetInstance();
+    }
+
+    @Test
+    public void splitSearchTermsDropsQuotesAndBlanks() {
+        assertEquals(Arrays.asList("foo", "bar"),
+                NotesProvider.splitSearchTerms("  foo \t\n bar "));
+        //引号不组成短语,只是被去掉
+        assertEquals(Arrays.asList("foo", "bar", "baz"),
+                NotesProvider.splitSearchTerms("\"foo\" \"bar baz\""));
+        assertEquals(Collections.singletonList("ab"), NotesProvider.splitSearchTerms("a\"b"));
+        assertTrue(NotesProvider.splitSearchTerms("\"\" \"").isEmpty());
+        assertTrue(NotesProvider.splitSearchTerms("   ").isEmpty());
+    }
+
+    @Test
+    public void matchStringJoinsPhrasesWithOr() {
+        assertNull(NotesProvider.buildMatchString(Collections.<String>emptyList()));
+        assertEquals("\"abc*\"", NotesProvider.buildMatchString(Collections.singletonList("\"abc*\"")));
+        assertEquals("\"foo*\" OR \"bar*\"",
+                NotesProvider.buildMatchString(Arrays.asList("\"foo*\"", "\"bar*\"")));
+    }
+
+    /**
+     * 每个词的全文索引条件只出现一次,另加一个筛选数据行的条件
+     */
+    @Test
+    public void eachTermIsMatchedOnce() {
+        ArrayList<String> args = new ArrayList<String>();
+        String sql = NotesProvider.buildSearchQuery(Arrays.asList("milk", "50%", "明天"), args);
+        assertEquals(4, sql.split("MATCH \\?", -1).length - 1);
+        assertEquals(1, sql.split("LIKE \\?", -1).length - 1);
+        assertEquals(Arrays.asList("\"milk*\"", "\"50*\"", "%50\\%%", "\"明天 天*\"",
+                "\"milk*\" OR \"50*\" OR \"明天 天*\""), args);
+    }
+
+    @Test
+    public void termsWithoutWordsAreIgnored() {
+        ArrayList<String> args = new ArrayList<String>();
+        assertNull(NotesProvider.buildSearchQuery(Arrays.asList("%", "--"), args));
+        assertNull(NotesProvider.buildSearchQuery(Collections.<String>emptyList(), args));
+        assertTrue(args.isEmpty());
+    }
+
+    @Test
+    public void likePatternEscapesWildcards() {
+        assertEquals("%abc%", NotesProvider.buildLikePattern("abc"));
+        assertEquals("%50\\%%", NotesProvider.buildLikePattern("50%"));
+        assertEquals("%a\\_b%", NotesProvider.buildLikePattern("a_b"));
+        assertEquals("%c:\\\\dir%", NotesProvider.buildLikePattern("c:\\dir"));
+        assertEquals("%便签%", NotesProvider.buildLikePattern("便签"));
+    }
+
+    @Test
+    public void placeholderCountIsPowerOfTwoUpToLimit() {
+        assertEquals(1, NotesProvider.batchPlaceholderCount(1));
+        assertEquals(2, NotesProvider.batchPlaceholderCount(2));
+        assertEquals(4, NotesProvider.batchPlaceholderCount(3));
+        assertEquals(256, NotesProvider.batchPlaceholderCount(200));
+        assertEquals(Notes.BATCH_MAX_IDS, NotesProvider.batchPlaceholderCount(Notes.BATCH_MAX_IDS));
+    }
+
+    private long insertNote() {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        values.put(NoteColumns.MODIFIED_DATE, mNextModifiedDate++);
+        return ContentUris.parseId(mResolver.insert(Notes.CONTENT_NOTE_URI, values));
+    }
+
+    private long insertTextNote(String content) {
+        long noteId = insertNote();
+        ContentValues values = new ContentValues();
+        values.put(DataColumns.NOTE_ID, noteId);
+        values.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
+        values.put(DataColumns.CONTENT, content);
+        mResolver.insert(Notes.CONTENT_DATA_URI, values);
+        return noteId;
+    }
+
+    private long insertChecklistNote(String... items) {
+        long noteId = insertNote();
+        for (String item : items) {
+            ContentValues values = new ContentValues();
+            values.put(DataColumns.NOTE_ID, noteId);
+            values.put(DataColumns.MIME_TYPE, ChecklistItemNote.CONTENT_ITEM_TYPE);
+            values.put(DataColumns.CONTENT, item);
+            mResolver.insert(Notes.CONTENT_DATA_URI, values);
+        }
+        return noteId;
+    }
+
+    /**
+     * @return 搜索结果的便签ID,按结果顺序排列
+     */
+    private List<Long> search(String pattern) {
+        Uri uri = SEARCH_URI.buildUpon().appendQueryParameter("pattern", pattern).build();
+        ArrayList<Long> ids = new ArrayList<Long>();
+        Cursor cursor = mResolver.query(uri, null, null, null, null);
+        if (cursor == null) {
+            return ids;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(cursor.getColumnIndexOrThrow(NoteColumns.ID)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    @Test
+    public void everyTermMustMatch() {
+        long both = insertTextNote("buy milk and bread");
+        insertTextNote("buy milk");
+        insertTextNote("fresh bread");
+        assertEquals(Collections.singletonList(both), search("milk bread"));
+        //前缀匹配且不区分大小写
+        assertEquals(Collections.singletonList(both), search("MIL bre"));
+    }
+
+    @Test
+    public void termsCanMatchDifferentChecklistItems() {
+        long checklist = insertChecklistNote("milk", "bread", "eggs");
+        insertChecklistNote("milk", "butter");
+        assertEquals(Collections.singletonList(checklist), search("eggs milk"));
+    }
+
+    @Test
+    public void chineseTermsMatchSubstrings() {
+        long chinese = insertTextNote("明天下午开会");
+        insertTextNote("今天上午");
+        assertEquals(Collections.singletonList(chinese), search("下午"));
+        assertEquals(Collections.singletonList(chinese), search("开会 明天"));
+        //单个字和跨越词边界的子串
+        assertEquals(Collections.singletonList(chinese), search("午"));
+        assertEquals(Collections.singletonList(chinese), search("天下午"));
+        assertEquals(Collections.singletonList(chinese), search("明天下午开会"));
+        //字都出现但不相邻
+        assertTrue(search("明午").isEmpty());
+    }
+
+    @Test
+    public void mixedTermsMatchAcrossScripts() {
+        long mixed = insertTextNote("买Milk三盒");
+        insertTextNote("milk");
+        assertEquals(Collections.singletonList(mixed), search("买milk"));
+        assertEquals(Collections.singletonList(mixed), search("milk三"));
+    }
+
+    @Test
+    public void termsWithSeparatorsMatchLiterally() {
+        long percent = insertTextNote("discount 50% today");
+        insertTextNote("discount 500 today");
+        insertTextNote("50 % off");
+        //通配符按字面匹配
+        assertEquals(Collections.singletonList(percent), search("50%"));
+        //只有分隔符的词被忽略
+        assertEquals(Collections.singletonList(percent), search("50% -"));
+    }
+
+    @Test
+    public void editedContentIsReindexed() {
+        long noteId = insertTextNote("明天下午开会");
+        ContentValues values = new ContentValues();
+        values.put(DataColumns.CONTENT, "后天上午");
+        mResolver.update(Notes.CONTENT_DATA_URI, values, DataColumns.NOTE_ID + "=?",
+                new String[] { String.valueOf(noteId) });
+        assertTrue(search("下午").isEmpty());
+        assertEquals(Collections.singletonList(noteId), search("上午"));
+    }
+
+    @Test
+    public void notesMatchingMoreTermsComeFirst() {
+        long older = insertChecklistNote("milk bread", "eggs");
+        long newer = insertChecklistNote("milk", "bread");
+        //较旧的便签有一行同时包含两个词,排在较新的便签之前
+        assertEquals(Arrays.asList(older, newer), search("milk bread"));
+    }
+
+    @Test
+    public void queryWithoutTermsReturnsNothing() {
+        insertTextNote("anything");
+        assertTrue(search("\"\"").isEmpty());
+        assertTrue(search(" ").isEmpty());
+    }
+
+    @Test
+    public void resultHasMatchRank() {
+        insertTextNote("milk and bread");
+        Uri uri = SEARCH_URI.buildUpon().appendQueryParameter("pattern", "milk bread").build();
+        Cursor cursor = mResolver.query(uri, null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(2, cursor.getInt(cursor.getColumnIndexOrThrow(SearchColumns.MATCH_RANK)));
+        } finally {
+            cursor.close();
+        }
+    }
+}
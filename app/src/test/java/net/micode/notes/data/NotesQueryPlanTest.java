@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.ui.AlarmInitReceiver;
+import net.micode.notes.ui.FoldersListAdapter;
+import net.micode.notes.ui.NoteItemData;
+import net.micode.notes.ui.NotesListActivity;
+import net.micode.notes.ui.NotesListSnapshot;
+import net.micode.notes.widget.NoteWidgetProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 检查便签列表、目标文件夹、提醒和桌面小部件的查询使用了对应的索引,
+ * 既不扫描整个便签表,也不需要临时B树来排序。查询条件、列和排序直接取自调用处的常量
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class NotesQueryPlanTest {
+    //新旧版本SQLite的输出分别为"SCAN TABLE note"和"SCAN note"
+    private static final Pattern TABLE_SCAN = Pattern.compile("SCAN (TABLE )?" + TABLE.NOTE + "\\b");
+
+    private static final String TEMP_SORT = "USE TEMP B-TREE FOR";
+
+    //页查询的键参数:类型、类型、修改时间、修改时间、ID,先后为页中第一行和最后一行
+    private static final String[] PAGE_KEY_ARGS = new String[] {
+            "1", "1", "2000", "2000", "20", "0", "0", "1000", "1000", "10"
+    };
+
+    private NotesDatabaseHelper mHelper;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mHelper = new NotesDatabaseHelper(RuntimeEnvironment.application);
+        mDb = mHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+    }
+
+    /**
+     * @return 查询计划各步骤的说明,每步一行
+     */
+    private String explain(String[] projection, String selection, String[] args,
+                           String sortOrder) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, TABLE.NOTE, projection,
+                selection, null, null, sortOrder, null);
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        StringBuilder plan = new StringBuilder();
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+
+    /**
+     * 查询使用了给定的索引,没有扫描整个表,也没有为排序建立临时B树
+     */
+    private static void assertIndexedPlan(String index, String plan) {
+        assertTrue("Expected " + index + " in plan:\n" + plan,
+                Pattern.compile("USING (COVERING )?INDEX " + index + "\\b").matcher(plan).find());
+        assertFalse("Table scan in plan:\n" + plan, TABLE_SCAN.matcher(plan).find());
+        assertFalse("Temporary sort in plan:\n" + plan, plan.contains(TEMP_SORT));
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] result = new String[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    @Test
+    public void folderListUsesParentIndex() {
+        String plan = explain(NotesListSnapshot.KEY_PROJECTION,
+                NotesListActivity.NORMAL_SELECTION, new String[] { "1" },
+                NotesListSnapshot.SORT_ORDER);
+        assertIndexedPlan("note_parent_id_index", plan);
+    }
+
+    @Test
+    public void rootFolderListUsesParentIndex() {
+        String plan = explain(NotesListSnapshot.KEY_PROJECTION,
+                NotesListActivity.ROOT_FOLDER_SELECTION,
+                new String[] { String.valueOf(Notes.ID_ROOT_FOLDER) },
+                NotesListSnapshot.SORT_ORDER);
+        assertIndexedPlan("note_parent_id_index", plan);
+    }
+
+    @Test
+    public void folderPageUsesParentIndex() {
+        String plan = explain(NoteItemData.PROJECTION,
+                NotesListSnapshot.pageSelection(NotesListActivity.NORMAL_SELECTION),
+                concat(new String[] { "1" }, PAGE_KEY_ARGS), NotesListSnapshot.SORT_ORDER);
+        assertIndexedPlan("note_parent_id_index", plan);
+    }
+
+    @Test
+    public void rootFolderPageUsesParentIndex() {
+        String plan = explain(NoteItemData.PROJECTION,
+                NotesListSnapshot.pageSelection(NotesListActivity.ROOT_FOLDER_SELECTION),
+                concat(new String[] { String.valueOf(Notes.ID_ROOT_FOLDER) }, PAGE_KEY_ARGS),
+                NotesListSnapshot.SORT_ORDER);
+        assertIndexedPlan("note_parent_id_index", plan);
+    }
+
+    @Test
+    public void destinationFoldersUseParentIndex() {
+        String plan = explain(FoldersListAdapter.PROJECTION,
+                NotesListActivity.DESTINATION_FOLDER_SELECTION,
+                new String[] { String.valueOf(Notes.ID_ROOT_FOLDER) },
+                NotesListActivity.DESTINATION_FOLDER_SORT_ORDER);
+        assertIndexedPlan("note_parent_id_index", plan);
+
+        plan = explain(FoldersListAdapter.PROJECTION,
+                NotesListActivity.DESTINATION_FOLDER_WITH_ROOT_SELECTION,
+                new String[] { "1" }, NotesListActivity.DESTINATION_FOLDER_SORT_ORDER);
+        assertIndexedPlan("note_parent_id_index", plan);
+    }
+
+    @Test
+    public void pendingAlarmsUseTypeAlertDateIndex() {
+        String plan = explain(AlarmInitReceiver.PROJECTION, AlarmInitReceiver.SELECTION,
+                new String[] { String.valueOf(System.currentTimeMillis()) }, null);
+        assertIndexedPlan("note_type_alert_date_index", plan);
+    }
+
+    @Test
+    public void widgetLookupUsesWidgetIdIndex() {
+        String plan = explain(NoteWidgetProvider.PROJECTION, NoteWidgetProvider.WIDGET_SELECTION,
+                new String[] { "1", String.valueOf(Notes.ID_TRASH_FOLER) }, null);
+        assertIndexedPlan("note_widget_id_index", plan);
+    }
+}
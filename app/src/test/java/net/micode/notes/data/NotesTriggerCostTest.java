@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 保存单个便签时触发器带来的写入量,以及文件夹便签数和移入回收站的级联是否正确。
+ * 写入的行数用total_changes()统计,触发器中的语句写入的行也计算在内;
+ * 写入的页数用预写日志增加的帧数统计,测试期间关闭自动检查点
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class NotesTriggerCostTest {
+    private static final int FOLDERS = 20;
+
+    private static final int NOTES_PER_FOLDER = 250;
+
+    //修改正文的保存:便签行、数据行、摘要,以及全文索引表和它内部的表
+    private static final long SAVE_MAX_ROWS = 12;
+
+    private static final long SAVE_MAX_PAGES = 10;
+
+    //正文没有变化的保存只写便签行和数据行,不应触发任何触发器
+    private static final long UNCHANGED_SAVE_ROWS = 2;
+
+    private static final long UNCHANGED_SAVE_MAX_PAGES = 3;
+
+    //预写日志的文件头和每一帧的帧头长度
+    private static final int WAL_HEADER_SIZE = 32;
+
+    private static final int WAL_FRAME_HEADER_SIZE = 24;
+
+    private ContentResolver mResolver;
+
+    private SQLiteDatabase mDb;
+
+    private long[] mFolderIds = new long[FOLDERS];
+
+    //每个文件夹中的第一个便签和它的正文数据行
+    private long[] mNoteIds = new long[FOLDERS];
+
+    private long[] mDataIds = new long[FOLDERS];
+
+    private long mNextModifiedDate = 1000000L;
+
+    @Before
+    public void setUp() {
+        NotesDatabaseHelper.resetInstance();
+        Robolectric.setupContentProvider(NotesProvider.class, Notes.AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mDb = NotesDatabaseHelper.getInstance(RuntimeEnvironment.application)
+                .getWritableDatabase();
+        seed();
+        //在写连接上关闭自动检查点,并清空预写日志,之后日志只增长
+        mDb.beginTransaction();
+        try {
+            querySingleValue("PRAGMA wal_autocheckpoint=0");
+        } finally {
+            mDb.endTransaction();
+        }
+        querySingleValue("PRAGMA wal_checkpoint(TRUNCATE)");
+    }
+
+    @After
+    public void tearDown() {
+        NotesDatabaseHelper.resetInstance();
+    }
+
+    private void seed() {
+        mDb.beginTransaction();
+        try {
+            for (int f = 0; f < FOLDERS; f++) {
+                ContentValues folder = new ContentValues();
+                folder.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+                folder.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+                folder.put(NoteColumns.SNIPPET, "folder " + f);
+                mFolderIds[f] = mDb.insert(TABLE.NOTE, null, folder);
+                for (int i = 0; i < NOTES_PER_FOLDER; i++) {
+                    ContentValues note = new ContentValues();
+                    note.put(NoteColumns.PARENT_ID, mFolderIds[f]);
+                    note.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+                    note.put(NoteColumns.MODIFIED_DATE, mNextModifiedDate++);
+                    long noteId = mDb.insert(TABLE.NOTE, null, note);
+                    String content = "note " + f + " " + i;
+                    ContentValues data = new ContentValues();
+                    data.put(DataColumns.NOTE_ID, noteId);
+                    data.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
+                    data.put(DataColumns.CONTENT, content);
+                    data.put(DataColumns.SEARCH_TEXT, SearchTokenizer.indexTextOf(content));
+                    long dataId = mDb.insert(TABLE.DATA, null, data);
+                    if (i == 0) {
+                        mNoteIds[f] = noteId;
+                        mDataIds[f] = dataId;
+                    }
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private long querySingleValue(String sql) {
+        Cursor cursor = mDb.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * total_changes()只统计当前连接的写入,在事务中查询以使用provider写入时用的写连接
+     */
+    private long totalChanges() {
+        mDb.beginTransaction();
+        try {
+            return querySingleValue("SELECT total_changes()");
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private long walFrames() {
+        File wal = new File(mDb.getPath() + "-wal");
+        long size = wal.length();
+        if (size <= WAL_HEADER_SIZE) {
+            return 0;
+        }
+        long pageSize = querySingleValue("PRAGMA page_size");
+        return (size - WAL_HEADER_SIZE) / (pageSize + WAL_FRAME_HEADER_SIZE);
+    }
+
+    /**
+     * 与编辑界面保存便签相同:一次批量操作更新便签的修改时间和正文数据行
+     */
+    private void saveNote(long noteId, long dataId, String content) throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId))
+                .withValue(NoteColumns.LOCAL_MODIFIED, 1)
+                .withValue(NoteColumns.MODIFIED_DATE, mNextModifiedDate++)
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId))
+                .withValue(DataColumns.CONTENT, content)
+                .build());
+        mResolver.applyBatch(Notes.AUTHORITY, operations);
+    }
+
+    private long notesCountOf(long folderId) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT " + NoteColumns.NOTES_COUNT + " FROM "
+                + TABLE.NOTE + " WHERE " + NoteColumns.ID + "=?",
+                new String[] { String.valueOf(folderId) });
+    }
+
+    private long[] folderCounts() {
+        long[] counts = new long[FOLDERS + 2];
+        for (int f = 0; f < FOLDERS; f++) {
+            counts[f] = notesCountOf(mFolderIds[f]);
+        }
+        counts[FOLDERS] = notesCountOf(Notes.ID_ROOT_FOLDER);
+        counts[FOLDERS + 1] = notesCountOf(Notes.ID_TRASH_FOLER);
+        return counts;
+    }
+
+    private static void assertCountsEqual(long[] expected, long[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("folder " + i, expected[i], actual[i]);
+        }
+    }
+
+    @Test
+    public void singleNoteSaveWritesBoundedRowsAndPages() throws Exception {
+        assertTrue(new File(mDb.getPath() + "-wal").exists());
+        long[] counts = folderCounts();
+        long noteId = mNoteIds[FOLDERS / 2];
+        long dataId = mDataIds[FOLDERS / 2];
+
+        long changes = totalChanges();
+        long frames = walFrames();
+        saveNote(noteId, dataId, "edited content");
+        long rows = totalChanges() - changes;
+        long pages = walFrames() - frames;
+        assertTrue("rows written: " + rows, rows >= UNCHANGED_SAVE_ROWS && rows <= SAVE_MAX_ROWS);
+        assertTrue("pages written: " + pages, pages > 0 && pages <= SAVE_MAX_PAGES);
+
+        changes = totalChanges();
+        frames = walFrames();
+        saveNote(noteId, dataId, "edited content");
+        assertEquals(UNCHANGED_SAVE_ROWS, totalChanges() - changes);
+        pages = walFrames() - frames;
+        assertTrue("pages written: " + pages, pages <= UNCHANGED_SAVE_MAX_PAGES);
+
+        //没有修改所在文件夹,各文件夹的便签数不变
+        assertCountsEqual(counts, folderCounts());
+    }
+
+    @Test
+    public void updateWithSameParentKeepsFolderCounts() {
+        long[] counts = folderCounts();
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, mFolderIds[0]);
+        values.put(NoteColumns.BG_COLOR_ID, 1);
+        assertEquals(1, mResolver.update(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mNoteIds[0]), values,
+                null, null));
+        assertCountsEqual(counts, folderCounts());
+    }
+
+    @Test
+    public void moveUpdatesBothFolderCounts() {
+        long[] counts = folderCounts();
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, mFolderIds[1]);
+        mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mNoteIds[0]), values,
+                null, null);
+        counts[0]--;
+        counts[1]++;
+        assertCountsEqual(counts, folderCounts());
+    }
+
+    /**
+     * 文件夹移入回收站时,其中的便签一起移入,文件夹、根目录和回收站的便签数随之变化
+     */
+    @Test
+    public void folderMovedToTrashTakesItsNotes() {
+        long[] counts = folderCounts();
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_TRASH_FOLER);
+        mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mFolderIds[0]),
+                values, null, null);
+
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, TABLE.NOTE,
+                NoteColumns.PARENT_ID + "=?", new String[] { String.valueOf(mFolderIds[0]) }));
+        counts[0] = 0;
+        counts[FOLDERS]--;
+        counts[FOLDERS + 1] += NOTES_PER_FOLDER + 1;
+        assertCountsEqual(counts, folderCounts());
+
+        //其他文件夹中的便签不受影响
+        assertEquals(NOTES_PER_FOLDER, DatabaseUtils.queryNumEntries(mDb, TABLE.NOTE,
+                NoteColumns.PARENT_ID + "=?", new String[] { String.valueOf(mFolderIds[1]) }));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 全文索引的分词和搜索词的短语
+ */
+public class SearchTokenizerTest {
+
+    @Test
+    public void wordsAreLowercased() {
+        assertEquals("buy milk 2 bread", SearchTokenizer.indexTextOf("Buy MILK, 2 bread!"));
+        assertEquals("café", SearchTokenizer.indexTextOf("CAFÉ"));
+        assertEquals("", SearchTokenizer.indexTextOf(null));
+        assertEquals("", SearchTokenizer.indexTextOf(" -- "));
+    }
+
+    @Test
+    public void chineseIsSplitIntoBigrams() {
+        assertEquals("明天 天下 下午 午", SearchTokenizer.indexTextOf("明天下午"));
+        assertEquals("好", SearchTokenizer.indexTextOf("好"));
+        //文字与字母数字之间也是词的边界
+        assertEquals("买 milk 三盒 盒", SearchTokenizer.indexTextOf("买Milk三盒"));
+        assertEquals("下午 午 3 点", SearchTokenizer.indexTextOf("下午3点"));
+    }
+
+    @Test
+    public void phraseEndsWithPrefixToken() {
+        assertEquals("\"milk*\"", SearchTokenizer.matchPhraseOf("Milk"));
+        assertEquals("\"下午 午*\"", SearchTokenizer.matchPhraseOf("下午"));
+        assertEquals("\"午*\"", SearchTokenizer.matchPhraseOf("午"));
+        assertEquals("\"a b*\"", SearchTokenizer.matchPhraseOf("a-b"));
+        //MATCH语法中的关键字和符号在短语中只是普通的词
+        assertEquals("\"or*\"", SearchTokenizer.matchPhraseOf("OR*"));
+        assertNull(SearchTokenizer.matchPhraseOf("%"));
+    }
+
+    @Test
+    public void separatorsAreDetected() {
+        assertTrue(SearchTokenizer.hasSeparator("50%"));
+        assertTrue(SearchTokenizer.hasSeparator("a-b"));
+        assertFalse(SearchTokenizer.hasSeparator("abc123"));
+        assertFalse(SearchTokenizer.hasSeparator("下午3点"));
+    }
+}
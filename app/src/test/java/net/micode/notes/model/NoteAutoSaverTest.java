@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.appwidget.AppWidgetManager;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 自动保存的合并、保存期间的再次保存和保存失败后的重试。
+ * 定时和后台线程都替换为手动推进的实现,批量操作由记录写入内容的provider接收
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class NoteAutoSaverTest {
+
+    /**
+     * 手动推进的时钟,只在调用{@link #advance}时执行到期的任务
+     */
+    static class FakeScheduler implements NoteAutoSaver.Scheduler {
+        private static class Task {
+            final Runnable runnable;
+            final long time;
+
+            Task(Runnable runnable, long time) {
+                this.runnable = runnable;
+                this.time = time;
+            }
+        }
+
+        private final LinkedList<Task> mTasks = new LinkedList<Task>();
+
+        private long mNow;
+
+        public void post(Runnable runnable) {
+            postDelayed(runnable, 0);
+        }
+
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            mTasks.add(new Task(runnable, mNow + delayMillis));
+        }
+
+        public void removeCallbacks(Runnable runnable) {
+            Iterator<Task> iterator = mTasks.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().runnable == runnable) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        void advance(long millis) {
+            mNow += millis;
+            while (true) {
+                Task due = null;
+                for (Task task : mTasks) {
+                    if (task.time <= mNow && (due == null || task.time < due.time)) {
+                        due = task;
+                    }
+                }
+                if (due == null) {
+                    return;
+                }
+                mTasks.remove(due);
+                due.runnable.run();
+            }
+        }
+
+        int pendingCount() {
+            return mTasks.size();
+        }
+    }
+
+    /**
+     * 任务排队到调用{@link #runNext}时才执行,模拟单线程的保存线程
+     */
+    static class ManualExecutor implements Executor {
+        private final LinkedList<Runnable> mQueue = new LinkedList<Runnable>();
+
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+
+        void runNext() {
+            mQueue.removeFirst().run();
+        }
+
+        void runAll() {
+            while (!mQueue.isEmpty()) {
+                runNext();
+            }
+        }
+
+        int size() {
+            return mQueue.size();
+        }
+    }
+
+    private RecordingProvider mProvider;
+
+    private FakeScheduler mScheduler;
+
+    private ManualExecutor mExecutor;
+
+    private WorkingNote mNote;
+
+    //编辑器中的文本,collectChanges时写入WorkingNote
+    private String mEditorText;
+
+    private final ArrayList<Boolean> mFinished = new ArrayList<Boolean>();
+
+    private NoteAutoSaver mSaver;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.setupContentProvider(RecordingProvider.class, Notes.AUTHORITY);
+        mScheduler = new FakeScheduler();
+        mExecutor = new ManualExecutor();
+        mNote = WorkingNote.createEmptyNote(RuntimeEnvironment.application, Notes.ID_ROOT_FOLDER,
+                AppWidgetManager.INVALID_APPWIDGET_ID, Notes.TYPE_WIDGET_INVALIDE, 0);
+        mSaver = new NoteAutoSaver(new NoteAutoSaver.Callback() {
+            public WorkingNote getWorkingNote() {
+                return mNote;
+            }
+
+            public void collectChanges() {
+                mNote.setWorkingText(mEditorText);
+            }
+
+            public void onSaveFinished(WorkingNote note, boolean saved) {
+                mFinished.add(saved);
+            }
+        }, mScheduler, mExecutor);
+    }
+
+    /**
+     * 保存一次,使便签存在于数据库中
+     */
+    private void saveInitialNote(String text) {
+        mEditorText = text;
+        assertTrue(mSaver.flush());
+        mExecutor.runAll();
+        mScheduler.advance(0);
+        assertTrue(mNote.existInDatabase());
+        mFinished.clear();
+    }
+
+    @Test
+    public void rapidChangesAreSavedOnce() {
+        for (int i = 1; i <= 5; i++) {
+            mEditorText = "text " + i;
+            mSaver.notifyChanged();
+            mScheduler.advance(NoteAutoSaver.DEBOUNCE_DELAY_MS / 3);
+        }
+        assertEquals(0, mExecutor.size());
+
+        mScheduler.advance(NoteAutoSaver.DEBOUNCE_DELAY_MS);
+        assertEquals(1, mExecutor.size());
+        mExecutor.runAll();
+        mScheduler.advance(0);
+
+        assertEquals(1, mProvider.batches.size());
+        assertEquals("text 5", mProvider.contentOf(0));
+        assertEquals(1, mFinished.size());
+        assertTrue(mFinished.get(0));
+        assertEquals(0, mScheduler.pendingCount());
+    }
+
+    @Test
+    public void flushWithoutChangesDoesNotSave() {
+        saveInitialNote("first");
+        assertFalse(mSaver.flush());
+        assertEquals(0, mExecutor.size());
+    }
+
+    @Test
+    public void flushDuringSaveKeepsBothChanges() {
+        saveInitialNote("first");
+        mEditorText = "second";
+        mNote.setBgColorId(3);
+        //第二次保存写入数据库时,主线程上又有修改并再次保存
+        mProvider.onApplyBatch = new Runnable() {
+            public void run() {
+                mEditorText = "third";
+                assertTrue(mSaver.flush());
+            }
+        };
+        assertTrue(mSaver.flush());
+        mExecutor.runNext();
+        assertEquals(1, mExecutor.size());
+        mExecutor.runNext();
+        mScheduler.advance(0);
+
+        assertEquals(3, mProvider.batches.size());
+        assertEquals("second", mProvider.contentOf(1));
+        assertEquals("3", mProvider.noteValueOf(1, NoteColumns.BG_COLOR_ID));
+        assertEquals("third", mProvider.contentOf(2));
+        //便签属性已在第二次保存中写入,第三次保存不再重复写入
+        assertNull(mProvider.noteValueOf(2, NoteColumns.BG_COLOR_ID));
+        assertEquals(2, mFinished.size());
+        assertFalse(mNote.hasUnsavedChanges());
+    }
+
+    @Test
+    public void failedSaveMergesValuesBack() {
+        saveInitialNote("first");
+        mEditorText = "second";
+        mNote.setBgColorId(3);
+        mProvider.fail = true;
+        assertTrue(mSaver.flush());
+        mExecutor.runAll();
+        mScheduler.advance(0);
+        assertEquals(1, mFinished.size());
+        assertFalse(mFinished.get(0));
+        assertTrue(mNote.hasUnsavedChanges());
+
+        //失败后的新修改优先,放回的便签属性在下次保存时一起写入
+        mProvider.fail = false;
+        mEditorText = "third";
+        assertTrue(mSaver.flush());
+        mExecutor.runAll();
+        mScheduler.advance(0);
+
+        assertEquals(2, mProvider.batches.size());
+        assertEquals("third", mProvider.contentOf(1));
+        assertNotNull(mProvider.noteValueOf(1, NoteColumns.BG_COLOR_ID));
+        assertEquals("3", mProvider.noteValueOf(1, NoteColumns.BG_COLOR_ID));
+        assertTrue(mFinished.get(1));
+        assertFalse(mNote.hasUnsavedChanges());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+
+import net.micode.notes.data.Notes.DataColumns;
+
+import java.util.ArrayList;
+
+/**
+ * 记录每次批量操作写入的内容,可以让批量操作失败或在执行时插入其他操作。
+ * 插入的行按顺序分配ID,不保存任何数据
+ */
+public class RecordingProvider extends ContentProvider {
+
+    /**
+     * 一次写入操作,插入时uri为分配了ID的数据行
+     */
+    static class Write {
+        final Uri uri;
+        //删除时为null
+        final ContentValues values;
+
+        Write(Uri uri, ContentValues values) {
+            this.uri = uri;
+            this.values = values;
+        }
+
+        boolean isDelete() {
+            return values == null;
+        }
+    }
+
+    final ArrayList<ArrayList<Write>> batches = new ArrayList<ArrayList<Write>>();
+
+    boolean fail;
+
+    //批量操作开始时执行一次,模拟保存期间主线程上的编辑
+    Runnable onApplyBatch;
+
+    private ArrayList<Write> mCurrent;
+
+    private long mNextId = 1;
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        Runnable hook = onApplyBatch;
+        onApplyBatch = null;
+        if (hook != null) {
+            hook.run();
+        }
+        if (fail) {
+            throw new OperationApplicationException("fail for test");
+        }
+        mCurrent = new ArrayList<Write>();
+        batches.add(mCurrent);
+        return super.applyBatch(operations);
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        Uri inserted = ContentUris.withAppendedId(uri, mNextId++);
+        mCurrent.add(new Write(inserted, new ContentValues(values)));
+        return inserted;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection,
+                      String[] selectionArgs) {
+        mCurrent.add(new Write(uri, new ContentValues(values)));
+        return 1;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        mCurrent.add(new Write(uri, null));
+        return 1;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    /**
+     * @return 批量操作中写入的正文,没有写入正文时返回null
+     */
+    String contentOf(int batch) {
+        for (Write write : batches.get(batch)) {
+            if (!write.isDelete() && write.values.containsKey(DataColumns.CONTENT)) {
+                return write.values.getAsString(DataColumns.CONTENT);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return 批量操作中写入的便签属性,没有写入时返回null
+     */
+    String noteValueOf(int batch, String column) {
+        for (Write write : batches.get(batch)) {
+            if (write.isDelete()) {
+                continue;
+            }
+            ContentValues values = write.values;
+            if (values.containsKey(column) && !values.containsKey(DataColumns.MIME_TYPE)
+                    && !values.containsKey(DataColumns.CONTENT)) {
+                return values.getAsString(column);
+            }
+        }
+        return null;
+    }
+}
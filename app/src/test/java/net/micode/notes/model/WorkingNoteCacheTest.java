@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.data.NotesProvider;
+import net.micode.notes.data.TestNotesDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 便签缓存按便签ID失效:保存或修改一个便签不影响其他便签的缓存
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class WorkingNoteCacheTest {
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        TestNotesDatabase.reset();
+        WorkingNoteCache.resetInstance();
+        Robolectric.setupContentProvider(NotesProvider.class, Notes.AUTHORITY);
+        mContext = RuntimeEnvironment.application;
+        mResolver = mContext.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        WorkingNoteCache.resetInstance();
+        TestNotesDatabase.reset();
+    }
+
+    /**
+     * 保存一个新便签并重新加载,加载后便签在缓存中
+     */
+    private long createCachedNote(String text) {
+        WorkingNote note = WorkingNote.createEmptyNote(mContext, Notes.ID_ROOT_FOLDER,
+                AppWidgetManager.INVALID_APPWIDGET_ID, Notes.TYPE_WIDGET_INVALIDE, 0);
+        note.setWorkingText(text);
+        assertTrue(note.saveNote());
+        long noteId = note.getNoteId();
+        WorkingNote.load(mContext, noteId);
+        assertNotNull(WorkingNote.loadFromCache(mContext, noteId));
+        return noteId;
+    }
+
+    private long textDataIdOf(long noteId) {
+        Cursor cursor = mResolver.query(Notes.CONTENT_DATA_URI, new String[] { DataColumns.ID },
+                DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + "=?",
+                new String[] { String.valueOf(noteId), TextNote.CONTENT_ITEM_TYPE }, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void savingUnrelatedNoteKeepsEntry() {
+        long cached = createCachedNote("cached");
+        long other = createCachedNote("other");
+
+        WorkingNote note = WorkingNote.loadFromCache(mContext, other);
+        note.setWorkingText("other, edited");
+        assertTrue(note.saveNote());
+
+        assertNull(WorkingNote.loadFromCache(mContext, other));
+        WorkingNote kept = WorkingNote.loadFromCache(mContext, cached);
+        assertNotNull(kept);
+        assertEquals("cached", kept.getContent());
+    }
+
+    /**
+     * 同步等其他途径修改数据行时,只有所属便签失效
+     */
+    @Test
+    public void dataWriteInvalidatesOnlyItsNote() {
+        long cached = createCachedNote("cached");
+        long other = createCachedNote("other");
+
+        ContentValues values = new ContentValues();
+        values.put(DataColumns.CONTENT, "changed elsewhere");
+        mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, textDataIdOf(other)),
+                values, null, null);
+
+        assertNull(WorkingNote.loadFromCache(mContext, other));
+        assertNotNull(WorkingNote.loadFromCache(mContext, cached));
+        assertEquals("changed elsewhere", WorkingNote.load(mContext, other).getContent());
+    }
+
+    /**
+     * 按条件修改数据时不知道涉及的便签,清空整个缓存
+     */
+    @Test
+    public void dataWriteBySelectionClearsCache() {
+        long first = createCachedNote("first");
+        long second = createCachedNote("second");
+
+        ContentValues values = new ContentValues();
+        values.put(DataColumns.CONTENT, "changed");
+        mResolver.update(Notes.CONTENT_DATA_URI, values, DataColumns.NOTE_ID + "=?",
+                new String[] { String.valueOf(first) });
+
+        assertNull(WorkingNote.loadFromCache(mContext, first));
+        assertNull(WorkingNote.loadFromCache(mContext, second));
+    }
+}
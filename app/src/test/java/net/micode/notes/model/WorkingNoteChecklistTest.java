@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.appwidget.AppWidgetManager;
+import android.net.Uri;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.ChecklistItemNote;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.model.RecordingProvider.Write;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 清单条目的排序值分配,以及保存时只写入新增、删除和有变化的条目
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class WorkingNoteChecklistTest {
+    private static final long STEP = ChecklistItem.POSITION_STEP;
+
+    private RecordingProvider mProvider;
+
+    private WorkingNote mNote;
+
+    //已插入的条目数据行,按条目文本索引
+    private final HashMap<String, Uri> mItemUris = new HashMap<String, Uri>();
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.setupContentProvider(RecordingProvider.class, Notes.AUTHORITY);
+        mNote = WorkingNote.createEmptyNote(RuntimeEnvironment.application, Notes.ID_ROOT_FOLDER,
+                AppWidgetManager.INVALID_APPWIDGET_ID, Notes.TYPE_WIDGET_INVALIDE, 0);
+        mNote.setCheckListMode(TextNote.MODE_CHECK_LIST);
+    }
+
+    private static ArrayList<ChecklistItem> items(String... texts) {
+        ArrayList<ChecklistItem> items = new ArrayList<ChecklistItem>();
+        for (String text : texts) {
+            items.add(new ChecklistItem(text, false));
+        }
+        return items;
+    }
+
+    private static List<ChecklistItem> listOf(ChecklistItem... items) {
+        return Arrays.asList(items);
+    }
+
+    /**
+     * 保存便签并返回本次批量操作中对条目数据行的写入,同时记录新插入条目的数据行
+     */
+    private ArrayList<Write> saveAndGetItemWrites() {
+        assertTrue(mNote.saveNote());
+        ArrayList<Write> writes = new ArrayList<Write>();
+        for (Write write : mProvider.batches.get(mProvider.batches.size() - 1)) {
+            if (!write.isDelete() && ChecklistItemNote.CONTENT_ITEM_TYPE.equals(
+                    write.values.getAsString(DataColumns.MIME_TYPE))) {
+                mItemUris.put(write.values.getAsString(ChecklistItemNote.CONTENT), write.uri);
+                writes.add(write);
+            } else if (mItemUris.containsValue(write.uri)) {
+                writes.add(write);
+            }
+        }
+        return writes;
+    }
+
+    private static boolean isInsert(Write write) {
+        return !write.isDelete() && write.values.containsKey(DataColumns.MIME_TYPE);
+    }
+
+    @Test
+    public void newItemsAreSpacedByStep() {
+        ArrayList<ChecklistItem> list = items("a", "b", "c");
+        mNote.setChecklistItems(list);
+        assertArrayEquals(new long[] { STEP, 2 * STEP, 3 * STEP }, mNote.assignPositions(list));
+    }
+
+    @Test
+    public void insertedItemTakesMidpoint() {
+        ArrayList<ChecklistItem> list = items("a", "b");
+        mNote.setChecklistItems(list);
+        ChecklistItem a = list.get(0);
+        ChecklistItem b = list.get(1);
+        ChecklistItem x = new ChecklistItem("x", false);
+
+        assertArrayEquals(new long[] { STEP / 2, STEP, 2 * STEP },
+                mNote.assignPositions(listOf(x, a, b)));
+        assertArrayEquals(new long[] { STEP, STEP + STEP / 2, 2 * STEP },
+                mNote.assignPositions(listOf(a, x, b)));
+        assertArrayEquals(new long[] { STEP, 2 * STEP, 3 * STEP },
+                mNote.assignPositions(listOf(a, b, x)));
+    }
+
+    @Test
+    public void movedItemOnlyChangesItsOwnPosition() {
+        ArrayList<ChecklistItem> list = items("a", "b", "c");
+        mNote.setChecklistItems(list);
+        //a移动到b之后,b和c保留原来的排序值
+        assertArrayEquals(new long[] { 2 * STEP, 2 * STEP + STEP / 2, 3 * STEP },
+                mNote.assignPositions(listOf(list.get(1), list.get(0), list.get(2))));
+    }
+
+    @Test
+    public void positionsAreRenumberedWhenGapIsUsedUp() {
+        ArrayList<ChecklistItem> list = items("a");
+        mNote.setChecklistItems(list);
+        //每次在最前面插入,排序值减半,直到没有可用的间隔
+        for (int i = 1; i <= 16; i++) {
+            list.add(0, new ChecklistItem("item " + i, false));
+            long[] positions = mNote.assignPositions(list);
+            assertEquals(STEP >> i, positions[0]);
+            assertEquals(STEP >> (i - 1), positions[1]);
+            mNote.setChecklistItems(list);
+        }
+        list.add(0, new ChecklistItem("item 17", false));
+        long[] positions = mNote.assignPositions(list);
+        for (int j = 0; j < positions.length; j++) {
+            assertEquals((j + 1) * STEP, positions[j]);
+        }
+    }
+
+    @Test
+    public void firstSaveInsertsEveryItem() {
+        ArrayList<ChecklistItem> list = items("a", "", "b");
+        list.get(2).setChecked(true);
+        mNote.setChecklistItems(list);
+        //没有内容的条目不保存
+        assertEquals(2, mNote.getChecklistItems().size());
+
+        ArrayList<Write> writes = saveAndGetItemWrites();
+        assertEquals(2, writes.size());
+        assertEquals("a", writes.get(0).values.getAsString(ChecklistItemNote.CONTENT));
+        assertEquals(0, (int) writes.get(0).values.getAsInteger(ChecklistItemNote.CHECKED));
+        assertEquals(STEP, (long) writes.get(0).values.getAsLong(ChecklistItemNote.POSITION));
+        assertEquals("b", writes.get(1).values.getAsString(ChecklistItemNote.CONTENT));
+        assertEquals(1, (int) writes.get(1).values.getAsInteger(ChecklistItemNote.CHECKED));
+        assertEquals(2 * STEP, (long) writes.get(1).values.getAsLong(ChecklistItemNote.POSITION));
+    }
+
+    @Test
+    public void onlyChangedColumnsOfChangedItemsAreWritten() {
+        ArrayList<ChecklistItem> list = items("a", "b", "c");
+        mNote.setChecklistItems(list);
+        saveAndGetItemWrites();
+
+        //内容没有变化时不需要保存
+        mNote.setChecklistItems(new ArrayList<ChecklistItem>(list));
+        assertFalse(mNote.hasUnsavedChanges());
+
+        list.get(1).setChecked(true);
+        mNote.setChecklistItems(list);
+        ArrayList<Write> writes = saveAndGetItemWrites();
+        assertEquals(1, writes.size());
+        Write write = writes.get(0);
+        assertEquals(mItemUris.get("b"), write.uri);
+        assertTrue(write.values.containsKey(ChecklistItemNote.CHECKED));
+        assertFalse(write.values.containsKey(ChecklistItemNote.CONTENT));
+        assertFalse(write.values.containsKey(ChecklistItemNote.POSITION));
+    }
+
+    @Test
+    public void movingAnItemWritesOnlyItsPosition() {
+        ArrayList<ChecklistItem> list = items("a", "b", "c");
+        mNote.setChecklistItems(list);
+        saveAndGetItemWrites();
+
+        mNote.setChecklistItems(listOf(list.get(1), list.get(0), list.get(2)));
+        ArrayList<Write> writes = saveAndGetItemWrites();
+        assertEquals(1, writes.size());
+        assertEquals(mItemUris.get("a"), writes.get(0).uri);
+        assertEquals(2 * STEP + STEP / 2,
+                (long) writes.get(0).values.getAsLong(ChecklistItemNote.POSITION));
+        assertFalse(writes.get(0).values.containsKey(ChecklistItemNote.CONTENT));
+    }
+
+    @Test
+    public void removedItemsAreDeleted() {
+        ArrayList<ChecklistItem> list = items("a", "b", "c");
+        mNote.setChecklistItems(list);
+        saveAndGetItemWrites();
+
+        mNote.setChecklistItems(listOf(list.get(0), list.get(2)));
+        ArrayList<Write> writes = saveAndGetItemWrites();
+        assertEquals(1, writes.size());
+        assertTrue(writes.get(0).isDelete());
+        assertEquals(mItemUris.get("b"), writes.get(0).uri);
+    }
+
+    @Test
+    public void itemRemovedBeforeSaveIsNeverWritten() {
+        ArrayList<ChecklistItem> list = items("a", "b");
+        mNote.setChecklistItems(list);
+        mNote.setChecklistItems(listOf(list.get(0)));
+
+        ArrayList<Write> writes = saveAndGetItemWrites();
+        assertEquals(1, writes.size());
+        assertEquals("a", writes.get(0).values.getAsString(ChecklistItemNote.CONTENT));
+    }
+
+    /**
+     * 删除后在保存前又加回的条目更新原来的数据行,不删除也不重新插入
+     */
+    @Test
+    public void itemAddedBackUpdatesItsRow() {
+        ArrayList<ChecklistItem> list = items("a", "b");
+        mNote.setChecklistItems(list);
+        saveAndGetItemWrites();
+        Uri b = mItemUris.get("b");
+        assertNotNull(b);
+
+        mNote.setChecklistItems(listOf(list.get(0)));
+        mNote.setChecklistItems(list);
+        ArrayList<Write> writes = saveAndGetItemWrites();
+        assertEquals(1, writes.size());
+        assertFalse(writes.get(0).isDelete());
+        assertFalse(isInsert(writes.get(0)));
+        assertEquals(b, writes.get(0).uri);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 开放寻址集合的增删查,重点是删除时探测链上元素的前移
+ */
+public class LongHashSetTest {
+
+    @Test
+    public void addContainsAndSize() {
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(1));
+        assertTrue(set.add(-1));
+        assertFalse(set.add(1));
+        assertEquals(2, set.size());
+        assertTrue(set.contains(1));
+        assertTrue(set.contains(-1));
+        assertFalse(set.contains(2));
+    }
+
+    @Test
+    public void minValueIsStoredSeparately() {
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertFalse(set.add(Long.MIN_VALUE));
+        assertTrue(set.contains(Long.MIN_VALUE));
+        assertEquals(1, set.size());
+        assertArrayEquals(new long[] { Long.MIN_VALUE }, set.toArray());
+        assertTrue(set.remove(Long.MIN_VALUE));
+        assertFalse(set.remove(Long.MIN_VALUE));
+        assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        LongHashSet set = new LongHashSet();
+        for (long i = 0; i < 10000; i++) {
+            assertTrue(set.add(i * 31));
+        }
+        assertEquals(10000, set.size());
+        for (long i = 0; i < 10000; i++) {
+            assertTrue(set.contains(i * 31));
+            assertFalse(set.contains(i * 31 + 1));
+        }
+    }
+
+    /**
+     * 删除后同一探测链上后面的元素前移,删除探测链中间的元素后其余元素仍能找到
+     */
+    @Test
+    public void removeKeepsRestOfProbeChain() {
+        LongHashSet set = new LongHashSet();
+        //少于初始容量的一半,所有元素都在同一张16格的表中,必然形成探测链
+        for (long i = 0; i < 8; i++) {
+            set.add(i);
+        }
+        for (long i = 0; i < 8; i += 2) {
+            assertTrue(set.remove(i));
+            assertFalse(set.remove(i));
+        }
+        assertEquals(4, set.size());
+        for (long i = 0; i < 8; i++) {
+            assertEquals(i % 2 == 1, set.contains(i));
+        }
+        //删除留下的空位可以再次使用
+        for (long i = 0; i < 8; i += 2) {
+            assertTrue(set.add(i));
+        }
+        for (long i = 0; i < 8; i++) {
+            assertTrue(set.contains(i));
+        }
+    }
+
+    /**
+     * 随机增删与HashSet对比,取值范围小,探测链和表尾回绕都会经常出现
+     */
+    @Test
+    public void randomOperationsMatchHashSet() {
+        Random random = new Random(42);
+        LongHashSet set = new LongHashSet();
+        HashSet<Long> expected = new HashSet<Long>();
+        for (int step = 0; step < 200000; step++) {
+            long value = random.nextInt(64) - 32;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(value), set.remove(value));
+            } else {
+                assertEquals(expected.add(value), set.add(value));
+            }
+            assertEquals(expected.size(), set.size());
+            if (step % 1000 == 0) {
+                for (long v = -32; v < 32; v++) {
+                    assertEquals(expected.contains(v), set.contains(v));
+                }
+            }
+        }
+        for (long v = -32; v < 32; v++) {
+            assertEquals(expected.contains(v), set.contains(v));
+        }
+    }
+
+    @Test
+    public void toArrayReturnsAllValues() {
+        LongHashSet set = new LongHashSet();
+        set.add(3);
+        set.add(Long.MIN_VALUE);
+        set.add(-7);
+        long[] values = set.toArray();
+        Arrays.sort(values);
+        assertArrayEquals(new long[] { Long.MIN_VALUE, -7, 3 }, values);
+    }
+
+    @Test
+    public void retainAllKeepsCommonValues() {
+        LongHashSet set = new LongHashSet();
+        LongHashSet other = new LongHashSet();
+        for (long i = 0; i < 100; i++) {
+            set.add(i);
+            if (i % 3 == 0) {
+                other.add(i);
+            }
+        }
+        set.retainAll(other);
+        assertEquals(34, set.size());
+        for (long i = 0; i < 100; i++) {
+            assertEquals(i % 3 == 0, set.contains(i));
+        }
+    }
+
+    @Test
+    public void clearRemovesEverything() {
+        LongHashSet set = new LongHashSet();
+        for (long i = 0; i < 100; i++) {
+            set.add(i);
+        }
+        set.add(Long.MIN_VALUE);
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(5));
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertTrue(set.add(5));
+    }
+}
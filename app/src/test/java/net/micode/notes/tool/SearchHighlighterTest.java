@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.graphics.Color;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import net.micode.notes.tool.SearchHighlighter.HighlightSpan;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 搜索高亮的匹配规则、区域合并和编辑后的局部更新
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class SearchHighlighterTest {
+    private static final int COLOR = Color.YELLOW;
+
+    /**
+     * @return 文本中所有高亮区域的起止位置,按起始位置排序
+     */
+    private static int[] ranges(final Spanned text) {
+        HighlightSpan[] spans = text.getSpans(0, text.length(), HighlightSpan.class);
+        Arrays.sort(spans, new Comparator<HighlightSpan>() {
+            public int compare(HighlightSpan lhs, HighlightSpan rhs) {
+                return text.getSpanStart(lhs) - text.getSpanStart(rhs);
+            }
+        });
+        int[] ranges = new int[spans.length * 2];
+        for (int i = 0; i < spans.length; i++) {
+            ranges[i * 2] = text.getSpanStart(spans[i]);
+            ranges[i * 2 + 1] = text.getSpanEnd(spans[i]);
+        }
+        return ranges;
+    }
+
+    private static int[] highlight(String query, String text) {
+        SearchHighlighter highlighter = SearchHighlighter.compile(query, COLOR);
+        assertNotNull(highlighter);
+        return ranges(highlighter.highlight(text));
+    }
+
+    @Test
+    public void compileReturnsNullWithoutTerms() {
+        assertNull(SearchHighlighter.compile(null, COLOR));
+        assertNull(SearchHighlighter.compile("", COLOR));
+        assertNull(SearchHighlighter.compile("   ", COLOR));
+        assertNull(SearchHighlighter.compile("\"\" \"", COLOR));
+    }
+
+    @Test
+    public void matchesIgnoreCase() {
+        assertArrayEquals(new int[] { 2, 6, 11, 15 }, highlight("note", "A Note and NOTE"));
+        assertArrayEquals(new int[] { 0, 4 }, highlight("NOTE", "note"));
+    }
+
+    @Test
+    public void eachTermIsMatched() {
+        assertArrayEquals(new int[] { 0, 3, 8, 11 }, highlight("foo  bar", "foo and bar"));
+        //引号与搜索时一样被忽略
+        assertArrayEquals(new int[] { 0, 3 }, highlight("\"foo\"", "foo"));
+    }
+
+    @Test
+    public void specialCharactersMatchLiterally() {
+        assertArrayEquals(new int[] { 4, 7, 8, 11 }, highlight("a.b (c)", "axb a.b (c)"));
+        assertArrayEquals(new int[0], highlight(".*", "anything"));
+    }
+
+    @Test
+    public void overlappingMatchesAreMerged() {
+        assertArrayEquals(new int[] { 1, 5 }, highlight("abc bcd", "xabcdx"));
+        //较短的词包含在较长的词中
+        assertArrayEquals(new int[] { 3, 8 }, highlight("notes note", "my notes"));
+        assertArrayEquals(new int[] { 3, 8 }, highlight("ote notes", "my notes"));
+    }
+
+    @Test
+    public void adjacentMatchesAreMerged() {
+        assertArrayEquals(new int[] { 0, 4, 5, 7 }, highlight("ab cd", "abcd ab"));
+        assertArrayEquals(new int[] { 0, 6 }, highlight("aa", "aaaaaa"));
+    }
+
+    @Test
+    public void emptyTextHasNoHighlight() {
+        SearchHighlighter highlighter = SearchHighlighter.compile("a", COLOR);
+        assertEquals(0, highlighter.highlight(null).length());
+        assertArrayEquals(new int[0], ranges(highlighter.highlight("")));
+    }
+
+    /**
+     * 编辑后只重新高亮修改的区域,跨越修改位置产生或破坏的匹配都要更新
+     */
+    @Test
+    public void partialHighlightFollowsEdits() {
+        SearchHighlighter highlighter = SearchHighlighter.compile("world", COLOR);
+        SpannableStringBuilder text = new SpannableStringBuilder("hello wor");
+        highlighter.highlight(text, 0, text.length());
+        assertArrayEquals(new int[0], ranges(text));
+
+        //补全后形成匹配
+        text.append("ld");
+        highlighter.highlight(text, 9, 11);
+        assertArrayEquals(new int[] { 6, 11 }, ranges(text));
+
+        //在匹配中间插入字符后匹配消失
+        text.insert(8, "x");
+        highlighter.highlight(text, 8, 9);
+        assertArrayEquals(new int[0], ranges(text));
+
+        //删除插入的字符后匹配恢复,文本中其他位置的匹配不受影响
+        text.append(" World");
+        highlighter.highlight(text, 12, 18);
+        text.delete(8, 9);
+        highlighter.highlight(text, 8, 8);
+        assertArrayEquals(new int[] { 6, 11, 12, 17 }, ranges(text));
+    }
+
+    @Test
+    public void otherSpansAreKept() {
+        SearchHighlighter highlighter = SearchHighlighter.compile("b", COLOR);
+        SpannableStringBuilder text = new SpannableStringBuilder("abc");
+        Object other = new Object();
+        text.setSpan(other, 0, 3, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        highlighter.highlight(text, 0, 3);
+        highlighter.highlight(text, 0, 3);
+        assertArrayEquals(new int[] { 1, 2 }, ranges(text));
+        assertEquals(0, text.getSpanStart(other));
+        assertEquals(3, text.getSpanEnd(other));
+    }
+}
@@ -15,6 +15,7 @@ import java.util.Map;
 /**
  * Created by fujiayi on 2017/6/13.
  * EventManager内的方法如send 都可以在主线程中进行，SDK中做过处理
+ * 进程内只能有一个实例，界面中通过RecognizerSessionManager获取共享的实例
  */
 
 public class MyRecognizer {
@@ -0,0 +1,190 @@
+package com.baidu.aip.asrwakeup3.core.recog;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import com.baidu.aip.asrwakeup3.core.recog.listener.IRecogListener;
+import com.baidu.aip.asrwakeup3.core.recog.listener.RecogEventAdapter;
+import com.baidu.aip.asrwakeup3.core.util.MyLogger;
+import com.baidu.speech.EventListener;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * 进程内共享的识别引擎。
+ * MyRecognizer在release前只能有一个实例，创建EventManager和加载离线资源都比较慢，
+ * 因此由本类持有唯一的引擎，各个Activity通过{@link #acquire}获得租约后使用。
+ * 最后一个租约释放后引擎保持{@link #IDLE_TIMEOUT_MS}，期间再次获取时直接复用；
+ * 超时或系统内存不足时才释放引擎。
+ * 识别回调只分发给最近获取且未释放的租约，即当前在前台的界面。
+ * 所有方法都只能在主线程中调用
+ */
+public class RecognizerSessionManager implements ComponentCallbacks2 {
+
+    private static final String TAG = "RecognizerSession";
+
+    /**
+     * 没有租约后保留引擎的时间
+     */
+    public static final long IDLE_TIMEOUT_MS = 60 * 1000;
+
+    private static RecognizerSessionManager instance;
+
+    private final Context context;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private MyRecognizer recognizer;
+
+    private boolean offlineLoaded;
+
+    // 持有中的租约，最后一个接收识别回调
+    private final ArrayList<Lease> leases = new ArrayList<Lease>();
+
+    // 当前接收回调的适配器，SDK可能在其他线程回调
+    private volatile EventListener activeListener;
+
+    // 注册到引擎的唯一回调，转发给当前的租约，租约变化时不需要重新注册
+    private final EventListener dispatcher = new EventListener() {
+        @Override
+        public void onEvent(String name, String params, byte[] data, int offset, int length) {
+            EventListener target = activeListener;
+            if (target != null) {
+                target.onEvent(name, params, data, offset, length);
+            }
+        }
+    };
+
+    private final Runnable idleRelease = new Runnable() {
+        @Override
+        public void run() {
+            if (leases.isEmpty()) {
+                MyLogger.info(TAG, "空闲超时，释放识别引擎");
+                releaseEngine();
+            }
+        }
+    };
+
+    /**
+     * 识别引擎的使用权，不再使用时必须调用{@link #release()}
+     */
+    public class Lease {
+        private EventListener listener;
+
+        private boolean released;
+
+        private Lease(IRecogListener recogListener) {
+            listener = new RecogEventAdapter(recogListener);
+        }
+
+        public MyRecognizer getRecognizer() {
+            return released ? null : recognizer;
+        }
+
+        /**
+         * 替换接收识别回调的listener
+         */
+        public void setListener(IRecogListener recogListener) {
+            listener = new RecogEventAdapter(recogListener);
+            updateActiveListener();
+        }
+
+        /**
+         * 释放租约，正在进行的识别会被取消，引擎在空闲超时后才释放
+         */
+        public void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            boolean active = !leases.isEmpty() && leases.get(leases.size() - 1) == this;
+            leases.remove(this);
+            if (active && recognizer != null) {
+                recognizer.cancel();
+            }
+            updateActiveListener();
+            if (leases.isEmpty()) {
+                handler.removeCallbacks(idleRelease);
+                handler.postDelayed(idleRelease, IDLE_TIMEOUT_MS);
+            }
+        }
+    }
+
+    private RecognizerSessionManager(Context context) {
+        this.context = context;
+        context.registerComponentCallbacks(this);
+    }
+
+    public static synchronized RecognizerSessionManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new RecognizerSessionManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * 获取引擎的租约，没有可用的引擎时创建
+     *
+     * @param recogListener 识别回调
+     * @param offlineParams 离线命令词加载参数，不需要离线功能时为null
+     */
+    public Lease acquire(IRecogListener recogListener, Map<String, Object> offlineParams) {
+        handler.removeCallbacks(idleRelease);
+        if (recognizer == null) {
+            long start = System.currentTimeMillis();
+            recognizer = new MyRecognizer(context, dispatcher);
+            MyLogger.info(TAG, "创建识别引擎耗时：" + (System.currentTimeMillis() - start) + "ms");
+        }
+        if (offlineParams != null && !offlineLoaded) {
+            recognizer.loadOfflineEngine(offlineParams);
+            offlineLoaded = true;
+        }
+        Lease lease = new Lease(recogListener);
+        leases.add(lease);
+        updateActiveListener();
+        return lease;
+    }
+
+    private void updateActiveListener() {
+        activeListener = leases.isEmpty() ? null : leases.get(leases.size() - 1).listener;
+    }
+
+    private void releaseEngine() {
+        handler.removeCallbacks(idleRelease);
+        if (recognizer != null) {
+            recognizer.release();
+            recognizer = null;
+            offlineLoaded = false;
+        }
+    }
+
+    /**
+     * 内存紧张时释放没有租约的引擎。
+     * 界面隐藏(TRIM_MEMORY_UI_HIDDEN)和进程刚进入后台(TRIM_MEMORY_BACKGROUND)时不释放，
+     * 由空闲超时处理，便于用户很快返回时复用
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        if (isMemoryLow(level) && leases.isEmpty() && recognizer != null) {
+            MyLogger.info(TAG, "内存不足，释放识别引擎 level=" + level);
+            releaseEngine();
+        }
+    }
+
+    private static boolean isMemoryLow(int level) {
+        return level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= TRIM_MEMORY_MODERATE;
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}